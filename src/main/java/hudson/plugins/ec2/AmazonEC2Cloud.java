@@ -33,7 +33,7 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.model.Failure;
 import hudson.model.ItemGroup;
-import hudson.plugins.ec2.util.AmazonEC2Factory;
+import hudson.plugins.ec2.util.InstrumentedAmazonEC2Factory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import java.io.IOException;
@@ -231,7 +231,7 @@ public class AmazonEC2Cloud extends EC2Cloud {
                 try {
                     AWSCredentialsProvider credentialsProvider =
                             createCredentialsProvider(useInstanceProfileForCredentials, credentialsId);
-                    AmazonEC2 client = AmazonEC2Factory.getInstance()
+                    AmazonEC2 client = InstrumentedAmazonEC2Factory.forFormValidation()
                             .connect(credentialsProvider, determineEC2EndpointURL(altEC2Endpoint));
                     DescribeRegionsResult regions = client.describeRegions();
                     List<Region> regionList = regions.getRegions();
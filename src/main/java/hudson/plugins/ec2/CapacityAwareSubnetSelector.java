@@ -0,0 +1,229 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Subnet;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ranks the subnets of a template by how likely a launch in them is to succeed, and round-robin among the subnets that
+ * are equally likely, which is what the subnets were always chosen by.
+ * <p>
+ * From the best to the worst, a subnet is:
+ * <ol>
+ * <li>healthy;
+ * <li>slow, when its launches take more than twice as long as those of the fastest subnet;
+ * <li>in an availability zone that recently lacked capacity;
+ * <li>short of free IP addresses for the instances to launch, or out of them recently.
+ * </ol>
+ * The free IP addresses and availability zone of the subnets are looked up with {@code DescribeSubnets} and kept for
+ * {@link #STATS_TTL_MS}, and counted down as instances are launched in between.
+ */
+final class CapacityAwareSubnetSelector implements SubnetSelector {
+
+    private static final Logger LOGGER = Logger.getLogger(CapacityAwareSubnetSelector.class.getName());
+
+    /**
+     * How long the free IP addresses of a subnet are trusted before it is described again.
+     */
+    static final long STATS_TTL_MS = Long.getLong("jenkins.ec2.subnetStatsTtlMs", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How long a subnet or availability zone is ranked down after a lack of capacity or IP addresses.
+     */
+    static final long ERROR_PENALTY_MS =
+            Long.getLong("jenkins.ec2.subnetErrorPenaltyMs", TimeUnit.MINUTES.toMillis(5));
+
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private static final double SLOW_FACTOR = 2;
+
+    private static final int HEALTHY = 0;
+
+    private static final int SLOW = 1;
+
+    private static final int ZONE_OUT_OF_CAPACITY = 2;
+
+    private static final int OUT_OF_ADDRESSES = 3;
+
+    private final LongSupplier clock;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final Map<String, Stats> stats = new HashMap<>();
+
+    /**
+     * Until when each availability zone is ranked down.
+     */
+    private final Map<String, Long> zoneErrors = new HashMap<>();
+
+    CapacityAwareSubnetSelector() {
+        this(System::currentTimeMillis);
+    }
+
+    CapacityAwareSubnetSelector(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @NonNull
+    @Override
+    public List<String> rank(@NonNull List<String> subnetIds, int number, @CheckForNull AmazonEC2 ec2) {
+        if (subnetIds.isEmpty()) {
+            return subnetIds;
+        }
+        if (ec2 != null) {
+            describe(subnetIds, ec2);
+        }
+
+        int start = Math.floorMod(next.getAndIncrement(), subnetIds.size());
+        List<String> ranked = new ArrayList<>(subnetIds.subList(start, subnetIds.size()));
+        ranked.addAll(subnetIds.subList(0, start));
+
+        Map<String, Integer> tiers = new HashMap<>();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            double fastest = Double.MAX_VALUE;
+            for (String subnetId : subnetIds) {
+                Stats s = stats.get(subnetId);
+                if (s != null && s.latencyMs >= 0) {
+                    fastest = Math.min(fastest, s.latencyMs);
+                }
+            }
+            for (String subnetId : subnetIds) {
+                tiers.put(subnetId, tier(stats.get(subnetId), number, fastest, now));
+            }
+        }
+        // the sort is stable, so equally good subnets keep their round-robin order
+        ranked.sort(Comparator.comparing(tiers::get));
+        return ranked;
+    }
+
+    private int tier(@CheckForNull Stats s, int number, double fastest, long now) {
+        if (s == null) {
+            return HEALTHY;
+        }
+        if ((s.freeIps >= 0 && s.freeIps < number) || now < s.outOfAddressesUntil) {
+            return OUT_OF_ADDRESSES;
+        }
+        Long zoneError = s.zone == null ? null : zoneErrors.get(s.zone);
+        if ((zoneError != null && now < zoneError) || now < s.outOfCapacityUntil) {
+            return ZONE_OUT_OF_CAPACITY;
+        }
+        if (s.latencyMs > SLOW_FACTOR * fastest) {
+            return SLOW;
+        }
+        return HEALTHY;
+    }
+
+    @Override
+    public synchronized void launched(@NonNull String subnetId, int number, long latencyMs) {
+        Stats s = stats.computeIfAbsent(subnetId, id -> new Stats());
+        s.latencyMs = s.latencyMs < 0 ? latencyMs : LATENCY_WEIGHT * latencyMs + (1 - LATENCY_WEIGHT) * s.latencyMs;
+        if (s.freeIps >= 0) {
+            s.freeIps = Math.max(0, s.freeIps - number);
+        }
+        s.outOfCapacityUntil = 0;
+        s.outOfAddressesUntil = 0;
+        if (s.zone != null) {
+            zoneErrors.remove(s.zone);
+        }
+    }
+
+    @Override
+    public synchronized void failed(@NonNull String subnetId, @CheckForNull String errorCode) {
+        long until = clock.getAsLong() + ERROR_PENALTY_MS;
+        Stats s = stats.computeIfAbsent(subnetId, id -> new Stats());
+        if ("InsufficientFreeAddressesInSubnet".equals(errorCode)) {
+            s.outOfAddressesUntil = until;
+        } else if (CapacityErrorCache.isCapacityError(errorCode)) {
+            // capacity is per availability zone, so the other subnets of the zone lack it too
+            if (s.zone != null) {
+                zoneErrors.put(s.zone, until);
+            } else {
+                s.outOfCapacityUntil = until;
+            }
+        }
+    }
+
+    /**
+     * Looks up the subnets whose free IP addresses are not known or too old.
+     */
+    private void describe(List<String> subnetIds, AmazonEC2 ec2) {
+        long now = clock.getAsLong();
+        List<String> stale = new ArrayList<>();
+        synchronized (this) {
+            for (String subnetId : subnetIds) {
+                Stats s = stats.get(subnetId);
+                if (s == null || s.describedAt == 0 || now - s.describedAt >= STATS_TTL_MS) {
+                    stale.add(subnetId);
+                }
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        List<Subnet> subnets;
+        try {
+            // a filter rather than ids, so that a deleted subnet does not fail the lookup of the others
+            subnets = ec2.describeSubnets(new DescribeSubnetsRequest().withFilters(new Filter("subnet-id", stale)))
+                    .getSubnets();
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.FINE, "Failed to describe the subnets " + stale + ", ranking them with what is known", e);
+            return;
+        }
+
+        synchronized (this) {
+            for (String subnetId : stale) {
+                stats.computeIfAbsent(subnetId, id -> new Stats()).describedAt = now;
+            }
+            for (Subnet subnet : subnets) {
+                if (subnet.getSubnetId() == null || !stats.containsKey(subnet.getSubnetId())) {
+                    continue;
+                }
+                Stats s = stats.get(subnet.getSubnetId());
+                s.zone = subnet.getAvailabilityZone();
+                if (subnet.getAvailableIpAddressCount() != null) {
+                    s.freeIps = subnet.getAvailableIpAddressCount();
+                }
+            }
+        }
+    }
+
+    private static final class Stats {
+        /**
+         * When the subnet was last described, or 0 if never.
+         */
+        long describedAt;
+
+        @CheckForNull
+        String zone;
+
+        /**
+         * The free IP addresses of the subnet, or -1 if unknown.
+         */
+        int freeIps = -1;
+
+        /**
+         * The moving average of how long launches in the subnet take, or -1 if unknown.
+         */
+        double latencyMs = -1;
+
+        long outOfCapacityUntil;
+
+        long outOfAddressesUntil;
+    }
+}
@@ -0,0 +1,94 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the instance types EC2 recently had no capacity for, per subnet or availability zone, so that provisioning
+ * tries the other instance types of a template first instead of failing on the same pool again.
+ * <p>
+ * A pool that reports a lack of capacity is skipped for {@link #BACKOFF_MS}, doubled at each consecutive error up to
+ * {@link #MAX_BACKOFF_MS}. A successful launch forgets its errors.
+ */
+final class CapacityErrorCache {
+
+    static final long BACKOFF_MS = Long.getLong("jenkins.ec2.capacityErrorBackoffMs", TimeUnit.MINUTES.toMillis(1));
+
+    static final long MAX_BACKOFF_MS =
+            Long.getLong("jenkins.ec2.capacityErrorMaxBackoffMs", TimeUnit.MINUTES.toMillis(30));
+
+    /**
+     * The error codes by which EC2 tells it cannot launch the instance type where asked, as opposed to a mistake in
+     * the request.
+     */
+    private static final Set<String> CAPACITY_ERRORS = Set.of(
+            "InsufficientCapacity",
+            "InsufficientHostCapacity",
+            "InsufficientInstanceCapacity",
+            "InsufficientReservedInstanceCapacity",
+            "Unsupported");
+
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    CapacityErrorCache() {
+        this(System::currentTimeMillis);
+    }
+
+    CapacityErrorCache(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    static boolean isCapacityError(@CheckForNull String errorCode) {
+        return errorCode != null && CAPACITY_ERRORS.contains(errorCode);
+    }
+
+    /**
+     * The pool an instance is launched in: its subnet, or else its availability zone, or else the default subnet.
+     */
+    static String pool(@CheckForNull String subnetId, @CheckForNull String zone) {
+        String pool = Util.fixEmptyAndTrim(subnetId);
+        if (pool == null) {
+            pool = Util.fixEmptyAndTrim(zone);
+        }
+        return pool == null ? "" : pool;
+    }
+
+    /**
+     * Whether the instance type recently lacked capacity in the pool.
+     */
+    synchronized boolean isExhausted(String instanceType, String pool) {
+        Entry entry = entries.get(key(instanceType, pool));
+        return entry != null && clock.getAsLong() < entry.until;
+    }
+
+    synchronized void recordError(String instanceType, String pool) {
+        long now = clock.getAsLong();
+        entries.values().removeIf(entry -> entry.until + MAX_BACKOFF_MS < now);
+
+        Entry entry = entries.computeIfAbsent(key(instanceType, pool), k -> new Entry());
+        long backoff = BACKOFF_MS << Math.min(entry.errors, 30);
+        entry.errors++;
+        entry.until = now + Math.min(Math.max(0, backoff), MAX_BACKOFF_MS);
+    }
+
+    synchronized void recordSuccess(String instanceType, String pool) {
+        entries.remove(key(instanceType, pool));
+    }
+
+    private static String key(String instanceType, String pool) {
+        return instanceType + "@" + pool;
+    }
+
+    private static final class Entry {
+        int errors;
+
+        long until;
+    }
+}
@@ -9,19 +9,37 @@ import com.amazonaws.services.ec2.model.AvailabilityZone;
 import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
 import com.amazonaws.services.ec2.model.DescribeImagesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Image;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.Reservation;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 
 final class CloudHelper {
     private static final Logger LOGGER = Logger.getLogger(CloudHelper.class.getName());
 
+    /**
+     * The most values EC2 accepts in a single filter.
+     */
+    static final int MAX_FILTER_VALUES = 200;
+
+    /**
+     * How many instance ids are described by a single batched request, at most {@link #MAX_FILTER_VALUES}.
+     */
+    static final int DESCRIBE_BATCH_SIZE =
+            Integer.getInteger("jenkins.ec2.describeInstancesBatchSize", MAX_FILTER_VALUES);
+
     static Instance getInstanceWithRetry(String instanceId, EC2Cloud cloud)
             throws AmazonClientException, InterruptedException {
         // Sometimes even after a successful RunInstances, DescribeInstances
@@ -44,6 +62,19 @@ final class CloudHelper {
         return getInstance(instanceId, cloud);
     }
 
+    /**
+     * Like {@link #getInstanceWithRetry(String, EC2Cloud)}, but shares the request with the concurrent lookups of
+     * other instances of the cloud, and the result with the lookups of the same instance shortly after.
+     */
+    @CheckForNull
+    static Instance getSharedInstance(String instanceId, EC2Cloud cloud)
+            throws AmazonClientException, InterruptedException {
+        if (StringUtils.isEmpty(instanceId) || cloud == null) {
+            return null;
+        }
+        return cloud.describeInstance(instanceId);
+    }
+
     @CheckForNull
     static Instance getInstance(String instanceId, EC2Cloud cloud) throws AmazonClientException {
         if (StringUtils.isEmpty(instanceId) || cloud == null) {
@@ -79,6 +110,54 @@ final class CloudHelper {
         return instances.get(0);
     }
 
+    /**
+     * Describes the given instances with as few requests as possible. The ids are matched with a filter rather than
+     * listed, so that unknown ids, such as those of instances EC2 does not report yet or any more, are left out of the
+     * result instead of failing the whole batch.
+     *
+     * @return the described instances by instance id
+     */
+    @NonNull
+    static Map<String, Instance> getInstances(@NonNull Collection<String> instanceIds, @NonNull EC2Cloud cloud)
+            throws AmazonClientException {
+        Map<String, Instance> instances = new HashMap<>();
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(instanceIds));
+        if (ids.isEmpty()) {
+            return instances;
+        }
+
+        AmazonEC2 ec2 = cloud.connect();
+        int batchSize = Math.min(Math.max(1, DESCRIBE_BATCH_SIZE), MAX_FILTER_VALUES);
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + batchSize));
+            DescribeInstancesRequest request = new DescribeInstancesRequest()
+                    .withFilters(new Filter("instance-id").withValues(batch))
+                    .withMaxResults(1000);
+            DescribeInstancesResult result;
+            do {
+                result = ec2.describeInstances(request);
+                for (Reservation reservation : result.getReservations()) {
+                    for (Instance instance : reservation.getInstances()) {
+                        instances.put(instance.getInstanceId(), instance);
+                    }
+                }
+                request.setNextToken(result.getNextToken());
+            } while (result.getNextToken() != null);
+        }
+        return instances;
+    }
+
+    /**
+     * Returns a copy of the described instance in the given state, for a state change learned without describing the
+     * instance.
+     */
+    @NonNull
+    static Instance withState(@NonNull Instance instance, @NonNull InstanceState state) {
+        Instance copy = instance.clone();
+        copy.setState(new com.amazonaws.services.ec2.model.InstanceState().withName(state.getCode()));
+        return copy;
+    }
+
     @CheckForNull
     static Image getAmiImage(AmazonEC2 ec2, String ami) {
         List<String> images = Collections.singletonList(ami);
@@ -0,0 +1,68 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.plugins.ec2.util.MinimumInstanceChecker;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.logging.Level;
+import jenkins.model.Jenkins;
+
+/**
+ * Provisions agents ahead of the demand forecast of the templates with predictive provisioning, see
+ * {@link MinimumInstanceChecker#checkForPredictedDemand()}.
+ */
+@Extension
+public class DemandForecastMonitor extends AsyncPeriodicWork {
+
+    public DemandForecastMonitor() {
+        super("EC2 demand forecast monitor");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MinimumInstanceChecker.FORECAST_PERIOD_MILLIS;
+    }
+
+    @Override
+    protected Level getNormalLoggingLevel() {
+        return Level.FINEST;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.get();
+        if (jenkins.isQuietingDown() || jenkins.isTerminating()) {
+            return;
+        }
+        MinimumInstanceChecker.checkForPredictedDemand();
+    }
+
+    /**
+     * Counts the builds entering the queue for the templates that can take them.
+     */
+    @Extension
+    public static class ArrivalListener extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            Label label = wi.getAssignedLabel();
+            if (label == null) {
+                return;
+            }
+            for (Cloud cloud : Jenkins.get().clouds) {
+                if (!(cloud instanceof EC2Cloud)) {
+                    continue;
+                }
+                for (SlaveTemplate template : ((EC2Cloud) cloud).getTemplates()) {
+                    if (template.isPredictiveProvisioning() && label.matches(template.getLabelSet())) {
+                        template.getDemandForecast().recordArrival();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -34,16 +34,16 @@ import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceType;
-import com.amazonaws.services.ec2.model.StopInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
-import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Node;
 import hudson.model.Slave;
-import hudson.plugins.ec2.util.AmazonEC2Factory;
+import hudson.plugins.ec2.util.InstrumentedAmazonEC2Factory;
 import hudson.plugins.ec2.util.ResettableCountDownLatch;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.NodeProperty;
@@ -62,6 +62,8 @@ import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.verb.POST;
@@ -124,9 +126,18 @@ public abstract class EC2AbstractSlave extends Slave {
     /* The time at which we fetched the last instance data */
     protected transient long lastFetchTime;
 
+    /**
+     * Launched to fill the warm pool of its template, to be parked once connected. An agent still warming up when
+     * Jenkins restarts becomes an ordinary agent.
+     */
+    transient volatile boolean warming;
+
     /** Terminate was scheduled */
     protected transient ResettableCountDownLatch terminateScheduled = new ResettableCountDownLatch(1, false);
 
+    /** When the agent went through the phases of its provisioning, only known to the controller that launched it */
+    private transient ProvisioningTimeline timeline = new ProvisioningTimeline();
+
     /*
      * The time (in milliseconds) after which we will always re-fetch externally changeable EC2 data when we are asked
      * for it
@@ -474,6 +485,9 @@ public abstract class EC2AbstractSlave extends Slave {
         if (o.terminateScheduled == null) {
             o.terminateScheduled = new ResettableCountDownLatch(1, false);
         }
+        if (o.timeline == null) {
+            o.timeline = new ProvisioningTimeline();
+        }
 
         return o;
     }
@@ -482,6 +496,11 @@ public abstract class EC2AbstractSlave extends Slave {
         return (EC2Cloud) Jenkins.get().getCloud(cloudName);
     }
 
+    @Restricted(NoExternalUse.class)
+    public ProvisioningTimeline getTimeline() {
+        return timeline;
+    }
+
     /**
      * See http://aws.amazon.com/ec2/instance-types/
      */
@@ -690,35 +709,139 @@ public abstract class EC2AbstractSlave extends Slave {
      */
     public abstract void terminate();
 
+    /**
+     * Queues the termination of the instance, and the cancellation of its spot request if any, with the
+     * {@link TerminationQueue} of the cloud, and removes this agent once done. If the cloud is gone, the instance cannot
+     * be terminated and this agent is only removed.
+     *
+     * @param removeAnyway whether to remove this agent even if its instance could not be terminated
+     */
+    void queueTermination(@CheckForNull String spotRequestId, boolean removeAnyway) {
+        if (terminateScheduled.getCount() != 0) {
+            return;
+        }
+        synchronized (terminateScheduled) {
+            if (terminateScheduled.getCount() != 0) {
+                return;
+            }
+            String instanceId = getInstanceId();
+            EC2Cloud cloud = getCloud();
+            if (cloud == null) {
+                LOGGER.log(Level.WARNING, "Failed to terminate EC2 instance {0}, its cloud {1} is gone", new Object[] {
+                    instanceId, cloudName
+                });
+                if (removeAnyway) {
+                    try {
+                        Jenkins.get().removeNode(this);
+                        LOGGER.info("Removed EC2 instance from jenkins controller: " + instanceId);
+                    } catch (IOException ioe) {
+                        LOGGER.log(Level.WARNING, "Failed to remove agent: " + name, ioe);
+                    }
+                }
+                return;
+            }
+            cloud.getTerminationQueue()
+                    .terminate(instanceId, spotRequestId)
+                    .whenCompleteAsync(
+                            (result, e) -> {
+                                try {
+                                    if (e != null) {
+                                        LOGGER.log(Level.WARNING, "Failed to terminate EC2 instance: " + instanceId, e);
+                                        if (!removeAnyway) {
+                                            return;
+                                        }
+                                    }
+                                    Jenkins.get().removeNode(this);
+                                    LOGGER.info("Removed EC2 instance from jenkins controller: " + instanceId);
+                                } catch (IOException ioe) {
+                                    LOGGER.log(Level.WARNING, "Failed to remove agent: " + name, ioe);
+                                } finally {
+                                    synchronized (terminateScheduled) {
+                                        terminateScheduled.countDown();
+                                    }
+                                }
+                            },
+                            Computer.threadPoolForRemoting);
+            terminateScheduled.reset();
+        }
+    }
+
+    /**
+     * Queues the stop of the instance with the {@link TerminationQueue} of the cloud, and disconnects this agent once
+     * done. Like a termination, a stop is only queued once at a time.
+     */
     void stop() {
-        try {
-            AmazonEC2 ec2 = getCloud().connect();
-            StopInstancesRequest request = new StopInstancesRequest(Collections.singletonList(getInstanceId()));
-            LOGGER.fine("Sending stop request for " + getInstanceId());
-            ec2.stopInstances(request);
-            LOGGER.info("EC2 instance stop request sent for " + getInstanceId());
-            Computer computer = toComputer();
-            if (computer != null) {
-                computer.disconnect(null);
+        if (terminateScheduled.getCount() != 0) {
+            return;
+        }
+        synchronized (terminateScheduled) {
+            if (terminateScheduled.getCount() != 0) {
+                return;
+            }
+            String instanceId = getInstanceId();
+            EC2Cloud cloud = getCloud();
+            if (cloud == null) {
+                LOGGER.log(Level.WARNING, "Failed to stop EC2 instance {0}, its cloud {1} is gone", new Object[] {
+                    instanceId, cloudName
+                });
+                return;
             }
-        } catch (AmazonClientException e) {
-            LOGGER.log(Level.WARNING, "Failed to stop EC2 instance: " + getInstanceId(), e);
+            cloud.getTerminationQueue()
+                    .stop(instanceId)
+                    .whenCompleteAsync(
+                            (result, e) -> {
+                                try {
+                                    if (e != null) {
+                                        LOGGER.log(Level.WARNING, "Failed to stop EC2 instance: " + instanceId, e);
+                                        return;
+                                    }
+                                    Computer computer = toComputer();
+                                    if (computer != null) {
+                                        computer.disconnect(null);
+                                    }
+                                } finally {
+                                    synchronized (terminateScheduled) {
+                                        terminateScheduled.countDown();
+                                    }
+                                }
+                            },
+                            Computer.threadPoolForRemoting);
+            terminateScheduled.reset();
         }
     }
 
-    boolean terminateInstance() {
-        try {
-            AmazonEC2 ec2 = getCloud().connect();
-            TerminateInstancesRequest request =
-                    new TerminateInstancesRequest(Collections.singletonList(getInstanceId()));
-            LOGGER.fine("Sending terminate request for " + getInstanceId());
-            ec2.terminateInstances(request);
-            LOGGER.info("EC2 instance terminate request sent for " + getInstanceId());
-            return true;
-        } catch (AmazonClientException e) {
-            LOGGER.log(Level.WARNING, "Failed to terminate EC2 instance: " + getInstanceId(), e);
-            return false;
+    /**
+     * Queues the stop of the instance of an agent launched for the warm pool of its template with the
+     * {@link TerminationQueue} of the cloud, and removes this agent once the instance is stopped, leaving it
+     * initialized for provisioning to start it. If the instance cannot be stopped, it is terminated instead.
+     */
+    void park() {
+        String instanceId = getInstanceId();
+        EC2Cloud cloud = getCloud();
+        if (cloud == null) {
+            terminate();
+            return;
         }
+        cloud.getTerminationQueue()
+                .stop(instanceId)
+                .whenCompleteAsync(
+                        (result, e) -> {
+                            if (e != null) {
+                                LOGGER.log(
+                                        Level.WARNING,
+                                        "Failed to stop EC2 instance into the warm pool: " + instanceId,
+                                        e);
+                                terminate();
+                                return;
+                            }
+                            try {
+                                Jenkins.get().removeNode(this);
+                                LOGGER.info("Stopped EC2 instance into the warm pool: " + instanceId);
+                            } catch (IOException ioe) {
+                                LOGGER.log(Level.WARNING, "Failed to remove agent: " + name, ioe);
+                            }
+                        },
+                        Computer.threadPoolForRemoting);
     }
 
     @Override
@@ -742,7 +865,7 @@ public abstract class EC2AbstractSlave extends Slave {
 
     @Override
     public boolean isAcceptingTasks() {
-        return terminateScheduled.getCount() == 0;
+        return terminateScheduled.getCount() == 0 && !warming;
     }
 
     void idleTimeout() {
@@ -873,14 +996,22 @@ public abstract class EC2AbstractSlave extends Slave {
 
         Instance i = null;
         try {
-            i = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+            i = CloudHelper.getSharedInstance(getInstanceId(), getCloud());
         } catch (InterruptedException e) {
             // We'll just retry next time we test for idleness.
             LOGGER.fine("InterruptedException while get " + getInstanceId() + " Exception: " + e);
             return;
         }
 
-        lastFetchTime = now;
+        updateLiveInstanceData(i, now);
+    }
+
+    /**
+     * Records the live data of the instance as fetched at the given time, either by this agent or by a batched
+     * describe of many agents.
+     */
+    void updateLiveInstanceData(@CheckForNull Instance i, long fetchTime) {
+        lastFetchTime = fetchTime;
         lastFetchInstance = i;
         if (i == null) {
             return;
@@ -903,6 +1034,17 @@ public abstract class EC2AbstractSlave extends Slave {
         }
     }
 
+    /**
+     * Records a state change of the instance reported by an {@link InstanceStateFeed}.
+     */
+    void instanceStateChanged(@NonNull InstanceState state) {
+        Instance i = lastFetchInstance;
+        if (i != null) {
+            lastFetchInstance = CloudHelper.withState(i, state);
+            lastFetchTime = System.currentTimeMillis();
+        }
+    }
+
     /*
      * Clears all existing tag data so that we can force the instance into a known state
      */
@@ -1041,7 +1183,7 @@ public abstract class EC2AbstractSlave extends Slave {
         ListBoxModel model = new ListBoxModel();
 
         if (!StringUtils.isEmpty(region)) {
-            AmazonEC2 client = AmazonEC2Factory.getInstance()
+            AmazonEC2 client = InstrumentedAmazonEC2Factory.forFormValidation()
                     .connect(credentialsProvider, AmazonEC2Cloud.getEc2EndpointUrl(region));
             DescribeAvailabilityZonesResult zones = client.describeAvailabilityZones();
             List<AvailabilityZone> zoneList = zones.getAvailabilityZones();
@@ -64,6 +64,11 @@ import hudson.model.Node;
 import hudson.model.PeriodicWork;
 import hudson.model.TaskListener;
 import hudson.plugins.ec2.util.AmazonEC2Factory;
+import hudson.plugins.ec2.util.EC2ApiCaller;
+import hudson.plugins.ec2.util.EC2ApiMetrics;
+import hudson.plugins.ec2.util.EC2RateLimiter;
+import hudson.plugins.ec2.util.InstrumentedAmazonEC2Factory;
+import hudson.plugins.ec2.util.RateLimitedAmazonEC2Factory;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner.PlannedNode;
@@ -83,8 +88,15 @@ import java.net.Proxy;
 import java.net.URL;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -132,8 +144,18 @@ public abstract class EC2Cloud extends Cloud {
     // then this will be used instead of any configured ssh credential
     public static final String SSH_PRIVATE_KEY_FILEPATH = EC2Cloud.class.getName() + ".sshPrivateKeyFilePath";
 
+    /**
+     * How long provisioning for a label waits on a template before also trying the next matching one. A negative value
+     * only tries the next template once the previous one is done.
+     */
+    static final long PROVISION_STAGGER_MS = Long.getLong("jenkins.ec2.provisionStaggerMs", 2000);
+
     private transient ReentrantLock slaveCountingLock = new ReentrantLock();
 
+    private transient FleetStateCache fleetState;
+
+    private transient InstanceDescriber instanceDescriber;
+
     private final boolean useInstanceProfileForCredentials;
 
     private final String roleArn;
@@ -168,7 +190,15 @@ public abstract class EC2Cloud extends Cloud {
 
     private List<? extends SlaveTemplate> templates;
 
-    private transient KeyPair usableKeyPair;
+    private transient KeyPairCache keyPairs = new KeyPairCache();
+
+    private transient CapacityErrorCache capacityErrors = new CapacityErrorCache();
+
+    private transient TerminationQueue terminationQueue = new TerminationQueue(this);
+
+    private transient EC2RateLimiter rateLimiter = new EC2RateLimiter();
+
+    private transient EC2ApiMetrics apiMetrics = new EC2ApiMetrics();
 
     private transient volatile AmazonEC2 connection;
 
@@ -308,6 +338,13 @@ public abstract class EC2Cloud extends Cloud {
 
     protected Object readResolve() {
         this.slaveCountingLock = new ReentrantLock();
+        this.fleetState = new FleetStateCache(this);
+        this.instanceDescriber = new InstanceDescriber(this);
+        this.keyPairs = new KeyPairCache();
+        this.capacityErrors = new CapacityErrorCache();
+        this.terminationQueue = new TerminationQueue(this);
+        this.rateLimiter = new EC2RateLimiter();
+        this.apiMetrics = new EC2ApiMetrics();
 
         for (SlaveTemplate t : templates) {
             t.parent = this;
@@ -474,14 +511,64 @@ public abstract class EC2Cloud extends Cloud {
      * Gets the {@link KeyPairInfo} used for the launch.
      */
     @CheckForNull
-    public synchronized KeyPair getKeyPair() throws AmazonClientException, IOException {
-        if (usableKeyPair == null) {
-            EC2PrivateKey ec2PrivateKey = this.resolvePrivateKey();
-            if (ec2PrivateKey != null) {
-                usableKeyPair = ec2PrivateKey.find(connect());
-            }
+    public KeyPair getKeyPair() throws AmazonClientException, IOException {
+        EC2PrivateKey ec2PrivateKey = this.resolvePrivateKey();
+        if (ec2PrivateKey == null) {
+            return null;
         }
-        return usableKeyPair;
+        return findKeyPair(ec2PrivateKey, connect());
+    }
+
+    /**
+     * Finds the key pair matching the given private key of this cloud, reusing the last match as long as the SSH
+     * credential holds the same key.
+     */
+    @CheckForNull
+    KeyPair findKeyPair(@NonNull EC2PrivateKey ec2PrivateKey, @NonNull AmazonEC2 ec2)
+            throws AmazonClientException, IOException {
+        return keyPairs.find(sshKeysCredentialsId, ec2PrivateKey, ec2);
+    }
+
+    /**
+     * The instance types this cloud recently had no capacity for, by subnet or availability zone.
+     */
+    CapacityErrorCache getCapacityErrors() {
+        return capacityErrors;
+    }
+
+    TerminationQueue getTerminationQueue() {
+        return terminationQueue;
+    }
+
+    /**
+     * How many instances of this cloud are waiting to be terminated or stopped.
+     */
+    public int getTerminationQueueDepth() {
+        return terminationQueue == null ? 0 : terminationQueue.size();
+    }
+
+    /**
+     * The budget of the EC2 API calls of this cloud.
+     */
+    @Restricted(NoExternalUse.class)
+    public EC2RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * How the EC2 API calls of this cloud went, shown on its {@code status} page.
+     */
+    @Restricted(NoExternalUse.class)
+    public EC2ApiMetrics getApiMetrics() {
+        return apiMetrics;
+    }
+
+    /**
+     * How the EC2 API calls of the form validation of all the clouds went.
+     */
+    @Restricted(NoExternalUse.class)
+    public EC2ApiMetrics getFormValidationApiMetrics() {
+        return EC2ApiMetrics.FORM_VALIDATION;
     }
 
     /**
@@ -547,14 +634,7 @@ public abstract class EC2Cloud extends Cloud {
      * @param template If left null, then all instances are counted.
      */
     private int countCurrentEC2Slaves(SlaveTemplate template) throws AmazonClientException {
-        String jenkinsServerUrl = JenkinsLocationConfiguration.get().getUrl();
-
-        if (jenkinsServerUrl == null) {
-            LOGGER.log(
-                    Level.WARNING,
-                    "No Jenkins server URL specified, it is strongly recommended to open /configure and set the server URL. "
-                            + "Not having has disabled the per-controller instance cap counting (cf. https://github.com/jenkinsci/ec2-plugin/pull/310)");
-        }
+        String jenkinsServerUrl = getJenkinsServerUrl();
 
         LOGGER.log(
                 Level.FINE,
@@ -648,30 +728,7 @@ public abstract class EC2Cloud extends Cloud {
                         }
                     } else {
                         // Cancelled or otherwise dead
-                        for (Node node : Jenkins.get().getNodes()) {
-                            try {
-                                if (!(node instanceof EC2SpotSlave)) {
-                                    continue;
-                                }
-                                EC2SpotSlave ec2Slave = (EC2SpotSlave) node;
-                                if (ec2Slave.getSpotInstanceRequestId().equals(sir.getSpotInstanceRequestId())) {
-                                    LOGGER.log(
-                                            Level.INFO,
-                                            "Removing dead request: " + sir.getSpotInstanceRequestId() + " AMI: "
-                                                    + sir.getInstanceId() + " state: " + sir.getState() + " status: "
-                                                    + sir.getStatus());
-                                    Jenkins.get().removeNode(node);
-                                    break;
-                                }
-                            } catch (IOException e) {
-                                LOGGER.log(
-                                        Level.WARNING,
-                                        "Failed to remove node for dead request: " + sir.getSpotInstanceRequestId()
-                                                + " AMI: " + sir.getInstanceId() + " state: " + sir.getState()
-                                                + " status: " + sir.getStatus(),
-                                        e);
-                            }
-                        }
+                        removeDeadSpotRequestNode(sir);
                     }
                 }
             }
@@ -680,6 +737,34 @@ public abstract class EC2Cloud extends Cloud {
         return n;
     }
 
+    /**
+     * Removes the node, if any, of a spot request that was cancelled or otherwise died.
+     */
+    void removeDeadSpotRequestNode(SpotInstanceRequest sir) {
+        for (Node node : Jenkins.get().getNodes()) {
+            try {
+                if (!(node instanceof EC2SpotSlave)) {
+                    continue;
+                }
+                EC2SpotSlave ec2Slave = (EC2SpotSlave) node;
+                if (ec2Slave.getSpotInstanceRequestId().equals(sir.getSpotInstanceRequestId())) {
+                    LOGGER.log(
+                            Level.INFO,
+                            "Removing dead request: " + sir.getSpotInstanceRequestId() + " AMI: " + sir.getInstanceId()
+                                    + " state: " + sir.getState() + " status: " + sir.getStatus());
+                    Jenkins.get().removeNode(node);
+                    break;
+                }
+            } catch (IOException e) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Failed to remove node for dead request: " + sir.getSpotInstanceRequestId() + " AMI: "
+                                + sir.getInstanceId() + " state: " + sir.getState() + " status: " + sir.getStatus(),
+                        e);
+            }
+        }
+    }
+
     // Count nodes where the spot request does not yet exist (sometimes it takes time for the request to appear
     // in the EC2 API)
     private int countJenkinsNodeSpotInstancesWithoutRequests(
@@ -736,7 +821,7 @@ public abstract class EC2Cloud extends Cloud {
         return n;
     }
 
-    private List<Filter> getGenericFilters(String jenkinsServerUrl, SlaveTemplate template) {
+    List<Filter> getGenericFilters(String jenkinsServerUrl, SlaveTemplate template) {
         List<Filter> filters = new ArrayList<>();
         filters.add(new Filter("tag-key").withValues(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE));
         if (jenkinsServerUrl != null) {
@@ -781,12 +866,36 @@ public abstract class EC2Cloud extends Cloud {
         return false;
     }
 
+    @CheckForNull
+    private static String getJenkinsServerUrl() {
+        String jenkinsServerUrl = JenkinsLocationConfiguration.get().getUrl();
+
+        if (jenkinsServerUrl == null) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "No Jenkins server URL specified, it is strongly recommended to open /configure and set the server URL. "
+                            + "Not having has disabled the per-controller instance cap counting (cf. https://github.com/jenkinsci/ec2-plugin/pull/310)");
+        }
+        return jenkinsServerUrl;
+    }
+
     /**
      * Returns the maximum number of possible agents that can be created.
      */
     private int getPossibleNewSlavesCount(SlaveTemplate template) throws AmazonClientException {
-        int estimatedTotalSlaves = countCurrentEC2Slaves(null);
-        int estimatedAmiSlaves = countCurrentEC2Slaves(template);
+        int estimatedTotalSlaves;
+        int estimatedAmiSlaves;
+        if (FleetStateCache.TTL_MS > 0) {
+            String jenkinsServerUrl = getJenkinsServerUrl();
+            estimatedTotalSlaves = fleetState.count(null, jenkinsServerUrl);
+            estimatedAmiSlaves = fleetState.count(template, jenkinsServerUrl);
+        } else {
+            estimatedTotalSlaves = countCurrentEC2Slaves(null);
+            estimatedAmiSlaves = countCurrentEC2Slaves(template);
+        }
+        // Agents being provisioned by other threads are not visible to EC2 yet
+        estimatedTotalSlaves += fleetState.reserved(null);
+        estimatedAmiSlaves += fleetState.reserved(template);
 
         int availableTotalSlaves = instanceCap - estimatedTotalSlaves;
         int availableAmiSlaves = template.getInstanceCap() - estimatedAmiSlaves;
@@ -798,12 +907,60 @@ public abstract class EC2Cloud extends Cloud {
         return Math.min(availableAmiSlaves, availableTotalSlaves);
     }
 
+    /**
+     * Records instances or spot requests this controller terminated, stopped or cancelled, so that the instance cap
+     * counting does not wait for the next fleet snapshot to release their capacity.
+     */
+    void instancesRemoved(String... ids) {
+        if (fleetState != null) {
+            fleetState.terminated(ids);
+        }
+        if (instanceDescriber != null) {
+            instanceDescriber.forget(ids);
+        }
+    }
+
+    /**
+     * Records a state change of an instance of this cloud reported by an {@link InstanceStateFeed}.
+     *
+     * @param known the last known description of the instance, used if this cloud did not describe it recently
+     */
+    void instanceStateChanged(@NonNull String instanceId, @NonNull InstanceState state, @CheckForNull Instance known) {
+        if (state == InstanceState.SHUTTING_DOWN || state == InstanceState.TERMINATED) {
+            fleetState.terminated(instanceId);
+        }
+        instanceDescriber.stateChanged(instanceId, state, known);
+    }
+
+    /**
+     * Describes an instance of this cloud, in the same request as the instances other agents look up at the same
+     * time, or from a description made a moment ago.
+     */
+    @CheckForNull
+    Instance describeInstance(@NonNull String instanceId) throws AmazonClientException, InterruptedException {
+        return instanceDescriber.describe(instanceId);
+    }
+
     /**
      * Obtains a agent whose AMI matches the AMI of the given template, and that also has requiredLabel (if requiredLabel is non-null)
      * forceCreateNew specifies that the creation of a new agent is required. Otherwise, an existing matching agent may be re-used
+     * <p>
+     * The capacity is reserved under {@link #slaveCountingLock}, but the EC2 calls are made after releasing it so that
+     * other templates of this cloud can provision at the same time.
      */
     private List<EC2AbstractSlave> getNewOrExistingAvailableSlave(SlaveTemplate t, int number, boolean forceCreateNew)
             throws IOException {
+        return getNewOrExistingAvailableSlave(t, number, forceCreateNew, () -> false);
+    }
+
+    /**
+     * Like {@link #getNewOrExistingAvailableSlave(SlaveTemplate, int, boolean)}, but gives up without calling EC2 if
+     * the agents are no longer needed once the template is free to provision.
+     */
+    List<EC2AbstractSlave> getNewOrExistingAvailableSlave(
+            SlaveTemplate t, int number, boolean forceCreateNew, BooleanSupplier cancelled) throws IOException {
+        long requestedAt = System.currentTimeMillis();
+        FleetStateCache.CapacityReservation reservation;
         try {
             slaveCountingLock.lock();
             int possibleSlavesCount = getPossibleNewSlavesCount(t);
@@ -812,13 +969,6 @@ public abstract class EC2Cloud extends Cloud {
                 return null;
             }
 
-            EnumSet<SlaveTemplate.ProvisionOptions> provisionOptions;
-            if (forceCreateNew) {
-                provisionOptions = EnumSet.of(SlaveTemplate.ProvisionOptions.FORCE_CREATE);
-            } else {
-                provisionOptions = EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE);
-            }
-
             if (number > possibleSlavesCount) {
                 LOGGER.log(
                         Level.INFO,
@@ -829,12 +979,48 @@ public abstract class EC2Cloud extends Cloud {
                 number = possibleSlavesCount;
             }
 
-            return t.provision(number, provisionOptions);
+            reservation = fleetState.reserve(t, number);
         } finally {
             slaveCountingLock.unlock();
         }
+        long capacityCheckedAt = System.currentTimeMillis();
+
+        EnumSet<SlaveTemplate.ProvisionOptions> provisionOptions;
+        if (forceCreateNew) {
+            provisionOptions = EnumSet.of(SlaveTemplate.ProvisionOptions.FORCE_CREATE);
+        } else {
+            provisionOptions = EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE);
+        }
+
+        try {
+            // Merged with the requests for the same template made at the same time into a single call to EC2
+            List<EC2AbstractSlave> slaves =
+                    t.getProvisionBatcher().provision(reservation.getSlots(), provisionOptions, cancelled);
+            reservation.commit(slaves);
+            for (EC2AbstractSlave slave : slaves) {
+                if (slave != null) {
+                    slave.getTimeline()
+                            .started(requestedAt)
+                            .markAt(ProvisioningTimeline.Phase.CAPACITY_CHECKED, capacityCheckedAt);
+                }
+            }
+            return slaves;
+        } finally {
+            reservation.rollback();
+        }
     }
 
+    /**
+     * Provisions agents for the label from its matching templates, in the order they are defined.
+     * <p>
+     * Each template tries to cover the workload not yet covered by the templates that succeeded. Rather than waiting
+     * for a template to fail, the next one is also tried once it took {@link #PROVISION_STAGGER_MS}, so a template that
+     * is slow to fail for lack of capacity does not hold up the others. Each attempt claims its share of the workload
+     * before calling EC2 and gives back what it could not launch, so the next template is only tried while some of the
+     * workload is not claimed. The first templates to succeed win: a template that has not called EC2 yet when the
+     * workload gets covered gives up. The agents of the templates that already called EC2 are always returned, even
+     * if the provisioning is interrupted meanwhile.
+     */
     @Override
     public Collection<PlannedNode> provision(final Label label, int excessWorkload) {
         final Collection<SlaveTemplate> matchingTemplates = getTemplates(label);
@@ -849,53 +1035,126 @@ public abstract class EC2Cloud extends Cloud {
             return Collections.emptyList();
         }
 
-        for (SlaveTemplate t : matchingTemplates) {
-            try {
-                LOGGER.log(
-                        Level.INFO,
-                        "{0}. Attempting to provision agent needed by excess workload of " + excessWorkload + " units",
-                        t);
-                int number = Math.max(excessWorkload / t.getNumExecutors(), 1);
-                final List<EC2AbstractSlave> slaves = getNewOrExistingAvailableSlave(t, number, false);
-
-                if (slaves == null || slaves.isEmpty()) {
-                    LOGGER.warning("Can't raise nodes for " + t);
+        AtomicInteger remainingWorkload = new AtomicInteger(excessWorkload);
+        AtomicInteger unclaimedWorkload = new AtomicInteger(excessWorkload);
+        AtomicBoolean covered = new AtomicBoolean();
+        CompletionService<List<PlannedNode>> attempts =
+                new ExecutorCompletionService<>(Computer.threadPoolForRemoting);
+        Iterator<SlaveTemplate> nextTemplates = matchingTemplates.iterator();
+        int running = 0;
+        boolean interrupted = false;
+        try {
+            while (!covered.get() && (running > 0 || nextTemplates.hasNext())) {
+                Future<List<PlannedNode>> done = null;
+                if (running > 0) {
+                    if (nextTemplates.hasNext() && PROVISION_STAGGER_MS >= 0 && unclaimedWorkload.get() > 0) {
+                        done = attempts.poll(PROVISION_STAGGER_MS, TimeUnit.MILLISECONDS);
+                    } else {
+                        done = attempts.take();
+                    }
+                }
+                if (done == null) {
+                    SlaveTemplate t = nextTemplates.next();
+                    attempts.submit(() -> provisionAttempt(t, remainingWorkload, unclaimedWorkload, covered));
+                    running++;
                     continue;
                 }
+                running--;
+                plannedNodes.addAll(getAttemptResult(done));
+            }
+        } catch (InterruptedException e) {
+            covered.set(true);
+            interrupted = true;
+            LOGGER.log(Level.WARNING, "Interrupted while provisioning nodes for " + label, e);
+        }
+        // the attempts that are left either give up right away or already called EC2, so their agents are kept
+        while (running > 0) {
+            try {
+                plannedNodes.addAll(getAttemptResult(attempts.take()));
+                running--;
+            } catch (InterruptedException e) {
+                covered.set(true);
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.log(Level.INFO, "We have now {0} computers, waiting for {1} more", new Object[] {
+            jenkinsInstance.getComputers().length, plannedNodes.size()
+        });
+        return plannedNodes;
+    }
 
-                for (final EC2AbstractSlave slave : slaves) {
-                    if (slave == null) {
-                        LOGGER.warning("Can't raise node for " + t);
-                        continue;
-                    }
+    private static List<PlannedNode> getAttemptResult(Future<List<PlannedNode>> attempt) throws InterruptedException {
+        try {
+            return attempt.get();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Exception during provisioning", e.getCause());
+            return Collections.emptyList();
+        }
+    }
 
-                    plannedNodes.add(createPlannedNode(t, slave));
-                    excessWorkload -= t.getNumExecutors();
-                }
+    /**
+     * Provisions agents from a template for the workload that no other attempt claimed.
+     */
+    private List<PlannedNode> provisionAttempt(
+            SlaveTemplate t, AtomicInteger remainingWorkload, AtomicInteger unclaimedWorkload, AtomicBoolean covered) {
+        List<PlannedNode> plannedNodes = new ArrayList<>();
+        int numExecutors = t.getNumExecutors();
+        // claimed before calling EC2, so that an attempt started meanwhile does not launch for the same workload
+        int excessWorkload = unclaimedWorkload.getAndUpdate(
+                w -> w > 0 ? w - Math.max(w / numExecutors, 1) * numExecutors : w);
+        if (excessWorkload <= 0) {
+            return plannedNodes;
+        }
+        int number = Math.max(excessWorkload / numExecutors, 1);
+        int launched = 0;
+        try {
+            LOGGER.log(
+                    Level.INFO,
+                    "{0}. Attempting to provision agent needed by excess workload of " + excessWorkload + " units",
+                    t);
+            final List<EC2AbstractSlave> slaves = getNewOrExistingAvailableSlave(t, number, false, covered::get);
 
-                LOGGER.log(Level.INFO, "{0}. Attempting provision finished, excess workload: " + excessWorkload, t);
-                if (excessWorkload == 0) {
-                    break;
+            if (slaves == null || slaves.isEmpty()) {
+                LOGGER.warning("Can't raise nodes for " + t);
+                return plannedNodes;
+            }
+
+            for (final EC2AbstractSlave slave : slaves) {
+                if (slave == null) {
+                    LOGGER.warning("Can't raise node for " + t);
+                    continue;
                 }
-            } catch (AmazonServiceException e) {
-                LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
-                if (e.getErrorCode().equals("RequestExpired")
-                        || e.getErrorCode().equals("ExpiredToken")) {
-                    // A RequestExpired or ExpiredToken error can indicate that credentials have expired so reconnect
-                    LOGGER.log(Level.INFO, "Reconnecting to EC2 due to RequestExpired or ExpiredToken error");
-                    try {
-                        reconnectToEc2();
-                    } catch (IOException e2) {
-                        LOGGER.log(Level.WARNING, "Failed to reconnect ec2", e2);
-                    }
+
+                plannedNodes.add(createPlannedNode(t, slave));
+                launched++;
+                excessWorkload = remainingWorkload.addAndGet(-numExecutors);
+            }
+
+            LOGGER.log(Level.INFO, "{0}. Attempting provision finished, excess workload: " + excessWorkload, t);
+            if (excessWorkload <= 0) {
+                covered.set(true);
+            }
+        } catch (AmazonServiceException e) {
+            LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
+            if (e.getErrorCode().equals("RequestExpired")
+                    || e.getErrorCode().equals("ExpiredToken")) {
+                // A RequestExpired or ExpiredToken error can indicate that credentials have expired so reconnect
+                LOGGER.log(Level.INFO, "Reconnecting to EC2 due to RequestExpired or ExpiredToken error");
+                try {
+                    reconnectToEc2();
+                } catch (IOException e2) {
+                    LOGGER.log(Level.WARNING, "Failed to reconnect ec2", e2);
                 }
-            } catch (AmazonClientException | IOException e) {
-                LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
             }
+        } catch (AmazonClientException | IOException e) {
+            LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
+        } finally {
+            // gives back the share this attempt could not launch to the next templates
+            unclaimedWorkload.addAndGet(Math.max(number - launched, 0) * numExecutors);
         }
-        LOGGER.log(Level.INFO, "We have now {0} computers, waiting for {1} more", new Object[] {
-            jenkinsInstance.getComputers().length, plannedNodes.size()
-        });
         return plannedNodes;
     }
 
@@ -916,14 +1175,24 @@ public abstract class EC2Cloud extends Cloud {
     }
 
     public void provision(SlaveTemplate t, int number) {
+        provisionNodes(t, number);
+    }
+
+    /**
+     * Provisions agents from the given template and adds them to Jenkins.
+     *
+     * @return the agents added, empty if none could be provisioned
+     */
+    @NonNull
+    List<EC2AbstractSlave> provisionNodes(SlaveTemplate t, int number) {
 
         Jenkins jenkinsInstance = Jenkins.get();
         if (jenkinsInstance.isQuietingDown()) {
             LOGGER.log(Level.FINE, "Not provisioning nodes, Jenkins instance is quieting down");
-            return;
+            return Collections.emptyList();
         } else if (jenkinsInstance.isTerminating()) {
             LOGGER.log(Level.FINE, "Not provisioning nodes, Jenkins instance is terminating");
-            return;
+            return Collections.emptyList();
         }
 
         try {
@@ -932,7 +1201,7 @@ public abstract class EC2Cloud extends Cloud {
 
             if (slaves == null || slaves.isEmpty()) {
                 LOGGER.warning("Can't raise nodes for " + t);
-                return;
+                return Collections.emptyList();
             }
 
             attachSlavesToJenkins(jenkinsInstance, slaves, t);
@@ -941,9 +1210,59 @@ public abstract class EC2Cloud extends Cloud {
             LOGGER.log(Level.INFO, "We have now {0} computers, waiting for {1} more", new Object[] {
                 Jenkins.get().getComputers().length, number
             });
+            return slaves;
         } catch (AmazonClientException | IOException e) {
             LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Launches instances for the warm pool of the given template, up to its size and within the instance caps.
+     * Instances already stopped in the pool and agents still warming up count towards its size.
+     */
+    void replenishWarmPool(SlaveTemplate t) throws AmazonClientException, IOException {
+        int warming = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof EC2AbstractSlave) {
+                EC2AbstractSlave slave = (EC2AbstractSlave) node;
+                if (slave.warming
+                        && Objects.equals(slave.cloudName, name)
+                        && Objects.equals(slave.templateDescription, t.description)) {
+                    warming++;
+                }
+            }
+        }
+
+        List<EC2AbstractSlave> slaves;
+        // The pool must not be counted while a provisioning wakes one of its instances
+        synchronized (t) {
+            int missing = t.getWarmPoolSize() - warming - t.countWarmInstances();
+            if (missing <= 0) {
+                return;
+            }
+
+            FleetStateCache.CapacityReservation reservation;
+            try {
+                slaveCountingLock.lock();
+                missing = Math.min(missing, getPossibleNewSlavesCount(t));
+                if (missing <= 0) {
+                    LOGGER.log(Level.FINE, "{0}. Not filling the warm pool - no capacity for instances", t);
+                    return;
+                }
+                reservation = fleetState.reserve(t, missing);
+            } finally {
+                slaveCountingLock.unlock();
+            }
+
+            try {
+                slaves = t.provisionWarmPool(reservation.getSlots());
+                reservation.commit(slaves);
+            } finally {
+                reservation.rollback();
+            }
         }
+        attachSlavesToJenkins(Jenkins.get(), slaves, t);
     }
 
     /**
@@ -970,7 +1289,7 @@ public abstract class EC2Cloud extends Cloud {
         }
     }
 
-    private PlannedNode createPlannedNode(final SlaveTemplate t, final EC2AbstractSlave slave) {
+    PlannedNode createPlannedNode(final SlaveTemplate t, final EC2AbstractSlave slave) {
         return new PlannedNode(
                 t.getDisplayName(),
                 Computer.threadPoolForRemoting.submit(new Callable<Node>() {
@@ -1009,6 +1328,7 @@ public abstract class EC2Cloud extends Cloud {
                             InstanceStateName state = InstanceStateName.fromValue(
                                     instance.getState().getName());
                             if (state.equals(InstanceStateName.Running)) {
+                                slave.getTimeline().mark(ProvisioningTimeline.Phase.RUNNING);
                                 // Spot instance are not reconnected automatically,
                                 // but could be new orphans that has the option enable
                                 Computer c = slave.toComputer();
@@ -1113,7 +1433,9 @@ public abstract class EC2Cloud extends Cloud {
 
     private AmazonEC2 reconnectToEc2() throws IOException {
         synchronized (this) {
-            connection = AmazonEC2Factory.getInstance().connect(createCredentialsProvider(), getEc2EndpointUrl());
+            AmazonEC2Factory factory = new InstrumentedAmazonEC2Factory(
+                    new RateLimitedAmazonEC2Factory(AmazonEC2Factory.getInstance(), rateLimiter), apiMetrics, null);
+            connection = factory.connect(createCredentialsProvider(), getEc2EndpointUrl());
             return connection;
         }
     }
@@ -1421,7 +1743,8 @@ public abstract class EC2Cloud extends Cloud {
 
                 AWSCredentialsProvider credentialsProvider = createCredentialsProvider(
                         useInstanceProfileForCredentials, credentialsId, roleArn, roleSessionName, region);
-                AmazonEC2 ec2 = AmazonEC2Factory.getInstance().connect(credentialsProvider, ec2endpoint);
+                AmazonEC2 ec2 =
+                        InstrumentedAmazonEC2Factory.forFormValidation().connect(credentialsProvider, ec2endpoint);
                 ec2.describeInstances();
 
                 if (privateKey.trim().length() > 0) {
@@ -1493,7 +1816,10 @@ public abstract class EC2Cloud extends Cloud {
         @Override
         protected void doRun() throws IOException {
             Jenkins instance = Jenkins.get();
-            if (instance.clouds != null) {
+            if (instance.clouds == null) {
+                return;
+            }
+            try (EC2ApiCaller.Scope scope = EC2ApiCaller.MONITOR.enter()) {
                 for (Cloud cloud : instance.clouds) {
                     if (cloud instanceof EC2Cloud) {
                         EC2Cloud ec2_cloud = (EC2Cloud) cloud;
@@ -27,11 +27,15 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.*;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Util;
 import hudson.model.Node;
+import hudson.plugins.ec2.ssh.verifiers.ConsoleHostKeyWatcher;
 import hudson.slaves.SlaveComputer;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kohsuke.stapler.HttpRedirect;
@@ -50,7 +54,15 @@ public class EC2Computer extends SlaveComputer {
      */
     private volatile Instance ec2InstanceDescription;
 
-    private volatile Boolean isNitro;
+    /**
+     * Whether each instance type is based on Nitro, which does not change, so that it is looked up once per type.
+     */
+    private static final Map<String, Boolean> NITRO_INSTANCE_TYPES = new ConcurrentHashMap<>();
+
+    /**
+     * When EC2 warned that it is about to reclaim the spot instance, 0 if it did not.
+     */
+    private volatile long spotInterruptionNoticeTime;
 
     public EC2Computer(EC2AbstractSlave slave) {
         super(slave);
@@ -88,8 +100,9 @@ public class EC2Computer extends SlaveComputer {
     @CheckForNull
     public SlaveTemplate getSlaveTemplate() {
         EC2AbstractSlave node = getNode();
-        if (node != null) {
-            return node.getCloud().getTemplate(node.templateDescription);
+        EC2Cloud cloud = node != null ? node.getCloud() : null;
+        if (cloud != null) {
+            return cloud.getTemplate(node.templateDescription);
         }
         return null;
     }
@@ -119,9 +132,30 @@ public class EC2Computer extends SlaveComputer {
 
     private GetConsoleOutputResult getDecodedConsoleOutputResponse()
             throws AmazonClientException, InterruptedException {
-        AmazonEC2 ec2 = getCloud().connect();
-        GetConsoleOutputRequest request = new GetConsoleOutputRequest(getInstanceId());
-        if (checkIfNitro()) {
+        String instanceType;
+        try {
+            instanceType = describeInstance().getInstanceType();
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.WARNING, "Could not describe the instance to check if it is nitro based", e);
+            instanceType = null;
+        }
+        return getConsoleOutput(getCloud(), getInstanceId(), instanceType);
+    }
+
+    /**
+     * Gets the EC2 decoded console output of an instance, whether or not its agent has a computer yet.
+     */
+    static String getDecodedConsoleOutput(
+            @NonNull EC2Cloud cloud, @NonNull String instanceId, @CheckForNull String instanceType)
+            throws AmazonClientException {
+        return getConsoleOutput(cloud, instanceId, instanceType).getDecodedOutput();
+    }
+
+    private static GetConsoleOutputResult getConsoleOutput(
+            EC2Cloud cloud, String instanceId, @CheckForNull String instanceType) throws AmazonClientException {
+        AmazonEC2 ec2 = cloud.connect();
+        GetConsoleOutputRequest request = new GetConsoleOutputRequest(instanceId);
+        if (checkIfNitro(cloud, instanceType)) {
             // Can only be used if instance has hypervisor Nitro
             request.setLatest(true);
         }
@@ -129,29 +163,35 @@ public class EC2Computer extends SlaveComputer {
     }
 
     /**
-     * Check if instance has hypervisor Nitro
+     * Check if instances of the type have hypervisor Nitro
      */
-    private boolean checkIfNitro() throws AmazonClientException, InterruptedException {
+    private static boolean checkIfNitro(EC2Cloud cloud, @CheckForNull String instanceType)
+            throws AmazonClientException {
+        if (instanceType == null) {
+            return false;
+        }
+        Boolean isNitro = NITRO_INSTANCE_TYPES.get(instanceType);
+        if (isNitro != null) {
+            return isNitro;
+        }
         try {
-            if (isNitro == null) {
-                DescribeInstanceTypesRequest request = new DescribeInstanceTypesRequest();
-                request.setInstanceTypes(
-                        Collections.singletonList(describeInstance().getInstanceType()));
-                AmazonEC2 ec2 = getCloud().connect();
-                DescribeInstanceTypesResult result = ec2.describeInstanceTypes(request);
-                if (result.getInstanceTypes().size() == 1) {
-                    String hypervisor = result.getInstanceTypes().get(0).getHypervisor();
-                    isNitro = hypervisor.equals("nitro");
-                } else {
-                    isNitro = false;
-                }
+            DescribeInstanceTypesRequest request = new DescribeInstanceTypesRequest();
+            request.setInstanceTypes(Collections.singletonList(instanceType));
+            AmazonEC2 ec2 = cloud.connect();
+            DescribeInstanceTypesResult result = ec2.describeInstanceTypes(request);
+            if (result.getInstanceTypes().size() == 1) {
+                String hypervisor = result.getInstanceTypes().get(0).getHypervisor();
+                isNitro = "nitro".equals(hypervisor);
+            } else {
+                isNitro = false;
             }
-            return isNitro;
         } catch (AmazonClientException e) {
+            // not cached, a throttled request must not tell the type is not nitro based for good
             LOGGER.log(Level.WARNING, "Could not describe-instance-types to check if instance is nitro based", e);
-            isNitro = false;
-            return isNitro;
+            return false;
         }
+        NITRO_INSTANCE_TYPES.put(instanceType, isNitro);
+        return isNitro;
     }
 
     /**
@@ -165,7 +205,7 @@ public class EC2Computer extends SlaveComputer {
      */
     public Instance describeInstance() throws AmazonClientException, InterruptedException {
         if (ec2InstanceDescription == null) {
-            ec2InstanceDescription = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+            ec2InstanceDescription = CloudHelper.getSharedInstance(getInstanceId(), getCloud());
         }
         return ec2InstanceDescription;
     }
@@ -174,20 +214,75 @@ public class EC2Computer extends SlaveComputer {
      * This will flush any cached description held by {@link #describeInstance()}.
      */
     public Instance updateInstanceDescription() throws AmazonClientException, InterruptedException {
-        return ec2InstanceDescription = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+        return ec2InstanceDescription = CloudHelper.getSharedInstance(getInstanceId(), getCloud());
     }
 
     /**
      * Gets the current state of the instance.
      *
      * <p>
-     * Unlike {@link #describeInstance()}, this method always return the current status by calling EC2.
+     * Unlike {@link #describeInstance()}, this method always return the current status by calling EC2. Lookups made
+     * at the same time by other computers of the cloud share that call, and its result is reused for a couple of
+     * seconds.
      */
     public InstanceState getState() throws AmazonClientException, InterruptedException {
-        ec2InstanceDescription = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+        ec2InstanceDescription = CloudHelper.getSharedInstance(getInstanceId(), getCloud());
         return InstanceState.find(ec2InstanceDescription.getState().getName());
     }
 
+    /**
+     * Records a state change of the instance reported by an {@link InstanceStateFeed}.
+     */
+    void instanceStateChanged(@NonNull InstanceState state) {
+        Instance description = ec2InstanceDescription;
+        if (description != null) {
+            ec2InstanceDescription = CloudHelper.withState(description, state);
+        }
+    }
+
+    /**
+     * Records that EC2 is about to reclaim the spot instance, and drains the agent the first time it is told so, if
+     * its template {@link SlaveTemplate#isMonitorSpotInterruptions() monitors the interruptions}.
+     *
+     * @see SpotInterruptionHandler
+     */
+    void spotInterruptionNoticed(long time) {
+        SlaveTemplate template = getSlaveTemplate();
+        if (template == null || !template.isMonitorSpotInterruptions()) {
+            return;
+        }
+        synchronized (this) {
+            if (spotInterruptionNoticeTime != 0) {
+                return;
+            }
+            spotInterruptionNoticeTime = time;
+        }
+        SpotInterruptionHandler.interruptionNoticed(this, template, time);
+    }
+
+    /**
+     * Whether the instance is a spot instance, including the spot share of the instances launched by a fleet.
+     */
+    boolean isSpot() throws AmazonClientException, InterruptedException {
+        if (getNode() instanceof EC2SpotSlave) {
+            return true;
+        }
+        SlaveTemplate template = getSlaveTemplate();
+        FleetConfiguration fleetConfig = template == null ? null : template.getFleetConfig();
+        return fleetConfig != null
+                && fleetConfig.getSpotPercentage() > 0
+                && InstanceLifecycleType.Spot.toString().equals(describeInstance().getInstanceLifecycle());
+    }
+
+    /**
+     * When EC2 warned that it is about to reclaim the spot instance of this computer, in milliseconds since the epoch.
+     *
+     * @return the time of the warning, or 0 if there was none
+     */
+    public long getSpotInterruptionNoticeTime() {
+        return spotInterruptionNoticeTime;
+    }
+
     /**
      * Number of milli-secs since the instance was started.
      */
@@ -256,10 +351,56 @@ public class EC2Computer extends SlaveComputer {
         return node == null ? "" : node.getSlaveCommandSuffix();
     }
 
+    /**
+     * Records that the agent reached the phase of its provisioning, unless it already did.
+     */
+    public void mark(ProvisioningTimeline.Phase phase) {
+        EC2AbstractSlave node = getNode();
+        if (node != null) {
+            node.getTimeline().mark(phase);
+        }
+    }
+
     public void onConnected() {
+        // the host key is saved from now on
+        ConsoleHostKeyWatcher.stop(getInstanceId());
         EC2AbstractSlave node = getNode();
+        // only the first connection of an agent launched by this controller tells how long its instance took to boot
+        boolean launched = node != null && recordTimeline(node);
+        if (node != null && node.warming) {
+            node.park();
+            return;
+        }
         if (node != null) {
             node.onConnected();
         }
+        SpotInterruptionHandler.onOnline(this);
+
+        SlaveTemplate template = getSlaveTemplate();
+        if (launched && template != null && template.isPredictiveProvisioning()) {
+            try {
+                template.getBootLatency().record(System.currentTimeMillis() - getLaunchTime());
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.FINE, "Failed to get the launch time of " + getName(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return whether the agent was launched by this controller and connects for the first time
+     */
+    private boolean recordTimeline(EC2AbstractSlave node) {
+        ProvisioningTimeline timeline = node.getTimeline().mark(ProvisioningTimeline.Phase.CONNECTED);
+        if (!timeline.takeForRecording()) {
+            return false;
+        }
+        SlaveTemplate template = getSlaveTemplate();
+        if (template != null) {
+            template.getProvisioningTimes().record(timeline);
+            LOGGER.log(Level.FINE, "Provisioned {0}: {1}", new Object[] {getName(), timeline});
+        }
+        return true;
     }
 }
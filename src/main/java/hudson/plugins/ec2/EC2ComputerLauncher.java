@@ -25,6 +25,7 @@ package hudson.plugins.ec2;
 
 import com.amazonaws.AmazonClientException;
 import hudson.model.TaskListener;
+import hudson.plugins.ec2.util.EC2ApiCaller;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 import java.io.IOException;
@@ -41,7 +42,7 @@ public abstract class EC2ComputerLauncher extends ComputerLauncher {
 
     @Override
     public void launch(SlaveComputer slaveComputer, TaskListener listener) {
-        try {
+        try (EC2ApiCaller.Scope scope = EC2ApiCaller.LAUNCHER.enter()) {
             EC2Computer computer = (EC2Computer) slaveComputer;
             launchScript(computer, listener);
         } catch (AmazonClientException | IOException e) {
@@ -1,10 +1,6 @@
 package hudson.plugins.ec2;
 
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.*;
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Node;
 import hudson.plugins.ec2.ssh.EC2MacLauncher;
@@ -436,37 +432,7 @@ public class EC2OndemandSlave extends EC2AbstractSlave {
      */
     @Override
     public void terminate() {
-        if (terminateScheduled.getCount() == 0) {
-            synchronized (terminateScheduled) {
-                if (terminateScheduled.getCount() == 0) {
-                    Computer.threadPoolForRemoting.submit(() -> {
-                        try {
-                            if (!isAlive(true)) {
-                                /*
-                                 * The node has been killed externally, so we've nothing to do here
-                                 */
-                                LOGGER.info("EC2 instance already terminated: " + getInstanceId());
-                            } else {
-                                AmazonEC2 ec2 = getCloud().connect();
-                                TerminateInstancesRequest request =
-                                        new TerminateInstancesRequest(Collections.singletonList(getInstanceId()));
-                                ec2.terminateInstances(request);
-                                LOGGER.info("Terminated EC2 instance (terminated): " + getInstanceId());
-                            }
-                            Jenkins.get().removeNode(this);
-                            LOGGER.info("Removed EC2 instance from jenkins controller: " + getInstanceId());
-                        } catch (AmazonClientException | IOException e) {
-                            LOGGER.log(Level.WARNING, "Failed to terminate EC2 instance: " + getInstanceId(), e);
-                        } finally {
-                            synchronized (terminateScheduled) {
-                                terminateScheduled.countDown();
-                            }
-                        }
-                    });
-                    terminateScheduled.reset();
-                }
-            }
-        }
+        queueTermination(null, false);
     }
 
     @Override
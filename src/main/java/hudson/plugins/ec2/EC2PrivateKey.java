@@ -27,6 +27,8 @@ import static hudson.plugins.ec2.EC2Cloud.SSH_PRIVATE_KEY_FILEPATH;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeKeyPairsRequest;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.KeyPairInfo;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.util.Secret;
@@ -38,7 +40,12 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.UnrecoverableKeyException;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
@@ -60,6 +67,10 @@ public class EC2PrivateKey {
 
     private final Secret privateKey;
 
+    private transient volatile String fingerprint;
+
+    private transient volatile String publicFingerprint;
+
     EC2PrivateKey(String privateKey) {
         this.privateKey = Secret.fromString(privateKey.trim());
     }
@@ -81,23 +92,29 @@ public class EC2PrivateKey {
      *    (password protected private keys are not yet supported)
      */
     public String getFingerprint() throws IOException {
-        String pemData = privateKey.getPlainText();
-        if (pemData == null || pemData.isEmpty()) {
-            throw new IOException("This private key cannot be empty");
-        }
-        try {
-            return PEMEncodable.decode(pemData).getPrivateKeyFingerprint();
-        } catch (UnrecoverableKeyException e) {
-            throw new IOException("This private key is password protected, which isn't supported yet");
+        if (fingerprint == null) {
+            String pemData = privateKey.getPlainText();
+            if (pemData == null || pemData.isEmpty()) {
+                throw new IOException("This private key cannot be empty");
+            }
+            try {
+                fingerprint = PEMEncodable.decode(pemData).getPrivateKeyFingerprint();
+            } catch (UnrecoverableKeyException e) {
+                throw new IOException("This private key is password protected, which isn't supported yet");
+            }
         }
+        return fingerprint;
     }
 
     public String getPublicFingerprint() throws IOException {
-        try {
-            return PEMEncodable.decode(privateKey.getPlainText()).getPublicKeyFingerprint();
-        } catch (UnrecoverableKeyException e) {
-            throw new IOException("This private key is password protected, which isn't supported yet");
+        if (publicFingerprint == null) {
+            try {
+                publicFingerprint = PEMEncodable.decode(privateKey.getPlainText()).getPublicKeyFingerprint();
+            } catch (UnrecoverableKeyException e) {
+                throw new IOException("This private key is password protected, which isn't supported yet");
+            }
         }
+        return publicFingerprint;
     }
 
     /**
@@ -120,7 +137,22 @@ public class EC2PrivateKey {
     public com.amazonaws.services.ec2.model.KeyPair find(AmazonEC2 ec2) throws IOException, AmazonClientException {
         String fp = getFingerprint();
         String pfp = getPublicFingerprint();
-        for (KeyPairInfo kp : ec2.describeKeyPairs().getKeyPairs()) {
+        Set<String> fingerprints = new LinkedHashSet<>(
+                Arrays.asList(fp, pfp, fp.toLowerCase(Locale.ROOT), pfp.toLowerCase(Locale.ROOT)));
+        DescribeKeyPairsRequest request =
+                new DescribeKeyPairsRequest().withFilters(new Filter("fingerprint").withValues(fingerprints));
+        com.amazonaws.services.ec2.model.KeyPair keyPair =
+                find(ec2.describeKeyPairs(request).getKeyPairs(), fp, pfp);
+        if (keyPair == null) {
+            // Some EC2 implementations don't support the fingerprint filter (Eucalyptus)
+            keyPair = find(ec2.describeKeyPairs().getKeyPairs(), fp, pfp);
+        }
+        return keyPair;
+    }
+
+    @CheckForNull
+    private com.amazonaws.services.ec2.model.KeyPair find(List<KeyPairInfo> keyPairs, String fp, String pfp) {
+        for (KeyPairInfo kp : keyPairs) {
             if (kp.getKeyFingerprint().equalsIgnoreCase(fp)) {
                 com.amazonaws.services.ec2.model.KeyPair keyPair = new com.amazonaws.services.ec2.model.KeyPair();
                 keyPair.setKeyName(kp.getKeyName());
@@ -30,6 +30,7 @@ import hudson.model.Executor;
 import hudson.model.ExecutorListener;
 import hudson.model.Label;
 import hudson.model.Queue;
+import hudson.plugins.ec2.util.EC2ApiCaller;
 import hudson.plugins.ec2.util.MinimumInstanceChecker;
 import hudson.slaves.RetentionStrategy;
 import java.time.Clock;
@@ -102,7 +103,10 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
                 long currentTime = this.clock.millis();
 
                 if (currentTime > nextCheckAfter) {
-                    long intervalMins = internalCheck(c);
+                    long intervalMins;
+                    try (EC2ApiCaller.Scope scope = EC2ApiCaller.RETENTION.enter()) {
+                        intervalMins = internalCheck(c);
+                    }
                     nextCheckAfter = currentTime + TimeUnit.MINUTES.toMillis(intervalMins);
                     return intervalMins;
                 } else {
@@ -345,14 +349,24 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
 
     @Override
     public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        recordDuration(executor, durationMS);
         postJobAction(executor);
     }
 
     @Override
     public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        recordDuration(executor, durationMS);
         postJobAction(executor);
     }
 
+    private void recordDuration(Executor executor, long durationMS) {
+        EC2Computer computer = (EC2Computer) executor.getOwner();
+        SlaveTemplate template = computer != null ? computer.getSlaveTemplate() : null;
+        if (template != null && template.isPredictiveProvisioning()) {
+            template.getDemandForecast().recordDuration(durationMS);
+        }
+    }
+
     private void postJobAction(Executor executor) {
         EC2Computer computer = (EC2Computer) executor.getOwner();
         if (computer != null) {
@@ -4,16 +4,25 @@ import static hudson.plugins.ec2.EC2Cloud.EC2_REQUEST_EXPIRED_ERROR_CODE;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.Instance;
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.plugins.ec2.util.EC2ApiCaller;
 import hudson.plugins.ec2.util.MinimumInstanceChecker;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
 
 /**
  * @author Bruno Meneguello
@@ -37,31 +46,86 @@ public class EC2SlaveMonitor extends AsyncPeriodicWork {
 
     @Override
     protected void execute(TaskListener listener) throws IOException, InterruptedException {
-        removeDeadNodes();
+        try (EC2ApiCaller.Scope scope = EC2ApiCaller.MONITOR.enter()) {
+            removeDeadNodes();
+        }
+        // provisions the missing instances, which does not give way
         MinimumInstanceChecker.checkForMinimumInstances();
     }
 
     private void removeDeadNodes() {
+        List<EC2AbstractSlave> slaves = new ArrayList<>();
         for (Node node : Jenkins.get().getNodes()) {
             if (node instanceof EC2AbstractSlave) {
-                final EC2AbstractSlave ec2Slave = (EC2AbstractSlave) node;
-                try {
-                    if (!ec2Slave.isAlive(true)) {
-                        LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
-                        ec2Slave.terminate();
-                    }
-                } catch (AmazonClientException e) {
-                    if (e instanceof AmazonEC2Exception
-                            && EC2_REQUEST_EXPIRED_ERROR_CODE.equals(((AmazonEC2Exception) e).getErrorCode())) {
-                        LOGGER.info("EC2 request expired, skipping consideration of " + ec2Slave.getInstanceId()
-                                + " due to unknown state.");
-                    } else {
-                        LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
-                        removeNode(ec2Slave);
-                    }
+                slaves.add((EC2AbstractSlave) node);
+            }
+        }
+
+        Map<EC2AbstractSlave, Instance> fetched = fetchInstances(slaves);
+        for (EC2AbstractSlave ec2Slave : slaves) {
+            try {
+                boolean alive;
+                if (fetched.containsKey(ec2Slave)) {
+                    ec2Slave.updateLiveInstanceData(fetched.get(ec2Slave), System.currentTimeMillis());
+                    alive = ec2Slave.isAlive(false);
+                } else {
+                    alive = ec2Slave.isAlive(true);
+                }
+                if (!alive) {
+                    LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
+                    ec2Slave.terminate();
+                }
+            } catch (AmazonClientException e) {
+                if (e instanceof AmazonEC2Exception
+                        && EC2_REQUEST_EXPIRED_ERROR_CODE.equals(((AmazonEC2Exception) e).getErrorCode())) {
+                    LOGGER.info("EC2 request expired, skipping consideration of " + ec2Slave.getInstanceId()
+                            + " due to unknown state.");
+                } else {
+                    LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
+                    removeNode(ec2Slave);
+                }
+            }
+        }
+    }
+
+    /**
+     * Describes the instances of the given agents with a few batched requests per cloud instead of one request per
+     * agent. Agents missing from the result, such as those whose instance EC2 does not report (yet), or whose cloud
+     * failed to answer, are left for {@link EC2AbstractSlave#isAlive(boolean)} to look up on their own.
+     */
+    private static Map<EC2AbstractSlave, Instance> fetchInstances(List<EC2AbstractSlave> slaves) {
+        Map<EC2Cloud, List<EC2AbstractSlave>> slavesByCloud = new LinkedHashMap<>();
+        for (EC2AbstractSlave ec2Slave : slaves) {
+            EC2Cloud cloud = ec2Slave.getCloud();
+            if (cloud != null && StringUtils.isNotEmpty(ec2Slave.getInstanceId())) {
+                slavesByCloud.computeIfAbsent(cloud, c -> new ArrayList<>()).add(ec2Slave);
+            }
+        }
+
+        Map<EC2AbstractSlave, Instance> fetched = new IdentityHashMap<>();
+        for (Map.Entry<EC2Cloud, List<EC2AbstractSlave>> entry : slavesByCloud.entrySet()) {
+            List<EC2AbstractSlave> cloudSlaves = entry.getValue();
+            Map<String, Instance> instances;
+            try {
+                instances = CloudHelper.getInstances(
+                        cloudSlaves.stream().map(EC2AbstractSlave::getInstanceId).collect(Collectors.toList()),
+                        entry.getKey());
+            } catch (AmazonClientException e) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Failed to describe the instances of " + entry.getKey().getDisplayName()
+                                + ", checking them one by one",
+                        e);
+                continue;
+            }
+            for (EC2AbstractSlave ec2Slave : cloudSlaves) {
+                Instance instance = instances.get(ec2Slave.getInstanceId());
+                if (instance != null) {
+                    fetched.put(ec2Slave, instance);
                 }
             }
         }
+        return fetched;
     }
 
     private void removeNode(EC2AbstractSlave ec2Slave) {
@@ -2,15 +2,12 @@ package hudson.plugins.ec2;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
 import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
 import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.SpotInstanceState;
-import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
 import hudson.plugins.ec2.ssh.EC2UnixLauncher;
 import hudson.plugins.ec2.win.EC2WindowsLauncher;
@@ -179,69 +176,11 @@ public class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
      */
     @Override
     public void terminate() {
-        if (terminateScheduled.getCount() == 0) {
-            synchronized (terminateScheduled) {
-                if (terminateScheduled.getCount() == 0) {
-                    Computer.threadPoolForRemoting.submit(() -> {
-                        try {
-                            // Cancel the spot request
-                            AmazonEC2 ec2 = getCloud().connect();
-
-                            String instanceId = getInstanceId();
-                            List<String> requestIds = Collections.singletonList(spotInstanceRequestId);
-                            CancelSpotInstanceRequestsRequest cancelRequest =
-                                    new CancelSpotInstanceRequestsRequest(requestIds);
-                            try {
-                                ec2.cancelSpotInstanceRequests(cancelRequest);
-                                LOGGER.info("Cancelled Spot request: " + spotInstanceRequestId);
-                            } catch (AmazonClientException e) {
-                                // Spot request is no longer valid
-                                LOGGER.log(Level.WARNING, "Failed to cancel Spot request: " + spotInstanceRequestId, e);
-                            }
-
-                            // Terminate the agent if it is running
-                            if (instanceId != null && !instanceId.equals("")) {
-                                if (!super.isAlive(true)) {
-                                    /*
-                                     * The node has been killed externally, so we've nothing to do here
-                                     */
-                                    LOGGER.info("EC2 instance already terminated: " + instanceId);
-                                } else {
-                                    TerminateInstancesRequest request =
-                                            new TerminateInstancesRequest(Collections.singletonList(instanceId));
-                                    try {
-                                        ec2.terminateInstances(request);
-                                        LOGGER.info("Terminated EC2 instance (terminated): " + instanceId);
-                                    } catch (AmazonClientException e) {
-                                        // Spot request is no longer valid
-                                        LOGGER.log(
-                                                Level.WARNING,
-                                                "Failed to terminate the Spot instance: " + instanceId,
-                                                e);
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            LOGGER.log(Level.WARNING, "Failed to remove agent: ", e);
-                        } finally {
-                            // Remove the instance even if deletion failed, otherwise it will hang around forever in
-                            // the nodes page. One way for this to occur is that an instance was terminated
-                            // manually or a spot instance was killed due to pricing. If we don't remove the node,
-                            // we screw up auto-scaling, since it will continue to count against the quota.
-                            try {
-                                Jenkins.get().removeNode(this);
-                            } catch (IOException e) {
-                                LOGGER.log(Level.WARNING, "Failed to remove agent: " + name, e);
-                            }
-                            synchronized (terminateScheduled) {
-                                terminateScheduled.countDown();
-                            }
-                        }
-                    });
-                    terminateScheduled.reset();
-                }
-            }
-        }
+        // Remove the agent even if its instance could not be terminated, otherwise it will hang around forever in the
+        // nodes page. One way for this to occur is that an instance was terminated manually or a spot instance was
+        // killed due to pricing. If we don't remove the node, we screw up auto-scaling, since it will continue to count
+        // against the quota.
+        queueTermination(spotInstanceRequestId, true);
     }
 
     /**
@@ -0,0 +1,85 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.util.Objects;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Launches the instances of a template with an instant EC2 Fleet, which picks capacity from several instance types
+ * and subnets in a single call, and can mix on-demand and spot instances.
+ *
+ * @see FleetLauncher
+ */
+public final class FleetConfiguration extends AbstractDescribableImpl<FleetConfiguration> {
+
+    /**
+     * @deprecated the fleet launches the fallback instance types of the template, see
+     *     {@link SlaveTemplate#getFallbackInstanceTypes()}
+     */
+    @Deprecated
+    private String instanceTypes;
+
+    private int spotPercentage;
+
+    @DataBoundConstructor
+    public FleetConfiguration() {}
+
+    /**
+     * The share of the instances launched as spot instances, between 0 and 100.
+     */
+    public int getSpotPercentage() {
+        return spotPercentage;
+    }
+
+    @DataBoundSetter
+    public void setSpotPercentage(int spotPercentage) {
+        this.spotPercentage = Math.max(0, Math.min(100, spotPercentage));
+    }
+
+    /**
+     * Moves the instance types once configured here after the given fallback instance types of the template.
+     */
+    String migrateInstanceTypes(String fallbackInstanceTypes) {
+        if (instanceTypes == null) {
+            return fallbackInstanceTypes;
+        }
+        String migrated = Util.fixNull(fallbackInstanceTypes) + " " + instanceTypes;
+        instanceTypes = null;
+        return Util.fixEmptyAndTrim(migrated);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || (this.getClass() != obj.getClass())) {
+            return false;
+        }
+        final FleetConfiguration config = (FleetConfiguration) obj;
+        return spotPercentage == config.spotPercentage;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(spotPercentage);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<FleetConfiguration> {
+        @Override
+        public String getDisplayName() {
+            return "fleetConfig";
+        }
+
+        public FormValidation doCheckSpotPercentage(@QueryParameter int value) {
+            if (value < 0 || value > 100) {
+                return FormValidation.error("The spot percentage must be between 0 and 100");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
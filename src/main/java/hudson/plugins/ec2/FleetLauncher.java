@@ -0,0 +1,441 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateFleetError;
+import com.amazonaws.services.ec2.model.CreateFleetInstance;
+import com.amazonaws.services.ec2.model.CreateFleetRequest;
+import com.amazonaws.services.ec2.model.CreateFleetResult;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DefaultTargetCapacityType;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplatesRequest;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplatesResult;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateConfigRequest;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateOverrides;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateOverridesRequest;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateSpecificationRequest;
+import com.amazonaws.services.ec2.model.FleetOnDemandAllocationStrategy;
+import com.amazonaws.services.ec2.model.FleetType;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceMetadataOptionsRequest;
+import com.amazonaws.services.ec2.model.InstanceNetworkInterfaceSpecification;
+import com.amazonaws.services.ec2.model.LaunchTemplate;
+import com.amazonaws.services.ec2.model.LaunchTemplateAndOverridesResponse;
+import com.amazonaws.services.ec2.model.LaunchTemplateBlockDeviceMappingRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateEbsBlockDeviceRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateIamInstanceProfileSpecificationRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateInstanceMetadataOptionsRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateInstanceNetworkInterfaceSpecificationRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplatePlacementRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateTagSpecificationRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplatesMonitoringRequest;
+import com.amazonaws.services.ec2.model.OnDemandOptionsRequest;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
+import com.amazonaws.services.ec2.model.ResourceType;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.SpotAllocationStrategy;
+import com.amazonaws.services.ec2.model.SpotOptionsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagSpecification;
+import com.amazonaws.services.ec2.model.TargetCapacitySpecificationRequest;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Launches the instances of a template with an instant EC2 Fleet, see {@link FleetConfiguration}.
+ * <p>
+ * A fleet launches from an EC2 launch template, which is derived from the {@code RunInstances} request the template
+ * would otherwise make. Its name is a digest of the template and of its content, so that an unchanged template reuses
+ * it and a changed one gets a new one, which replaces the launch templates the template created before. A launch
+ * template deleted behind the plugin's back is created again. The fleet then overrides its instance type and subnet
+ * with every combination of the instance types of the template, in order of preference, and of those of its subnets
+ * where its security groups are the ones of the request, and gets whatever capacity they have in one call.
+ */
+final class FleetLauncher {
+
+    private static final Logger LOGGER = Logger.getLogger(FleetLauncher.class.getName());
+
+    private static final String LAUNCH_TEMPLATE_PREFIX = "jenkins-ec2-";
+
+    /**
+     * The tag of the launch templates holding a digest of the cloud and the template they were created for.
+     */
+    static final String LAUNCH_TEMPLATE_OWNER_TAG = "jenkins-ec2-template";
+
+    /**
+     * The ids of the launch templates already created or looked up, by cloud and launch template name.
+     */
+    private static final Map<String, String> LAUNCH_TEMPLATE_IDS = new ConcurrentHashMap<>();
+
+    private FleetLauncher() {}
+
+    /**
+     * Launches up to the maximum count of the given request.
+     *
+     * @return the launched instances, possibly fewer than requested when capacity is short
+     * @throws AmazonEC2Exception with the first error reported by the fleet, if it launched nothing
+     */
+    @NonNull
+    static List<Instance> launch(
+            @NonNull SlaveTemplate template, @NonNull AmazonEC2 ec2, @NonNull RunInstancesRequest riRequest)
+            throws AmazonClientException {
+        FleetConfiguration config = template.getFleetConfig();
+        RequestLaunchTemplateData data = toLaunchTemplateData(riRequest);
+        List<String> subnetIds = getSubnetIds(template, ec2, riRequest);
+
+        CapacityErrorCache capacityErrors = template.getParent().getCapacityErrors();
+        CreateFleetResult result = null;
+        for (int attempt = 0; result == null; attempt++) {
+            String launchTemplateId = getLaunchTemplateId(template, ec2, data);
+            CreateFleetRequest request = toFleetRequest(
+                    launchTemplateId,
+                    template.getInstanceTypeList(),
+                    subnetIds,
+                    riRequest.getMaxCount(),
+                    config.getSpotPercentage(),
+                    capacityErrors,
+                    template.getZone());
+            LOGGER.log(Level.FINE, () -> template + ". Creating fleet: " + request);
+            String errorCode;
+            try {
+                result = ec2.createFleet(request);
+                errorCode = result.getInstances().isEmpty() && !result.getErrors().isEmpty()
+                        ? result.getErrors().get(0).getErrorCode()
+                        : null;
+            } catch (AmazonEC2Exception e) {
+                if (attempt > 0 || !isLaunchTemplateGone(e.getErrorCode())) {
+                    throw e;
+                }
+                errorCode = e.getErrorCode();
+            }
+            if (attempt == 0 && isLaunchTemplateGone(errorCode)) {
+                LOGGER.log(Level.INFO, "{0}. Launch template {1} is gone, creating it again", new Object[] {
+                    template, launchTemplateId
+                });
+                LAUNCH_TEMPLATE_IDS.values().remove(launchTemplateId);
+                result = null;
+            }
+        }
+
+        for (CreateFleetError error : result.getErrors()) {
+            LOGGER.log(Level.INFO, "{0}. Fleet could not launch {1}: {2} {3}", new Object[] {
+                template, error.getLaunchTemplateAndOverrides(), error.getErrorCode(), error.getErrorMessage()
+            });
+            FleetLaunchTemplateOverrides overrides = getOverrides(error.getLaunchTemplateAndOverrides());
+            if (overrides != null && CapacityErrorCache.isCapacityError(error.getErrorCode())) {
+                String pool = CapacityErrorCache.pool(overrides.getSubnetId(), template.getZone());
+                capacityErrors.recordError(overrides.getInstanceType(), pool);
+            }
+        }
+
+        List<String> instanceIds = new ArrayList<>();
+        for (CreateFleetInstance instance : result.getInstances()) {
+            LOGGER.log(Level.INFO, "{0}. Fleet launched {1} {2} instances: {3}", new Object[] {
+                template, instance.getLifecycle(), instance.getInstanceType(), instance.getInstanceIds()
+            });
+            instanceIds.addAll(instance.getInstanceIds());
+            FleetLaunchTemplateOverrides overrides = getOverrides(instance.getLaunchTemplateAndOverrides());
+            if (overrides != null) {
+                String pool = CapacityErrorCache.pool(overrides.getSubnetId(), template.getZone());
+                capacityErrors.recordSuccess(overrides.getInstanceType(), pool);
+            }
+        }
+        if (instanceIds.isEmpty() && !result.getErrors().isEmpty()) {
+            CreateFleetError error = result.getErrors().get(0);
+            AmazonEC2Exception e = new AmazonEC2Exception(error.getErrorMessage());
+            e.setErrorCode(error.getErrorCode());
+            e.setServiceName("AmazonEC2");
+            throw e;
+        }
+
+        // the agents need the described instances, which EC2 may not report yet right after the launch
+        Map<String, Instance> described = CloudHelper.getInstances(instanceIds, template.getParent());
+        List<Instance> instances = new ArrayList<>(instanceIds.size());
+        for (String instanceId : instanceIds) {
+            Instance instance = described.get(instanceId);
+            if (instance == null) {
+                instance = new Instance().withInstanceId(instanceId).withTags(getInstanceTags(riRequest));
+            }
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    /**
+     * The subnets of the template the fleet launches in: those where the security groups of the template are the ones
+     * of the request, which were resolved in the VPC of its subnet, since a fleet cannot override them by subnet.
+     */
+    static List<String> getSubnetIds(SlaveTemplate template, AmazonEC2 ec2, RunInstancesRequest riRequest) {
+        List<String> subnetIds = template.getSubnetIdList();
+        Set<String> groupIds = new HashSet<>(riRequest.getSecurityGroupIds());
+        for (InstanceNetworkInterfaceSpecification net : riRequest.getNetworkInterfaces()) {
+            groupIds.addAll(net.getGroups());
+        }
+        if (groupIds.isEmpty() || subnetIds.size() < 2) {
+            return subnetIds;
+        }
+
+        List<String> sameGroups = new ArrayList<>();
+        for (String subnetId : subnetIds) {
+            try {
+                if (groupIds.equals(new HashSet<>(template.getEc2SecurityGroups(ec2, subnetId)))) {
+                    sameGroups.add(subnetId);
+                    continue;
+                }
+            } catch (AmazonClientException e) {
+                LOGGER.log(Level.FINE, "Failed to get the security groups of subnet " + subnetId, e);
+            }
+            LOGGER.log(
+                    Level.FINE,
+                    "{0}. Leaving subnet {1} out of the fleet, its security groups are not {2}",
+                    new Object[] {template, subnetId, groupIds});
+        }
+        String subnetId = SlaveTemplate.getSubnetId(riRequest);
+        if (sameGroups.isEmpty() && subnetId != null) {
+            sameGroups.add(subnetId);
+        }
+        return sameGroups;
+    }
+
+    /**
+     * Whether the error tells that the launch template no longer exists.
+     */
+    static boolean isLaunchTemplateGone(@CheckForNull String errorCode) {
+        return errorCode != null
+                && (errorCode.startsWith("InvalidLaunchTemplateId.")
+                        || errorCode.startsWith("InvalidLaunchTemplateName.NotFound"));
+    }
+
+    /**
+     * Makes the request of a fleet of the given number of instances, trying the instance types in order in every
+     * subnet. The pools that recently lacked capacity are left out, unless all of them did.
+     */
+    static CreateFleetRequest toFleetRequest(
+            String launchTemplateId,
+            List<String> instanceTypes,
+            List<String> subnetIds,
+            int number,
+            int spotPercentage,
+            CapacityErrorCache capacityErrors,
+            String zone) {
+        List<FleetLaunchTemplateOverridesRequest> overrides = new ArrayList<>();
+        List<FleetLaunchTemplateOverridesRequest> exhausted = new ArrayList<>();
+        for (int priority = 0; priority < instanceTypes.size(); priority++) {
+            String instanceType = instanceTypes.get(priority);
+            for (String subnetId : subnetIds.isEmpty() ? Collections.singletonList((String) null) : subnetIds) {
+                FleetLaunchTemplateOverridesRequest override = new FleetLaunchTemplateOverridesRequest()
+                        .withInstanceType(instanceType)
+                        .withSubnetId(subnetId)
+                        .withPriority((double) priority);
+                if (capacityErrors.isExhausted(instanceType, CapacityErrorCache.pool(subnetId, zone))) {
+                    exhausted.add(override);
+                } else {
+                    overrides.add(override);
+                }
+            }
+        }
+        if (overrides.isEmpty()) {
+            overrides = exhausted;
+        }
+
+        int spot = Math.round(number * spotPercentage / 100f);
+        int onDemand = number - spot;
+        return new CreateFleetRequest()
+                .withType(FleetType.Instant)
+                .withClientToken(UUID.randomUUID().toString())
+                .withLaunchTemplateConfigs(new FleetLaunchTemplateConfigRequest()
+                        .withLaunchTemplateSpecification(new FleetLaunchTemplateSpecificationRequest()
+                                .withLaunchTemplateId(launchTemplateId)
+                                .withVersion("$Latest"))
+                        .withOverrides(overrides))
+                .withTargetCapacitySpecification(new TargetCapacitySpecificationRequest()
+                        .withTotalTargetCapacity(number)
+                        .withOnDemandTargetCapacity(onDemand)
+                        .withSpotTargetCapacity(spot)
+                        .withDefaultTargetCapacityType(
+                                spot > onDemand ? DefaultTargetCapacityType.Spot : DefaultTargetCapacityType.OnDemand))
+                .withOnDemandOptions(new OnDemandOptionsRequest()
+                        .withAllocationStrategy(FleetOnDemandAllocationStrategy.Prioritized))
+                .withSpotOptions(new SpotOptionsRequest()
+                        .withAllocationStrategy(SpotAllocationStrategy.CapacityOptimizedPrioritized));
+    }
+
+    /**
+     * Converts a {@code RunInstances} request into the data of a launch template. The instance type and subnet are
+     * left out, since the fleet overrides them.
+     */
+    static RequestLaunchTemplateData toLaunchTemplateData(RunInstancesRequest riRequest) {
+        RequestLaunchTemplateData data = new RequestLaunchTemplateData()
+                .withImageId(riRequest.getImageId())
+                .withKeyName(riRequest.getKeyName())
+                .withUserData(riRequest.getUserData())
+                .withEbsOptimized(riRequest.getEbsOptimized())
+                .withInstanceInitiatedShutdownBehavior(riRequest.getInstanceInitiatedShutdownBehavior())
+                .withCreditSpecification(riRequest.getCreditSpecification());
+
+        if (riRequest.getMonitoring() != null) {
+            data.setMonitoring(new LaunchTemplatesMonitoringRequest().withEnabled(riRequest.getMonitoring()));
+        }
+        if (riRequest.getIamInstanceProfile() != null) {
+            data.setIamInstanceProfile(new LaunchTemplateIamInstanceProfileSpecificationRequest()
+                    .withArn(riRequest.getIamInstanceProfile().getArn())
+                    .withName(riRequest.getIamInstanceProfile().getName()));
+        }
+        Placement placement = riRequest.getPlacement();
+        if (placement != null) {
+            data.setPlacement(new LaunchTemplatePlacementRequest()
+                    .withAvailabilityZone(placement.getAvailabilityZone())
+                    .withTenancy(placement.getTenancy()));
+        }
+        if (!riRequest.getSecurityGroupIds().isEmpty()) {
+            data.setSecurityGroupIds(riRequest.getSecurityGroupIds());
+        }
+        if (!riRequest.getSecurityGroups().isEmpty()) {
+            data.setSecurityGroups(riRequest.getSecurityGroups());
+        }
+        for (InstanceNetworkInterfaceSpecification net : riRequest.getNetworkInterfaces()) {
+            data.getNetworkInterfaces()
+                    .add(new LaunchTemplateInstanceNetworkInterfaceSpecificationRequest()
+                            .withDeviceIndex(net.getDeviceIndex())
+                            .withAssociatePublicIpAddress(net.getAssociatePublicIpAddress())
+                            .withGroups(net.getGroups()));
+        }
+        for (BlockDeviceMapping mapping : riRequest.getBlockDeviceMappings()) {
+            LaunchTemplateBlockDeviceMappingRequest request = new LaunchTemplateBlockDeviceMappingRequest()
+                    .withDeviceName(mapping.getDeviceName())
+                    .withVirtualName(mapping.getVirtualName())
+                    .withNoDevice(mapping.getNoDevice());
+            EbsBlockDevice ebs = mapping.getEbs();
+            if (ebs != null) {
+                request.setEbs(new LaunchTemplateEbsBlockDeviceRequest()
+                        .withDeleteOnTermination(ebs.getDeleteOnTermination())
+                        .withEncrypted(ebs.getEncrypted())
+                        .withIops(ebs.getIops())
+                        .withKmsKeyId(ebs.getKmsKeyId())
+                        .withSnapshotId(ebs.getSnapshotId())
+                        .withThroughput(ebs.getThroughput())
+                        .withVolumeSize(ebs.getVolumeSize())
+                        .withVolumeType(ebs.getVolumeType()));
+            }
+            data.getBlockDeviceMappings().add(request);
+        }
+        InstanceMetadataOptionsRequest metadata = riRequest.getMetadataOptions();
+        if (metadata != null) {
+            data.setMetadataOptions(new LaunchTemplateInstanceMetadataOptionsRequest()
+                    .withHttpEndpoint(metadata.getHttpEndpoint())
+                    .withHttpTokens(metadata.getHttpTokens())
+                    .withHttpPutResponseHopLimit(metadata.getHttpPutResponseHopLimit()));
+        }
+        for (TagSpecification tagSpecification : riRequest.getTagSpecifications()) {
+            data.getTagSpecifications()
+                    .add(new LaunchTemplateTagSpecificationRequest()
+                            .withResourceType(tagSpecification.getResourceType())
+                            .withTags(tagSpecification.getTags()));
+        }
+        return data;
+    }
+
+    /**
+     * Finds or creates the launch template with the given data.
+     */
+    private static String getLaunchTemplateId(SlaveTemplate template, AmazonEC2 ec2, RequestLaunchTemplateData data)
+            throws AmazonClientException {
+        String owner = Util.getDigestOf(template.getParent().name + "\n" + template.getDisplayName());
+        // the user data is left out of the string representation of the request
+        String name = LAUNCH_TEMPLATE_PREFIX + Util.getDigestOf(owner + "\n" + data + "\n" + data.getUserData());
+        String key = template.getParent().name + "/" + name;
+        String id = LAUNCH_TEMPLATE_IDS.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        try {
+            id = ec2.createLaunchTemplate(new CreateLaunchTemplateRequest()
+                            .withLaunchTemplateName(name)
+                            .withVersionDescription(template.getDisplayName())
+                            .withLaunchTemplateData(data)
+                            .withTagSpecifications(new TagSpecification()
+                                    .withResourceType(ResourceType.LaunchTemplate)
+                                    .withTags(new Tag(LAUNCH_TEMPLATE_OWNER_TAG, owner))))
+                    .getLaunchTemplate()
+                    .getLaunchTemplateId();
+            LOGGER.log(Level.INFO, "{0}. Created launch template {1} ({2})", new Object[] {template, name, id});
+            deleteSupersededLaunchTemplates(template, ec2, owner, id);
+        } catch (AmazonEC2Exception e) {
+            if (!"InvalidLaunchTemplateName.AlreadyExistsException".equals(e.getErrorCode())) {
+                throw e;
+            }
+            List<LaunchTemplate> existing = ec2.describeLaunchTemplates(
+                            new DescribeLaunchTemplatesRequest().withLaunchTemplateNames(name))
+                    .getLaunchTemplates();
+            if (existing.isEmpty()) {
+                throw new AmazonClientException(
+                        "Launch template " + name + " already exists according to EC2, but could not be found", e);
+            }
+            id = existing.get(0).getLaunchTemplateId();
+        }
+        LAUNCH_TEMPLATE_IDS.put(key, id);
+        return id;
+    }
+
+    /**
+     * Deletes the launch templates created for the template before the given one, since the template changed since.
+     * A launch template that cannot be deleted is left behind.
+     */
+    private static void deleteSupersededLaunchTemplates(
+            SlaveTemplate template, AmazonEC2 ec2, String owner, String launchTemplateId) {
+        try {
+            DescribeLaunchTemplatesRequest request = new DescribeLaunchTemplatesRequest()
+                    .withFilters(new Filter("tag:" + LAUNCH_TEMPLATE_OWNER_TAG).withValues(owner));
+            do {
+                DescribeLaunchTemplatesResult result = ec2.describeLaunchTemplates(request);
+                for (LaunchTemplate superseded : result.getLaunchTemplates()) {
+                    String id = superseded.getLaunchTemplateId();
+                    if (id.equals(launchTemplateId)) {
+                        continue;
+                    }
+                    LAUNCH_TEMPLATE_IDS.values().remove(id);
+                    ec2.deleteLaunchTemplate(new DeleteLaunchTemplateRequest().withLaunchTemplateId(id));
+                    LOGGER.log(Level.INFO, "{0}. Deleted superseded launch template {1} ({2})", new Object[] {
+                        template, superseded.getLaunchTemplateName(), id
+                    });
+                }
+                request.setNextToken(result.getNextToken());
+            } while (request.getNextToken() != null);
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.WARNING, template + ". Failed to delete the superseded launch templates", e);
+        }
+    }
+
+    @CheckForNull
+    private static FleetLaunchTemplateOverrides getOverrides(
+            @CheckForNull LaunchTemplateAndOverridesResponse response) {
+        return response == null ? null : response.getOverrides();
+    }
+
+    private static List<Tag> getInstanceTags(RunInstancesRequest riRequest) {
+        for (TagSpecification tagSpecification : riRequest.getTagSpecifications()) {
+            if (ResourceType.Instance.toString().equals(tagSpecification.getResourceType())) {
+                return tagSpecification.getTags();
+            }
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,518 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.SpotInstanceRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Node;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * In-memory snapshot of the instances and spot requests a cloud has provisioned, used to answer the instance cap
+ * checks without describing the whole fleet on every provisioning attempt.
+ * <p>
+ * One paginated {@code DescribeInstances} and {@code DescribeSpotInstanceRequests} fill an index keyed by the
+ * {@link EC2Tag#TAG_NAME_JENKINS_SLAVE_TYPE} tag value. The snapshot is re-read once it is older than {@link #TTL_MS};
+ * in between, launches and terminations made by this controller are applied to it directly so the counts stay
+ * accurate while the describe APIs catch up.
+ * <p>
+ * Provisioning holds {@link CapacityReservation}s against the caps while it talks to EC2, so that the cloud's
+ * counting lock only needs to be held for the cap check itself.
+ */
+final class FleetStateCache {
+
+    private static final Logger LOGGER = Logger.getLogger(FleetStateCache.class.getName());
+
+    /**
+     * How long a snapshot is used before the next count re-reads the fleet. A value of 0 disables the cache.
+     */
+    static final long TTL_MS = Long.getLong("jenkins.ec2.fleetSnapshotTtlMs", TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * How long a launch or termination made by this controller wins over a snapshot which does not reflect it yet.
+     */
+    static final long GRACE_MS = Long.getLong("jenkins.ec2.fleetSnapshotGraceMs", TimeUnit.MINUTES.toMillis(5));
+
+    private final EC2Cloud cloud;
+
+    private final LongSupplier clock;
+
+    /** Instances and live spot requests returned by the last describe, by instance or spot request id. */
+    private Map<String, Entry> snapshot = Collections.emptyMap();
+
+    /** Every spot request id returned by the last describe, whatever its state. */
+    private Set<String> knownSpotRequests = Collections.emptySet();
+
+    /** Agents launched by this controller that the snapshot may not show yet. */
+    private final Map<String, Entry> launched = new HashMap<>();
+
+    /** Ids terminated or stopped by this controller, with the time it happened. */
+    private final Map<String, Long> terminated = new HashMap<>();
+
+    /** Entries currently counted, by id. */
+    private final Map<String, Entry> visible = new HashMap<>();
+
+    /** Entries currently counted, by slave type tag value then id. */
+    private final Map<String, Map<String, Entry>> bySlaveType = new HashMap<>();
+
+    /** Spot request ids currently counted in place of their not yet visible instance. */
+    private final Map<String, String> spotRequestByInstance = new HashMap<>();
+
+    /** Slots held by outstanding reservations, by template description. */
+    private final Map<String, Integer> reservedByTemplate = new HashMap<>();
+
+    private int reserved;
+
+    private boolean loaded;
+
+    private long refreshedAt;
+
+    private String jenkinsServerUrl;
+
+    FleetStateCache(@NonNull EC2Cloud cloud) {
+        this(cloud, System::currentTimeMillis);
+    }
+
+    FleetStateCache(@NonNull EC2Cloud cloud, @NonNull LongSupplier clock) {
+        this.cloud = cloud;
+        this.clock = clock;
+    }
+
+    /**
+     * Counts the agents of this cloud that can be used with the given template, or all of them if the template is
+     * null, refreshing the snapshot first if it has expired.
+     */
+    synchronized int count(@CheckForNull SlaveTemplate template, @CheckForNull String jenkinsServerUrl)
+            throws AmazonClientException {
+        if (!loaded
+                || !Objects.equals(this.jenkinsServerUrl, jenkinsServerUrl)
+                || clock.getAsLong() - refreshedAt >= TTL_MS) {
+            refresh(jenkinsServerUrl);
+        }
+
+        int n;
+        if (template == null) {
+            n = visible.size();
+        } else {
+            n = 0;
+            for (String slaveType : slaveTypesOf(template.description)) {
+                for (Entry entry : bySlaveType.getOrDefault(slaveType, Collections.emptyMap())
+                        .values()) {
+                    if (entry.matches(template)) {
+                        n++;
+                    }
+                }
+            }
+        }
+        return n + countSpotNodesWithoutRequests(template);
+    }
+
+    /**
+     * Counts the slots held by reservations that are not committed or rolled back yet, for the given template or for
+     * all of them if the template is null.
+     */
+    synchronized int reserved(@CheckForNull SlaveTemplate template) {
+        if (template == null) {
+            return reserved;
+        }
+        return reservedByTemplate.getOrDefault(template.description, 0);
+    }
+
+    /**
+     * Holds slots against the instance caps for agents about to be provisioned from the given template.
+     */
+    synchronized CapacityReservation reserve(@NonNull SlaveTemplate template, int slots) {
+        reservedByTemplate.merge(template.description, slots, Integer::sum);
+        reserved += slots;
+        return new CapacityReservation(template, slots);
+    }
+
+    /**
+     * Records agents that were just provisioned from the given template.
+     */
+    synchronized void launched(@NonNull SlaveTemplate template, @CheckForNull Collection<EC2AbstractSlave> slaves) {
+        if (slaves == null || TTL_MS <= 0) {
+            // without snapshot, nothing would ever forget them
+            return;
+        }
+        long now = clock.getAsLong();
+        for (EC2AbstractSlave slave : slaves) {
+            Entry entry = Entry.of(template, slave, now);
+            if (entry == null) {
+                continue;
+            }
+            terminated.remove(entry.id);
+            launched.put(entry.id, entry);
+            add(entry);
+        }
+    }
+
+    /**
+     * Records instances or spot requests that were just terminated, stopped or cancelled.
+     */
+    synchronized void terminated(String... ids) {
+        if (TTL_MS <= 0) {
+            return;
+        }
+        long now = clock.getAsLong();
+        for (String id : ids) {
+            if (StringUtils.isEmpty(id)) {
+                continue;
+            }
+            terminated.put(id, now);
+            launched.remove(id);
+            remove(id);
+        }
+    }
+
+    /**
+     * Drops the snapshot so that the next count describes the fleet again.
+     */
+    synchronized void invalidate() {
+        loaded = false;
+    }
+
+    private void release(SlaveTemplate template, int slots) {
+        reservedByTemplate.computeIfPresent(template.description, (k, n) -> n > slots ? n - slots : null);
+        reserved -= slots;
+    }
+
+    private void refresh(@CheckForNull String jenkinsServerUrl) throws AmazonClientException {
+        AmazonEC2 ec2 = cloud.connect();
+        Map<String, Entry> instances = new HashMap<>();
+
+        List<Filter> filters = cloud.getGenericFilters(jenkinsServerUrl, null);
+        filters.add(new Filter("instance-state-name").withValues("running", "pending", "stopping"));
+        DescribeInstancesRequest dir = new DescribeInstancesRequest().withFilters(filters);
+        DescribeInstancesResult result;
+        do {
+            result = ec2.describeInstances(dir);
+            dir.setNextToken(result.getNextToken());
+            for (Reservation r : result.getReservations()) {
+                for (Instance i : r.getInstances()) {
+                    String slaveType = slaveTypeOf(i.getTags());
+                    if (slaveType != null) {
+                        instances.put(
+                                i.getInstanceId(),
+                                new Entry(
+                                        i.getInstanceId(),
+                                        i.getInstanceId(),
+                                        slaveType,
+                                        i.getTags(),
+                                        i.getImageId(),
+                                        false,
+                                        0));
+                    }
+                }
+            }
+        } while (result.getNextToken() != null);
+
+        Map<String, Entry> spotRequests = new HashMap<>();
+        Set<String> spotRequestIds = new HashSet<>();
+        List<SpotInstanceRequest> deadRequests = new ArrayList<>();
+        DescribeSpotInstanceRequestsRequest dsir = new DescribeSpotInstanceRequestsRequest()
+                .withFilters(cloud.getGenericFilters(jenkinsServerUrl, null))
+                .withMaxResults(100);
+        DescribeSpotInstanceRequestsResult sirResp;
+        do {
+            try {
+                sirResp = ec2.describeSpotInstanceRequests(dsir);
+                dsir.setNextToken(sirResp.getNextToken());
+            } catch (Exception ex) {
+                // Some ec2 implementations don't implement spot requests (Eucalyptus)
+                LOGGER.log(Level.FINEST, "Describe spot instance requests failed", ex);
+                break;
+            }
+            for (SpotInstanceRequest sir : sirResp.getSpotInstanceRequests()) {
+                String id = sir.getSpotInstanceRequestId();
+                if (id == null) {
+                    continue;
+                }
+                spotRequestIds.add(id);
+                if ("open".equals(sir.getState()) || "active".equals(sir.getState())) {
+                    String slaveType = slaveTypeOf(sir.getTags());
+                    if (slaveType != null) {
+                        String imageId = sir.getLaunchSpecification() != null
+                                ? sir.getLaunchSpecification().getImageId()
+                                : null;
+                        spotRequests.put(
+                                id, new Entry(id, sir.getInstanceId(), slaveType, sir.getTags(), imageId, true, 0));
+                    }
+                } else {
+                    deadRequests.add(sir);
+                }
+            }
+        } while (sirResp.getNextToken() != null);
+
+        for (SpotInstanceRequest sir : deadRequests) {
+            cloud.removeDeadSpotRequestNode(sir);
+        }
+
+        instances.putAll(spotRequests);
+        snapshot = instances;
+        knownSpotRequests = spotRequestIds;
+        this.jenkinsServerUrl = jenkinsServerUrl;
+        refreshedAt = clock.getAsLong();
+        loaded = true;
+
+        // Forget the local updates the describe now reflects, or which are too old to still be trusted over it
+        long now = refreshedAt;
+        launched.values().removeIf(e -> snapshot.containsKey(e.id) || now - e.since >= GRACE_MS);
+        terminated.values().removeIf(since -> now - since >= GRACE_MS);
+        reindex();
+
+        LOGGER.log(
+                Level.FINE,
+                "Refreshed fleet snapshot of {0}: {1} agents ({2} launched, {3} terminated locally)",
+                new Object[] {cloud.name, visible.size(), launched.size(), terminated.size()});
+    }
+
+    private void reindex() {
+        visible.clear();
+        bySlaveType.clear();
+        spotRequestByInstance.clear();
+        for (Entry entry : snapshot.values()) {
+            if (!terminated.containsKey(entry.id)) {
+                add(entry);
+            }
+        }
+        for (Entry entry : launched.values()) {
+            add(entry);
+        }
+    }
+
+    private void add(Entry entry) {
+        if (entry.spotRequest) {
+            if (entry.instanceId != null) {
+                // A fulfilled spot request is counted through its instance
+                if (visible.containsKey(entry.instanceId)) {
+                    return;
+                }
+                spotRequestByInstance.put(entry.instanceId, entry.id);
+            }
+        } else {
+            String spotRequestId = spotRequestByInstance.remove(entry.id);
+            if (spotRequestId != null) {
+                remove(spotRequestId);
+            }
+        }
+        remove(entry.id);
+        visible.put(entry.id, entry);
+        bySlaveType.computeIfAbsent(entry.slaveType, k -> new HashMap<>()).put(entry.id, entry);
+    }
+
+    private void remove(String id) {
+        Entry entry = visible.remove(id);
+        if (entry == null) {
+            return;
+        }
+        Map<String, Entry> entries = bySlaveType.get(entry.slaveType);
+        if (entries != null) {
+            entries.remove(id);
+            if (entries.isEmpty()) {
+                bySlaveType.remove(entry.slaveType);
+            }
+        }
+        if (entry.spotRequest && entry.instanceId != null) {
+            spotRequestByInstance.remove(entry.instanceId);
+        }
+    }
+
+    /**
+     * Counts spot agents whose request is not visible in the describe yet (sometimes it takes time for the request to
+     * appear in the EC2 API).
+     */
+    private int countSpotNodesWithoutRequests(@CheckForNull SlaveTemplate template) {
+        int n = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (!(node instanceof EC2SpotSlave)) {
+                continue;
+            }
+            EC2SpotSlave slave = (EC2SpotSlave) node;
+            String id = slave.getSpotInstanceRequestId();
+            if (!Objects.equals(slave.cloudName, cloud.name)
+                    || (template != null && !Objects.equals(slave.templateDescription, template.description))
+                    || knownSpotRequests.contains(id)
+                    || launched.containsKey(id)
+                    || terminated.containsKey(id)) {
+                continue;
+            }
+            LOGGER.log(Level.FINE, "Found spot node without request: " + id);
+            n++;
+        }
+        return n;
+    }
+
+    private static List<String> slaveTypesOf(String description) {
+        List<String> slaveTypes = new ArrayList<>(4);
+        // Agents provisioned before the template description was part of the tag value
+        slaveTypes.add(EC2Cloud.EC2_SLAVE_TYPE_DEMAND);
+        slaveTypes.add(EC2Cloud.EC2_SLAVE_TYPE_SPOT);
+        slaveTypes.add(EC2Cloud.getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_DEMAND, description));
+        slaveTypes.add(EC2Cloud.getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_SPOT, description));
+        return slaveTypes;
+    }
+
+    @CheckForNull
+    private static String slaveTypeOf(@CheckForNull List<Tag> tags) {
+        if (tags != null) {
+            for (Tag tag : tags) {
+                if (StringUtils.equals(tag.getKey(), EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE)) {
+                    return tag.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Slots held against the instance caps while agents are provisioned. Exactly one of {@link #commit} or
+     * {@link #rollback} takes effect; later calls are ignored.
+     */
+    final class CapacityReservation {
+
+        private final SlaveTemplate template;
+
+        private final int slots;
+
+        private boolean done;
+
+        private CapacityReservation(SlaveTemplate template, int slots) {
+            this.template = template;
+            this.slots = slots;
+        }
+
+        int getSlots() {
+            return slots;
+        }
+
+        /**
+         * Replaces the reservation with the agents actually provisioned, which may be fewer than reserved.
+         */
+        void commit(@CheckForNull Collection<EC2AbstractSlave> slaves) {
+            synchronized (FleetStateCache.this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                release(template, slots);
+                launched(template, slaves);
+            }
+        }
+
+        /**
+         * Gives the reserved slots back after a failed provisioning.
+         */
+        void rollback() {
+            synchronized (FleetStateCache.this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                release(template, slots);
+            }
+        }
+    }
+
+    private static final class Entry {
+        /** Instance id, or spot request id for spot requests. */
+        final String id;
+
+        @CheckForNull
+        final String instanceId;
+
+        final String slaveType;
+
+        final Map<String, String> tags;
+
+        @CheckForNull
+        final String imageId;
+
+        final boolean spotRequest;
+
+        final long since;
+
+        Entry(
+                String id,
+                @CheckForNull String instanceId,
+                String slaveType,
+                @CheckForNull List<Tag> tags,
+                @CheckForNull String imageId,
+                boolean spotRequest,
+                long since) {
+            this.id = id;
+            this.instanceId = instanceId;
+            this.slaveType = slaveType;
+            this.tags = new HashMap<>();
+            if (tags != null) {
+                for (Tag tag : tags) {
+                    this.tags.put(tag.getKey(), tag.getValue());
+                }
+            }
+            this.imageId = imageId;
+            this.spotRequest = spotRequest;
+            this.since = since;
+        }
+
+        @CheckForNull
+        static Entry of(SlaveTemplate template, EC2AbstractSlave slave, long now) {
+            boolean spot = slave instanceof EC2SpotSlave;
+            String id = spot ? ((EC2SpotSlave) slave).getSpotInstanceRequestId() : slave.getInstanceId();
+            if (StringUtils.isEmpty(id)) {
+                return null;
+            }
+            List<Tag> tags = new ArrayList<>();
+            String slaveType = EC2Cloud.getSlaveTypeTagValue(
+                    spot ? EC2Cloud.EC2_SLAVE_TYPE_SPOT : EC2Cloud.EC2_SLAVE_TYPE_DEMAND, template.description);
+            if (template.getTags() != null) {
+                for (EC2Tag tag : template.getTags()) {
+                    tags.add(new Tag(tag.getName(), tag.getValue()));
+                    if (StringUtils.equals(tag.getName(), EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE)) {
+                        slaveType = tag.getValue();
+                    }
+                }
+            }
+            return new Entry(id, spot ? null : id, slaveType, tags, template.getAmi(), spot, now);
+        }
+
+        /**
+         * Whether this entry carries the custom tags of the template, and for spot requests, its AMI.
+         */
+        boolean matches(SlaveTemplate template) {
+            List<EC2Tag> templateTags = template.getTags();
+            if (templateTags != null) {
+                for (EC2Tag tag : templateTags) {
+                    if (tag.getName() != null
+                            && tag.getValue() != null
+                            && !tag.getValue().equals(tags.get(tag.getName()))) {
+                        return false;
+                    }
+                }
+            }
+            return !spotRequest || Objects.equals(imageId, template.getAmi());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Image;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Computer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the image a {@link SlaveTemplate} resolved its AMI search to, so that provisioning does not describe (and
+ * sort) the matching images on every launch.
+ * <p>
+ * A resolved image is served for {@link #TTL_MS}. After that it is still served, while a single background refresh
+ * looks the image up again, until it is {@link #MAX_STALE_MS} past its TTL; only then does a lookup block the caller.
+ * With {@link #PINNED}, the image is kept until a refresh succeeds however old it is, so provisioning only waits on
+ * the first lookup. A change in the search attributes misses the cache.
+ */
+final class ImageCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ImageCache.class.getName());
+
+    /**
+     * How long a resolved image is used without looking it up again. A value of 0 disables the cache.
+     */
+    static final long TTL_MS = Long.getLong("jenkins.ec2.imageCacheTtlMs", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * How long past its TTL an image is still used while it is refreshed in the background.
+     */
+    static final long MAX_STALE_MS = Long.getLong("jenkins.ec2.imageCacheMaxStaleMs", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * Keep using the last resolved image until a background refresh replaces it, however old it is.
+     */
+    static final boolean PINNED = Boolean.getBoolean("jenkins.ec2.imageCachePinned");
+
+    interface Resolver {
+        @NonNull
+        Image resolve(@NonNull DescribeImagesRequest request) throws AmazonClientException;
+    }
+
+    private final LongSupplier clock;
+
+    private final Executor executor;
+
+    private DescribeImagesRequest request;
+
+    private Image image;
+
+    private long resolvedAt;
+
+    /** Bumped on every invalidation, so that a refresh started before it does not store its result. */
+    private long generation;
+
+    private boolean refreshing;
+
+    ImageCache() {
+        this(System::currentTimeMillis, command -> Computer.threadPoolForRemoting.execute(command));
+    }
+
+    ImageCache(@NonNull LongSupplier clock, @NonNull Executor executor) {
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    @NonNull
+    Image get(@NonNull DescribeImagesRequest request, @NonNull Resolver resolver) throws AmazonClientException {
+        if (TTL_MS <= 0) {
+            return resolver.resolve(request);
+        }
+
+        long currentGeneration;
+        synchronized (this) {
+            if (image != null && request.equals(this.request)) {
+                long age = clock.getAsLong() - resolvedAt;
+                if (age < TTL_MS) {
+                    return image;
+                }
+                if (PINNED || age < TTL_MS + MAX_STALE_MS) {
+                    refreshInBackground(request, resolver);
+                    return image;
+                }
+            }
+            currentGeneration = generation;
+        }
+
+        Image resolved = resolver.resolve(request);
+        store(currentGeneration, request, resolved);
+        return resolved;
+    }
+
+    /**
+     * Forgets the resolved image, so that the next provisioning looks it up again.
+     */
+    synchronized void invalidate() {
+        generation++;
+        request = null;
+        image = null;
+        refreshing = false;
+    }
+
+    private void refreshInBackground(DescribeImagesRequest request, Resolver resolver) {
+        if (refreshing) {
+            return;
+        }
+        refreshing = true;
+        long currentGeneration = generation;
+        executor.execute(() -> {
+            try {
+                store(currentGeneration, request, resolver.resolve(request));
+            } catch (RuntimeException e) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Failed to refresh image for request " + request + ", keeping the previous one",
+                        e);
+            } finally {
+                synchronized (this) {
+                    if (generation == currentGeneration) {
+                        refreshing = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized void store(long expectedGeneration, DescribeImagesRequest request, Image resolved) {
+        if (generation != expectedGeneration) {
+            return;
+        }
+        if (image != null && !Objects.equals(resolved.getImageId(), image.getImageId())) {
+            LOGGER.info("Image for request " + request + " changed from " + image.getImageId() + " to "
+                    + resolved.getImageId());
+        }
+        this.request = request;
+        this.image = resolved;
+        this.resolvedAt = clock.getAsLong();
+    }
+}
@@ -0,0 +1,216 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Describes the instances of a cloud on behalf of the agents and computers that refresh their instance data, merging
+ * lookups made at the same time into a single request.
+ * <p>
+ * The first lookup opens a batch and waits {@link #WINDOW_MS} for concurrent lookups of other instances to join it,
+ * then describes all of them at once; every caller waits for that single request. A described instance is shared
+ * with the lookups of the same instance during {@link #CACHE_MS}. An instance missing from the batch, or a batch that
+ * failed, is looked up again on its own, with the retries EC2 needs to report instances it just launched.
+ * <p>
+ * While an active {@link InstanceStateFeed} reports on an instance, it keeps its description up to date, so an instance
+ * that is not transitioning between states is shared for {@link InstanceStateFeed#RECONCILE_MS} instead.
+ */
+final class InstanceDescriber {
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceDescriber.class.getName());
+
+    /**
+     * How long the first lookup waits for others to join its request. A value of 0 only merges the lookups made while
+     * a request is being prepared.
+     */
+    static final long WINDOW_MS = Long.getLong("jenkins.ec2.describeCoalesceWindowMs", 50);
+
+    /**
+     * How long a described instance is shared with other lookups. Setting both this and {@link #WINDOW_MS} to 0 looks
+     * every instance up on its own, as before.
+     */
+    static final long CACHE_MS = Long.getLong("jenkins.ec2.describeCacheMs", 2000);
+
+    interface BatchDescriber {
+        @NonNull
+        Map<String, Instance> describe(@NonNull Collection<String> instanceIds) throws AmazonClientException;
+    }
+
+    interface SingleDescriber {
+        @CheckForNull
+        Instance describe(@NonNull String instanceId) throws AmazonClientException, InterruptedException;
+    }
+
+    private final BatchDescriber batchDescriber;
+
+    private final SingleDescriber singleDescriber;
+
+    private final LongSupplier clock;
+
+    private final long windowMs;
+
+    private final long cacheMs;
+
+    private final Predicate<String> reportedByFeed;
+
+    private final Map<String, Described> described = new HashMap<>();
+
+    private Map<String, CompletableFuture<Instance>> pending = new HashMap<>();
+
+    private boolean batchOpen;
+
+    InstanceDescriber(@NonNull EC2Cloud cloud) {
+        this(
+                instanceIds -> CloudHelper.getInstances(instanceIds, cloud),
+                instanceId -> CloudHelper.getInstanceWithRetry(instanceId, cloud),
+                System::currentTimeMillis,
+                WINDOW_MS,
+                CACHE_MS,
+                InstanceStateFeed::reportsOn);
+    }
+
+    InstanceDescriber(
+            @NonNull BatchDescriber batchDescriber,
+            @NonNull SingleDescriber singleDescriber,
+            @NonNull LongSupplier clock,
+            long windowMs,
+            long cacheMs,
+            @NonNull Predicate<String> reportedByFeed) {
+        this.batchDescriber = batchDescriber;
+        this.singleDescriber = singleDescriber;
+        this.clock = clock;
+        this.windowMs = windowMs;
+        this.cacheMs = cacheMs;
+        this.reportedByFeed = reportedByFeed;
+    }
+
+    @CheckForNull
+    Instance describe(@NonNull String instanceId) throws AmazonClientException, InterruptedException {
+        if (windowMs <= 0 && cacheMs <= 0) {
+            return singleDescriber.describe(instanceId);
+        }
+
+        CompletableFuture<Instance> future;
+        boolean leader = false;
+        synchronized (this) {
+            Described last = described.get(instanceId);
+            if (last != null && clock.getAsLong() < last.expiresAt) {
+                return last.instance;
+            }
+            future = pending.computeIfAbsent(instanceId, id -> new CompletableFuture<>());
+            if (!batchOpen) {
+                batchOpen = true;
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                if (windowMs > 0) {
+                    Thread.sleep(windowMs);
+                }
+            } finally {
+                // the others are waiting on this batch even if this lookup gives up
+                flush();
+            }
+        }
+
+        Instance instance = future.join();
+        if (instance == null) {
+            instance = singleDescriber.describe(instanceId);
+            if (instance != null) {
+                remember(instanceId, instance);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the last description of the given instances, so that their next lookup calls EC2.
+     */
+    synchronized void forget(String... instanceIds) {
+        for (String instanceId : instanceIds) {
+            described.remove(instanceId);
+        }
+    }
+
+    /**
+     * Records a state change of an instance reported by an {@link InstanceStateFeed}, starting from its last
+     * description, or the given one if there is none.
+     */
+    synchronized void stateChanged(
+            @NonNull String instanceId, @NonNull InstanceState state, @CheckForNull Instance known) {
+        Described last = described.get(instanceId);
+        Instance base = last != null ? last.instance : known;
+        if (base != null) {
+            remember(instanceId, CloudHelper.withState(base, state));
+        }
+    }
+
+    private synchronized void remember(String instanceId, Instance instance) {
+        long now = clock.getAsLong();
+        long ttl = cacheMs;
+        if (isSettled(instance) && reportedByFeed.test(instanceId)) {
+            ttl = Math.max(ttl, InstanceStateFeed.RECONCILE_MS);
+        }
+        described.put(instanceId, new Described(instance, now + ttl));
+    }
+
+    /**
+     * Whether the instance is in a state it only leaves on request, rather than on its way to another one.
+     */
+    private static boolean isSettled(Instance instance) {
+        String state = instance.getState() == null ? null : instance.getState().getName();
+        return InstanceState.RUNNING.getCode().equals(state)
+                || InstanceState.STOPPED.getCode().equals(state)
+                || InstanceState.TERMINATED.getCode().equals(state);
+    }
+
+    private void flush() {
+        Map<String, CompletableFuture<Instance>> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new HashMap<>();
+            batchOpen = false;
+        }
+
+        try {
+            Map<String, Instance> instances = batchDescriber.describe(batch.keySet());
+            synchronized (this) {
+                long now = clock.getAsLong();
+                described.values().removeIf(last -> now >= last.expiresAt);
+                for (Map.Entry<String, Instance> entry : instances.entrySet()) {
+                    remember(entry.getKey(), entry.getValue());
+                }
+            }
+            batch.forEach((instanceId, future) -> future.complete(instances.get(instanceId)));
+        } catch (RuntimeException e) {
+            LOGGER.log(
+                    Level.FINE, "Failed to describe instances " + batch.keySet() + ", looking them up one by one", e);
+        } finally {
+            // whatever was not described is looked up on its own
+            batch.values().forEach(future -> future.complete(null));
+        }
+    }
+
+    private static final class Described {
+        final Instance instance;
+
+        final long expiresAt;
+
+        Described(Instance instance, long expiresAt) {
+            this.instance = instance;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
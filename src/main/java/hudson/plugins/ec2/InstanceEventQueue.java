@@ -0,0 +1,58 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.ExtensionPoint;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A queue the EC2 events of the instances are delivered to, such as an SQS queue targeted by an EventBridge rule on
+ * {@code EC2 Instance State-change Notification} and {@code EC2 Spot Instance Interruption Warning} events.
+ * <p>
+ * {@link QueueInstanceStateFeed} reads the events from every queue registered as an extension. The plugin does not
+ * register any queue itself, so an implementation reading the actual endpoint, for instance with the SQS client, has
+ * to be contributed by another plugin. Until one is, the feed stays inactive and the instances are polled as before.
+ * {@link LocalInstanceEventQueue} keeps the messages in memory.
+ */
+public interface InstanceEventQueue extends ExtensionPoint {
+
+    /**
+     * Returns up to the given number of messages, possibly waiting a little for some to arrive. A message that is
+     * not deleted may be returned again later.
+     */
+    @NonNull
+    List<Message> receive(int maxMessages) throws IOException, InterruptedException;
+
+    /**
+     * Acknowledges the given messages, so that they are not returned again.
+     */
+    void delete(@NonNull Collection<Message> messages) throws IOException;
+
+    final class Message {
+        private final String handle;
+
+        private final String body;
+
+        public Message(@NonNull String handle, @NonNull String body) {
+            this.handle = handle;
+            this.body = body;
+        }
+
+        /**
+         * Identifies the message when it is deleted.
+         */
+        @NonNull
+        public String getHandle() {
+            return handle;
+        }
+
+        /**
+         * The event, as the JSON document EventBridge emits, possibly wrapped in an SNS notification.
+         */
+        @NonNull
+        public String getBody() {
+            return body;
+        }
+    }
+}
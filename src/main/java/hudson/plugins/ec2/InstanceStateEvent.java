@@ -0,0 +1,92 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Objects;
+
+/**
+ * A change to an EC2 instance reported by an {@link InstanceStateFeed}.
+ */
+public final class InstanceStateEvent {
+
+    public enum Kind {
+        /**
+         * The instance entered {@link #getState()}.
+         */
+        STATE_CHANGE,
+        /**
+         * EC2 is about to reclaim the spot instance.
+         */
+        SPOT_INTERRUPTION
+    }
+
+    private final Kind kind;
+
+    private final String instanceId;
+
+    private final InstanceState state;
+
+    private final long time;
+
+    private InstanceStateEvent(Kind kind, String instanceId, InstanceState state, long time) {
+        this.kind = kind;
+        this.instanceId = instanceId;
+        this.state = state;
+        this.time = time;
+    }
+
+    public static InstanceStateEvent stateChange(@NonNull String instanceId, @NonNull InstanceState state, long time) {
+        return new InstanceStateEvent(Kind.STATE_CHANGE, instanceId, state, time);
+    }
+
+    public static InstanceStateEvent spotInterruption(@NonNull String instanceId, long time) {
+        return new InstanceStateEvent(Kind.SPOT_INTERRUPTION, instanceId, null, time);
+    }
+
+    @NonNull
+    public Kind getKind() {
+        return kind;
+    }
+
+    @NonNull
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * The state the instance entered, {@code null} for a spot interruption.
+     */
+    @CheckForNull
+    public InstanceState getState() {
+        return state;
+    }
+
+    /**
+     * When EC2 emitted the event, in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        InstanceStateEvent that = (InstanceStateEvent) o;
+        return time == that.time && kind == that.kind && instanceId.equals(that.instanceId) && state == that.state;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, instanceId, state, time);
+    }
+
+    @Override
+    public String toString() {
+        return kind + "[" + instanceId + (state == null ? "" : ", " + state) + "]";
+    }
+}
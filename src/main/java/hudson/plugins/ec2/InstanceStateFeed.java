@@ -0,0 +1,85 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.ExtensionPoint;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+
+/**
+ * Pushes changes of the EC2 instances to the plugin, so that it learns about them without describing the instances.
+ * <p>
+ * The feeds are drained periodically by {@link InstanceStateFeedReceiver}, which updates the instance state cached by
+ * the agents, their computers and their cloud in place. While a feed is {@link #isActive() active}, the state of an
+ * instance it reported on that is not transitioning is reused for {@link #RECONCILE_MS} before it is described again,
+ * so polling only reconciles events the feed may have missed. The instances no feed reported on, such as those of a
+ * region the events are not delivered from, are polled as before.
+ */
+public interface InstanceStateFeed extends ExtensionPoint {
+
+    /**
+     * How long the state of an instance is trusted while a feed reports on it.
+     */
+    long RECONCILE_MS = Long.getLong("jenkins.ec2.instanceStateFeedReconcileMs", TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * Whether the feed is connected and delivering events, so that the plugin can rely on it to learn about changes.
+     */
+    boolean isActive();
+
+    /**
+     * Returns the events received since the last call, possibly waiting a little for some to arrive. They are
+     * acknowledged to their source once applied, so that events received by a controller that stops meanwhile are
+     * delivered again.
+     */
+    @NonNull
+    Received receive() throws IOException, InterruptedException;
+
+    /**
+     * Events returned by {@link #receive()}.
+     */
+    interface Received {
+
+        @NonNull
+        List<InstanceStateEvent> getEvents();
+
+        /**
+         * Tells the source of the events that they are applied, so that they are not delivered again.
+         */
+        void acknowledge() throws IOException;
+    }
+
+    static List<InstanceStateFeed> all() {
+        return Jenkins.get().getExtensionList(InstanceStateFeed.class);
+    }
+
+    /**
+     * Whether any feed currently delivers events.
+     */
+    static boolean anyActive() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return false;
+        }
+        for (InstanceStateFeed feed : jenkins.getExtensionList(InstanceStateFeed.class)) {
+            if (feed.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a feed currently delivers events and delivered some for the given instance, so that it can be relied on
+     * to report the changes of that instance.
+     */
+    static boolean reportsOn(@NonNull String instanceId) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null || !anyActive()) {
+            return false;
+        }
+        return jenkins.getExtensionList(InstanceStateFeedReceiver.class).stream()
+                .anyMatch(receiver -> receiver.hasReportedOn(instanceId));
+    }
+}
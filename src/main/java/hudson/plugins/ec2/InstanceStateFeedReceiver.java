@@ -0,0 +1,125 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Drains the {@link InstanceStateFeed}s and applies their events to the agents of the instances.
+ */
+@Extension
+public class InstanceStateFeedReceiver extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceStateFeedReceiver.class.getName());
+
+    private final long recurrencePeriod;
+
+    /**
+     * The time of the last event applied to each instance, so that an event delivered late does not revert a newer
+     * one. It also tells which instances the feeds report on.
+     */
+    private final Map<String, Long> lastEventTimes = new ConcurrentHashMap<>();
+
+    public InstanceStateFeedReceiver() {
+        super("EC2 instance state feed receiver");
+        recurrencePeriod = Long.getLong("jenkins.ec2.instanceStateFeedPeriodMs", TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected Level getNormalLoggingLevel() {
+        return Level.FINEST;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (InstanceStateFeed feed : InstanceStateFeed.all()) {
+            InstanceStateFeed.Received received;
+            try {
+                received = feed.receive();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to receive instance events from " + feed, e);
+                continue;
+            }
+            List<InstanceStateEvent> events = received.getEvents();
+            if (!events.isEmpty()) {
+                apply(events);
+            }
+            try {
+                received.acknowledge();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to acknowledge instance events to " + feed, e);
+            }
+        }
+    }
+
+    /**
+     * Whether an event of the given instance was applied since its agent was added.
+     */
+    boolean hasReportedOn(String instanceId) {
+        return lastEventTimes.containsKey(instanceId);
+    }
+
+    synchronized void apply(List<InstanceStateEvent> events) {
+        Map<String, EC2AbstractSlave> slaves = new HashMap<>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof EC2AbstractSlave) {
+                EC2AbstractSlave slave = (EC2AbstractSlave) node;
+                // the instance id of a spot agent is only known once its request is fulfilled
+                if (StringUtils.isNotEmpty(slave.instanceId)) {
+                    slaves.put(slave.instanceId, slave);
+                }
+            }
+        }
+        lastEventTimes.keySet().retainAll(slaves.keySet());
+
+        for (InstanceStateEvent event : events) {
+            EC2AbstractSlave slave = slaves.get(event.getInstanceId());
+            if (slave == null) {
+                // not an agent of this controller, or one that is gone
+                continue;
+            }
+            Long lastEventTime = lastEventTimes.get(event.getInstanceId());
+            if (lastEventTime != null && lastEventTime > event.getTime()) {
+                LOGGER.log(Level.FINE, "Ignoring {0} older than the last event of the instance", event);
+                continue;
+            }
+            lastEventTimes.put(event.getInstanceId(), event.getTime());
+
+            LOGGER.log(Level.FINE, "Applying {0} to {1}", new Object[] {event, slave.getNodeName()});
+            Computer computer = slave.toComputer();
+            if (event.getKind() == InstanceStateEvent.Kind.STATE_CHANGE) {
+                slave.instanceStateChanged(event.getState());
+                if (computer instanceof EC2Computer) {
+                    ((EC2Computer) computer).instanceStateChanged(event.getState());
+                }
+                EC2Cloud cloud = slave.getCloud();
+                if (cloud != null) {
+                    cloud.instanceStateChanged(event.getInstanceId(), event.getState(), slave.lastFetchInstance);
+                }
+            } else if (event.getKind() == InstanceStateEvent.Kind.SPOT_INTERRUPTION) {
+                LOGGER.info("EC2 is about to interrupt spot instance " + event.getInstanceId() + " of agent "
+                        + slave.getNodeName());
+                if (computer instanceof EC2Computer) {
+                    ((EC2Computer) computer).spotInterruptionNoticed(event.getTime());
+                }
+            }
+        }
+    }
+}
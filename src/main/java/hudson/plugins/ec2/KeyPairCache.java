@@ -0,0 +1,51 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.KeyPair;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which EC2 key pair matches the private key of each SSH credential a cloud launched with, so that a launch
+ * neither describes the key pairs of the account nor computes the key fingerprints again.
+ * <p>
+ * An entry is only reused while the credential still holds the same private key, which is a plain comparison of the
+ * key material. Updating the credential therefore resolves the key pair again.
+ */
+final class KeyPairCache {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    @CheckForNull
+    synchronized KeyPair find(
+            @CheckForNull String credentialsId, @NonNull EC2PrivateKey privateKey, @NonNull AmazonEC2 ec2)
+            throws IOException, AmazonClientException {
+        Entry entry = entries.get(credentialsId);
+        if (entry != null && entry.privateKey.equals(privateKey)) {
+            return entry.keyPair;
+        }
+
+        KeyPair keyPair = privateKey.find(ec2);
+        if (keyPair == null) {
+            entries.remove(credentialsId);
+        } else {
+            entries.put(credentialsId, new Entry(privateKey, keyPair));
+        }
+        return keyPair;
+    }
+
+    private static final class Entry {
+        final EC2PrivateKey privateKey;
+
+        final KeyPair keyPair;
+
+        Entry(EC2PrivateKey privateKey, KeyPair keyPair) {
+            this.privateKey = privateKey;
+            this.keyPair = keyPair;
+        }
+    }
+}
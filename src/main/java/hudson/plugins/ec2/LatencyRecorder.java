@@ -0,0 +1,72 @@
+package hudson.plugins.ec2;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent samples of a latency, in milliseconds, to report its percentiles.
+ */
+public final class LatencyRecorder {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final long[] samples;
+
+    private int size;
+
+    private int next;
+
+    private long count;
+
+    public LatencyRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LatencyRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.samples = new long[capacity];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        size = Math.min(size + 1, samples.length);
+        count++;
+    }
+
+    /**
+     * How many samples were recorded in total, including those no longer kept.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * The most recent sample, or -1 if there is none.
+     */
+    public synchronized long getLast() {
+        return size == 0 ? -1 : samples[(next - 1 + samples.length) % samples.length];
+    }
+
+    /**
+     * The given percentile of the kept samples, using the nearest rank, or -1 if there is none.
+     *
+     * @param percentile between 0 and 100
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (size == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * size);
+        return sorted[Math.min(Math.max(rank, 1), size) - 1];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + count + ", p50=" + getPercentile(50) + "ms, p90=" + getPercentile(90) + "ms, max="
+                + getPercentile(100) + "ms";
+    }
+}
@@ -0,0 +1,62 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link InstanceEventQueue} held in memory, for events delivered to Jenkins directly, and for tests.
+ * <p>
+ * It is not an extension: a plugin that receives the events itself registers its own instance and sends them to it.
+ * Registering an empty one would mark the feed active although nothing reports on the instances.
+ * <p>
+ * Received messages stay in the queue until they are deleted, but are not returned again by later receives.
+ */
+public class LocalInstanceEventQueue implements InstanceEventQueue {
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Map<String, String> queued = new LinkedHashMap<>();
+
+    private final Map<String, String> inFlight = new LinkedHashMap<>();
+
+    /**
+     * Adds an event to the queue.
+     */
+    public synchronized void send(@NonNull String body) {
+        queued.put(Long.toString(sequence.incrementAndGet()), body);
+    }
+
+    @NonNull
+    @Override
+    public synchronized List<Message> receive(int maxMessages) {
+        List<Message> messages = new ArrayList<>();
+        for (Map.Entry<String, String> entry : new ArrayList<>(queued.entrySet())) {
+            if (messages.size() >= maxMessages) {
+                break;
+            }
+            queued.remove(entry.getKey());
+            inFlight.put(entry.getKey(), entry.getValue());
+            messages.add(new Message(entry.getKey(), entry.getValue()));
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void delete(@NonNull Collection<Message> messages) {
+        for (Message message : messages) {
+            inFlight.remove(message.getHandle());
+        }
+    }
+
+    /**
+     * The number of messages sent and not deleted yet.
+     */
+    public synchronized int size() {
+        return queued.size() + inFlight.size();
+    }
+}
@@ -0,0 +1,191 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provisions the agents of a template on behalf of the provisioning requests made for it, merging the requests made
+ * at the same time into a single call to EC2.
+ * <p>
+ * The first request opens a batch and waits {@link #WINDOW_MS} for concurrent requests with the same options to join
+ * it. The template then provisions the agents of all of them at once, which launches the instances with a single
+ * {@code RunInstances} request whose maximum count is their total. Since its minimum count is one, a lack of capacity
+ * yields fewer instances rather than failing. The agents are handed out in the order the requests were made. A
+ * request that is cancelled by the time its batch is provisioned gets none.
+ * <p>
+ * Batches of a template are provisioned one at a time, so that two of them cannot wake the same stopped instance.
+ */
+final class ProvisionBatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisionBatcher.class.getName());
+
+    /**
+     * How long the first provisioning request of a template waits for others to join it. A value of 0 provisions
+     * every request on its own, as before.
+     */
+    static final long WINDOW_MS = Long.getLong("jenkins.ec2.provisionCoalesceWindowMs", 100);
+
+    interface Provisioner {
+        @CheckForNull
+        List<EC2AbstractSlave> provision(int number, @NonNull EnumSet<SlaveTemplate.ProvisionOptions> options)
+                throws AmazonClientException, IOException;
+    }
+
+    private final Provisioner provisioner;
+
+    /**
+     * What the batches lock on and are logged as, normally the template.
+     */
+    private final Object owner;
+
+    private final long windowMs;
+
+    private final Map<EnumSet<SlaveTemplate.ProvisionOptions>, List<Request>> open = new HashMap<>();
+
+    ProvisionBatcher(@NonNull SlaveTemplate template) {
+        this(template::provision, template, WINDOW_MS);
+    }
+
+    ProvisionBatcher(@NonNull Provisioner provisioner, @NonNull Object owner, long windowMs) {
+        this.provisioner = provisioner;
+        this.owner = owner;
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Provisions agents, together with the other requests made at the same time.
+     *
+     * @param cancelled whether the agents are no longer needed, checked right before calling EC2
+     * @return the agents provisioned for this request, possibly fewer than requested
+     */
+    @NonNull
+    List<EC2AbstractSlave> provision(
+            int number, @NonNull EnumSet<SlaveTemplate.ProvisionOptions> options, @NonNull BooleanSupplier cancelled)
+            throws AmazonClientException, IOException {
+        if (windowMs <= 0) {
+            synchronized (owner) {
+                if (cancelled.getAsBoolean()) {
+                    LOGGER.log(Level.INFO, "{0}. Not provisioning, the workload is already covered", owner);
+                    return Collections.emptyList();
+                }
+                List<EC2AbstractSlave> slaves = provisioner.provision(number, options);
+                return slaves == null ? Collections.emptyList() : slaves;
+            }
+        }
+
+        Request request = new Request(number, cancelled);
+        boolean leader = false;
+        synchronized (this) {
+            List<Request> batch = open.get(options);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                open.put(options, batch);
+                leader = true;
+            }
+            batch.add(request);
+        }
+
+        if (leader) {
+            try {
+                Thread.sleep(windowMs);
+            } catch (InterruptedException e) {
+                // the others are waiting on this batch even if this request gives up
+                Thread.currentThread().interrupt();
+            } finally {
+                flush(options);
+            }
+        }
+
+        try {
+            return request.result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void flush(EnumSet<SlaveTemplate.ProvisionOptions> options) {
+        List<Request> batch;
+        synchronized (this) {
+            batch = open.remove(options);
+        }
+
+        List<Request> requests = new ArrayList<>(batch.size());
+        try {
+            synchronized (owner) {
+                int number = 0;
+                for (Request request : batch) {
+                    if (request.cancelled.getAsBoolean()) {
+                        request.result.complete(Collections.emptyList());
+                    } else {
+                        requests.add(request);
+                        number += request.number;
+                    }
+                }
+                if (requests.isEmpty()) {
+                    LOGGER.log(Level.INFO, "{0}. Not provisioning, the workload is already covered", owner);
+                    return;
+                }
+                if (requests.size() > 1) {
+                    LOGGER.log(Level.INFO, "{0}. Provisioning {1} agents at once for {2} requests", new Object[] {
+                        owner, number, requests.size()
+                    });
+                }
+
+                List<EC2AbstractSlave> slaves = provisioner.provision(number, options);
+                Iterator<EC2AbstractSlave> it = slaves == null ? Collections.emptyIterator() : slaves.iterator();
+                for (int i = 0; i < requests.size(); i++) {
+                    Request request = requests.get(i);
+                    boolean last = i == requests.size() - 1;
+                    List<EC2AbstractSlave> share = new ArrayList<>(request.number);
+                    // the last request also takes any extra agent, so that none is left unattached
+                    while ((share.size() < request.number || last) && it.hasNext()) {
+                        share.add(it.next());
+                    }
+                    request.result.complete(share);
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            requests.forEach(request -> request.result.completeExceptionally(e));
+        } finally {
+            // whatever went wrong, nobody may be left waiting
+            batch.forEach(request -> request.result.complete(Collections.emptyList()));
+        }
+    }
+
+    private static final class Request {
+        private final int number;
+
+        private final BooleanSupplier cancelled;
+
+        private final CompletableFuture<List<EC2AbstractSlave>> result = new CompletableFuture<>();
+
+        private Request(int number, BooleanSupplier cancelled) {
+            this.number = number;
+            this.cancelled = cancelled;
+        }
+    }
+}
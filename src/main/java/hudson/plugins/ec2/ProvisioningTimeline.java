@@ -0,0 +1,179 @@
+package hudson.plugins.ec2;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * When an agent went through each phase of its provisioning, from the request for capacity to its remoting channel,
+ * so that the phases that take the most time can be told apart. A phase is recorded the first time it is reached;
+ * phases an agent skips, such as the init script of an agent that already ran it, are left out.
+ *
+ * @see SlaveTemplate#getProvisioningTimes()
+ */
+public final class ProvisioningTimeline {
+
+    public enum Phase {
+        CAPACITY_CHECKED("Capacity check"),
+        IMAGE_RESOLVED("AMI resolution"),
+        INSTANCES_LAUNCHED("Instance launch"),
+        RUNNING("Pending to running"),
+        ADDRESS_ASSIGNED("IP address assignment"),
+        REACHABLE("SSH or WinRM reachable"),
+        AUTHENTICATED("Authentication"),
+        INITIALIZED("Init script"),
+        AGENT_TRANSFERRED("Agent jar transfer"),
+        CONNECTED("Channel established");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final LongSupplier clock;
+
+    private final Map<Phase, Long> reachedAt = new EnumMap<>(Phase.class);
+
+    private long startedAt = -1;
+
+    private boolean recorded;
+
+    public ProvisioningTimeline() {
+        this(System::currentTimeMillis);
+    }
+
+    ProvisioningTimeline(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Records when the provisioning of the agent was requested, if earlier than known.
+     */
+    public synchronized ProvisioningTimeline started(long at) {
+        if (startedAt < 0 || at < startedAt) {
+            startedAt = at;
+        }
+        return this;
+    }
+
+    /**
+     * Records that the agent reached the phase now, unless it already did.
+     */
+    public ProvisioningTimeline mark(Phase phase) {
+        return markAt(phase, clock.getAsLong());
+    }
+
+    /**
+     * Records that the agent reached the phase at the given time, unless it already did.
+     */
+    public synchronized ProvisioningTimeline markAt(Phase phase, long at) {
+        reachedAt.putIfAbsent(phase, at);
+        return this;
+    }
+
+    /**
+     * How long each phase the agent reached took, in milliseconds, from the previous phase it reached or from the
+     * request.
+     */
+    public synchronized Map<Phase, Long> getDurations() {
+        Map<Phase, Long> durations = new EnumMap<>(Phase.class);
+        long previous = getStartedAt();
+        for (Map.Entry<Phase, Long> phase : reachedAt.entrySet()) {
+            durations.put(phase.getKey(), Math.max(0, phase.getValue() - previous));
+            previous = Math.max(previous, phase.getValue());
+        }
+        return durations;
+    }
+
+    /**
+     * How long the agent took from the request to the last phase it reached, in milliseconds.
+     */
+    public synchronized long getTotal() {
+        return reachedAt.values().stream().mapToLong(at -> at).max().orElse(getStartedAt()) - getStartedAt();
+    }
+
+    private long getStartedAt() {
+        if (startedAt >= 0) {
+            return startedAt;
+        }
+        return reachedAt.values().stream().mapToLong(at -> at).min().orElse(0);
+    }
+
+    /**
+     * Whether the agent was launched and connected by this controller, and was not recorded yet: agents loaded from
+     * disk only have the end of their timeline.
+     */
+    synchronized boolean takeForRecording() {
+        if (recorded || !reachedAt.containsKey(Phase.INSTANCES_LAUNCHED) || !reachedAt.containsKey(Phase.CONNECTED)) {
+            return false;
+        }
+        recorded = true;
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getDurations().entrySet().stream()
+                        .map(phase -> phase.getKey().getDisplayName() + " " + phase.getValue() + "ms")
+                        .collect(Collectors.joining(", "))
+                + ", total " + getTotal() + "ms";
+    }
+
+    /**
+     * The percentiles of how long each phase took for the recent agents of a template.
+     */
+    public static final class Percentiles {
+        private final Map<Phase, LatencyRecorder> phases = new EnumMap<>(Phase.class);
+
+        private final LatencyRecorder total = new LatencyRecorder();
+
+        public Percentiles() {
+            for (Phase phase : Phase.values()) {
+                phases.put(phase, new LatencyRecorder());
+            }
+        }
+
+        public void record(ProvisioningTimeline timeline) {
+            timeline.getDurations().forEach((phase, millis) -> phases.get(phase).record(millis));
+            total.record(timeline.getTotal());
+        }
+
+        public LatencyRecorder get(Phase phase) {
+            return phases.get(phase);
+        }
+
+        public LatencyRecorder getTotal() {
+            return total;
+        }
+
+        /**
+         * The phases, with how long they took.
+         */
+        public Map<Phase, LatencyRecorder> getPhases() {
+            return new EnumMap<>(phases);
+        }
+
+        /**
+         * The phase that took the longest for most agents, by its 90th percentile, or null if none was recorded.
+         */
+        public Phase getSlowest() {
+            Phase slowest = null;
+            long slowestMillis = -1;
+            for (Map.Entry<Phase, LatencyRecorder> phase : phases.entrySet()) {
+                long millis = phase.getValue().getPercentile(90);
+                if (millis > slowestMillis) {
+                    slowest = phase.getKey();
+                    slowestMillis = millis;
+                }
+            }
+            return slowest;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * The default {@link InstanceStateFeed}, reading the EventBridge events of the instances from every
+ * {@link InstanceEventQueue} extension.
+ * <p>
+ * It understands {@code EC2 Instance State-change Notification} and {@code EC2 Spot Instance Interruption Warning}
+ * events, delivered as is or wrapped in an SNS notification. Other messages are dropped. The feed is active as long as
+ * there is a queue and the last read and deletion from every queue succeeded, so it is inactive in an install where no
+ * plugin contributes an {@link InstanceEventQueue}.
+ * <p>
+ * A read takes at most {@link #MAX_MESSAGES_PER_RECEIVE} messages from each queue, so that a busy queue does not keep
+ * the receiver from applying the events it already read. The messages are deleted once acknowledged.
+ */
+@Extension
+public class QueueInstanceStateFeed implements InstanceStateFeed {
+
+    private static final Logger LOGGER = Logger.getLogger(QueueInstanceStateFeed.class.getName());
+
+    static final String STATE_CHANGE = "EC2 Instance State-change Notification";
+
+    static final String SPOT_INTERRUPTION = "EC2 Spot Instance Interruption Warning";
+
+    /**
+     * How many messages are read from a queue at once.
+     */
+    private static final int MAX_MESSAGES = 10;
+
+    /**
+     * How many messages are read from a queue at most in a single {@link #receive()}.
+     */
+    static final int MAX_MESSAGES_PER_RECEIVE = 
+            Math.max(Integer.getInteger("jenkins.ec2.instanceStateFeedMaxMessages", 100), 1);
+
+    private final Supplier<Collection<? extends InstanceEventQueue>> queues;
+
+    private final LongSupplier clock;
+
+    private volatile boolean active;
+
+    public QueueInstanceStateFeed() {
+        this(() -> Jenkins.get().getExtensionList(InstanceEventQueue.class), System::currentTimeMillis);
+    }
+
+    QueueInstanceStateFeed(
+            @NonNull Supplier<Collection<? extends InstanceEventQueue>> queues, @NonNull LongSupplier clock) {
+        this.queues = queues;
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean isActive() {
+        return active;
+    }
+
+    @NonNull
+    @Override
+    public Received receive() throws IOException, InterruptedException {
+        Collection<? extends InstanceEventQueue> currentQueues = queues.get();
+        List<InstanceStateEvent> events = new ArrayList<>();
+        Map<InstanceEventQueue, List<InstanceEventQueue.Message>> received = new LinkedHashMap<>();
+        boolean succeeded = !currentQueues.isEmpty();
+        try {
+            for (InstanceEventQueue queue : currentQueues) {
+                List<InstanceEventQueue.Message> read = new ArrayList<>();
+                try {
+                    List<InstanceEventQueue.Message> messages;
+                    do {
+                        messages = queue.receive(Math.min(MAX_MESSAGES, MAX_MESSAGES_PER_RECEIVE - read.size()));
+                        read.addAll(messages);
+                        for (InstanceEventQueue.Message message : messages) {
+                            InstanceStateEvent event = parse(message.getBody());
+                            if (event != null) {
+                                events.add(event);
+                            }
+                        }
+                    } while (messages.size() >= MAX_MESSAGES && read.size() < MAX_MESSAGES_PER_RECEIVE);
+                } catch (IOException | RuntimeException e) {
+                    succeeded = false;
+                    LOGGER.log(Level.WARNING, "Failed to read instance events from " + queue, e);
+                }
+                if (!read.isEmpty()) {
+                    received.put(queue, read);
+                }
+            }
+        } finally {
+            active = succeeded;
+        }
+        return new Received() {
+            @NonNull
+            @Override
+            public List<InstanceStateEvent> getEvents() {
+                return events;
+            }
+
+            @Override
+            public void acknowledge() {
+                received.forEach(QueueInstanceStateFeed.this::delete);
+            }
+        };
+    }
+
+    private void delete(InstanceEventQueue queue, List<InstanceEventQueue.Message> messages) {
+        try {
+            queue.delete(messages);
+        } catch (IOException | RuntimeException e) {
+            // the messages are read again later, and their events ignored if they are older than the current state
+            active = false;
+            LOGGER.log(Level.WARNING, "Failed to delete instance events from " + queue, e);
+        }
+    }
+
+    /**
+     * Reads an event of an instance from an EventBridge event, or the SNS notification wrapping it.
+     *
+     * @return the event, or {@code null} if the message is not an event the plugin handles
+     */
+    @CheckForNull
+    InstanceStateEvent parse(@NonNull String body) {
+        try {
+            JSONObject json = JSONObject.fromObject(body);
+            if (!json.has("detail-type") && json.optString("Type").equals("Notification")) {
+                json = JSONObject.fromObject(json.getString("Message"));
+            }
+
+            JSONObject detail = json.optJSONObject("detail");
+            String instanceId = detail == null ? "" : detail.optString("instance-id");
+            if (instanceId.isEmpty()) {
+                LOGGER.log(Level.FINE, "Ignoring message without instance: {0}", body);
+                return null;
+            }
+            long time = parseTime(json.optString("time"));
+            switch (json.optString("detail-type")) {
+                case STATE_CHANGE:
+                    InstanceState state = InstanceState.find(detail.getString("state"));
+                    return InstanceStateEvent.stateChange(instanceId, state, time);
+                case SPOT_INTERRUPTION:
+                    return InstanceStateEvent.spotInterruption(instanceId, time);
+                default:
+                    LOGGER.log(Level.FINE, "Ignoring message of unknown type: {0}", body);
+                    return null;
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            LOGGER.log(Level.FINE, "Ignoring malformed message: " + body, e);
+            return null;
+        }
+    }
+
+    private long parseTime(String time) {
+        try {
+            return Instant.parse(time).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return clock.getAsLong();
+        }
+    }
+}
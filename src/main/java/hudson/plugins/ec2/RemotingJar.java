@@ -0,0 +1,101 @@
+package hudson.plugins.ec2;
+
+import hudson.Util;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * The remoting.jar the launchers copy to the agents, identified by its SHA-256 so that an agent that already has it,
+ * such as a stopped instance started again, does not get it again. The launchers keep the hash next to the jar on the
+ * agent, in {@link #HASH_FILE}, and only copy the jar when the hash there differs.
+ * <p>
+ * The hash is computed once per Jenkins version, and the jar is streamed from the Jenkins installation rather than
+ * read in memory.
+ */
+@Restricted(NoExternalUse.class)
+public final class RemotingJar {
+
+    public static final String FILE = "remoting.jar";
+
+    public static final String HASH_FILE = FILE + ".sha256";
+
+    private static volatile RemotingJar current;
+
+    private final String jenkinsVersion;
+
+    private final URL url;
+
+    private final String sha256;
+
+    RemotingJar(String jenkinsVersion, URL url) throws IOException {
+        this.jenkinsVersion = jenkinsVersion;
+        this.url = url;
+        this.sha256 = digest(url);
+    }
+
+    /**
+     * The remoting.jar of the running Jenkins.
+     */
+    public static RemotingJar get() throws IOException {
+        RemotingJar jar = current;
+        String version = String.valueOf(Jenkins.VERSION);
+        if (jar == null || !jar.jenkinsVersion.equals(version)) {
+            jar = new RemotingJar(version, Jenkins.get().getJnlpJars(FILE).getURL());
+            current = jar;
+        }
+        return jar;
+    }
+
+    private static String digest(URL url) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new DigestInputStream(url.openStream(), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * The SHA-256 of the jar, in lower case hexadecimal.
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Whether the content of the hash file of an agent is the hash of this jar.
+     */
+    public boolean matches(String hashFile) {
+        return hashFile != null && hashFile.trim().equalsIgnoreCase(sha256);
+    }
+
+    /**
+     * Streams the jar to the given output, without closing it.
+     */
+    public void copyTo(OutputStream out) throws IOException {
+        try (InputStream in = url.openStream()) {
+            IOUtils.copy(in, out);
+        }
+    }
+
+    /**
+     * The content of the hash file for this jar.
+     */
+    public byte[] getHashFile() {
+        return (sha256 + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
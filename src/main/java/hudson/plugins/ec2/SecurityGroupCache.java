@@ -0,0 +1,131 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the security group ids a {@link SlaveTemplate} resolved its security groups to, per subnet, so that a
+ * launch does not describe the security groups and the subnets of their VPCs every time.
+ * <p>
+ * A successful resolution has already passed the check that every group belongs to the VPC of the subnet, so a hit
+ * skips that check too. A resolution that failed that check, or because a group or subnet does not exist, is
+ * remembered for {@link #NEGATIVE_TTL_MS} and fails the launches in the meantime without calling EC2. Other failures,
+ * such as throttling, are not remembered.
+ */
+final class SecurityGroupCache {
+
+    /**
+     * How long resolved security group ids are used without looking them up again. A value of 0 disables the cache.
+     */
+    static final long TTL_MS = Long.getLong("jenkins.ec2.securityGroupCacheTtlMs", TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * How long a failed resolution is remembered.
+     */
+    static final long NEGATIVE_TTL_MS =
+            Long.getLong("jenkins.ec2.securityGroupCacheNegativeTtlMs", TimeUnit.MINUTES.toMillis(1));
+
+    interface Resolver {
+        @NonNull
+        List<String> resolve() throws AmazonClientException;
+    }
+
+    private final LongSupplier clock;
+
+    private final Map<List<Object>, Entry> entries = new HashMap<>();
+
+    SecurityGroupCache() {
+        this(System::currentTimeMillis);
+    }
+
+    SecurityGroupCache(@NonNull LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Resolves the given security groups for a launch in the given subnet, or outside of any subnet when it is
+     * {@code null}.
+     */
+    @NonNull
+    List<String> get(@NonNull Set<String> securityGroups, @CheckForNull String subnetId, @NonNull Resolver resolver)
+            throws AmazonClientException {
+        if (TTL_MS <= 0) {
+            return resolver.resolve();
+        }
+
+        List<Object> key = Arrays.asList(new TreeSet<>(securityGroups), subnetId);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && clock.getAsLong() < entry.expiresAt) {
+                if (entry.failure != null) {
+                    throw new AmazonClientException(entry.failure.getMessage(), entry.failure);
+                }
+                return entry.groupIds;
+            }
+        }
+
+        List<String> groupIds;
+        try {
+            groupIds = Collections.unmodifiableList(resolver.resolve());
+        } catch (AmazonClientException e) {
+            if (NEGATIVE_TTL_MS > 0 && isPermanent(e)) {
+                synchronized (this) {
+                    entries.put(key, new Entry(null, e, clock.getAsLong() + NEGATIVE_TTL_MS));
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            entries.put(key, new Entry(groupIds, null, clock.getAsLong() + TTL_MS));
+        }
+        return groupIds;
+    }
+
+    /**
+     * Forgets every resolution, so that the next launch looks the security groups up again.
+     */
+    synchronized void invalidate() {
+        entries.clear();
+    }
+
+    /**
+     * Whether looking the security groups up again right away would fail the same way: a group that is not in the
+     * VPC of the subnet, or an unknown group or subnet. Errors on the service side or from throttling are transient.
+     */
+    private static boolean isPermanent(AmazonClientException e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException se = (AmazonServiceException) e;
+            String code = se.getErrorCode();
+            return se.getErrorType() == AmazonServiceException.ErrorType.Client
+                    && code != null
+                    && (code.startsWith("InvalidGroup") || code.startsWith("InvalidSubnet"));
+        }
+        // the VPC check fails without a cause, while the SDK wraps the I/O error of a failed request
+        return e.getCause() == null;
+    }
+
+    private static final class Entry {
+        final List<String> groupIds;
+
+        final AmazonClientException failure;
+
+        final long expiresAt;
+
+        Entry(List<String> groupIds, AmazonClientException failure, long expiresAt) {
+            this.groupIds = groupIds;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
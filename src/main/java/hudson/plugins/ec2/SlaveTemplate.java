@@ -87,10 +87,13 @@ import hudson.model.Saveable;
 import hudson.model.TaskListener;
 import hudson.model.labels.LabelAtom;
 import hudson.model.listeners.SaveableListener;
-import hudson.plugins.ec2.util.AmazonEC2Factory;
+import hudson.plugins.ec2.ssh.verifiers.ConsoleHostKeyWatcher;
+import hudson.plugins.ec2.util.DemandForecast;
 import hudson.plugins.ec2.util.DeviceMappingParser;
 import hudson.plugins.ec2.util.EC2AgentConfig;
 import hudson.plugins.ec2.util.EC2AgentFactory;
+import hudson.plugins.ec2.util.EC2ApiCaller;
+import hudson.plugins.ec2.util.InstrumentedAmazonEC2Factory;
 import hudson.plugins.ec2.util.MinimumInstanceChecker;
 import hudson.plugins.ec2.util.MinimumNumberOfInstancesTimeRangeConfig;
 import hudson.security.Permission;
@@ -204,6 +207,16 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     private final int minimumNumberOfSpareInstances;
 
+    private int warmPoolSize;
+
+    private boolean predictiveProvisioning;
+
+    private boolean monitorSpotInterruptions;
+
+    private FleetConfiguration fleetConfig;
+
+    private String fallbackInstanceTypes;
+
     public final boolean stopOnTerminate;
 
     private final List<EC2Tag> tags;
@@ -226,8 +239,16 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     private /* lazily initialized */ DescribableList<NodeProperty<?>, NodePropertyDescriptor> nodeProperties;
 
+    /**
+     * @deprecated subnets are chosen by a {@link SubnetSelector}
+     */
+    @Deprecated
     public int nextSubnet;
 
+    /**
+     * @deprecated each launch chooses its subnet for itself, this is only updated by {@link #chooseSubnetId()}
+     */
+    @Deprecated
     public String currentSubnetId;
 
     public Tenancy tenancy;
@@ -246,6 +267,20 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     private transient /* almost final */ Set<String> securityGroupSet;
 
+    private transient ImageCache imageCache = new ImageCache();
+
+    private transient SecurityGroupCache securityGroupCache = new SecurityGroupCache();
+
+    private transient DemandForecast demandForecast = new DemandForecast();
+
+    private transient LatencyRecorder bootLatency = new LatencyRecorder();
+
+    private transient ProvisioningTimeline.Percentiles provisioningTimes = new ProvisioningTimeline.Percentiles();
+
+    private transient ProvisionBatcher provisionBatcher = new ProvisionBatcher(this);
+
+    private transient SubnetSelector subnetSelector = new CapacityAwareSubnetSelector();
+
     /* FIXME: Ideally these would be List<String>, but Jenkins currently
      * doesn't offer a usable way to represent those in forms. Instead
      * the values are interpreted as a comma separated list.
@@ -1508,17 +1543,43 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
     public String chooseSubnetId() {
-        if (StringUtils.isBlank(subnetId)) {
+        currentSubnetId = chooseSubnetId(1, null);
+        return currentSubnetId;
+    }
+
+    /**
+     * Chooses the best subnet to launch the given number of instances in, see {@link SubnetSelector}. Launches of this
+     * template may run at the same time, so the subnet is passed along with the launch rather than kept.
+     *
+     * @param ec2 to look the subnets up with, or null to choose with what is already known
+     */
+    @CheckForNull
+    String chooseSubnetId(int number, @CheckForNull AmazonEC2 ec2) {
+        List<String> subnetIds = getSubnetIdList();
+        if (subnetIds.isEmpty()) {
             return null;
-        } else {
-            String[] subnetIdList = getSubnetId().split(EC2_RESOURCE_ID_DELIMETERS);
+        }
+        return subnetSelector.rank(subnetIds, number, ec2).get(0);
+    }
 
-            // Round-robin subnet selection.
-            currentSubnetId = subnetIdList[nextSubnet];
-            nextSubnet = (nextSubnet + 1) % subnetIdList.length;
+    /**
+     * The first subnet of this template, null if it has none. The instances of the template are looked up with the
+     * security groups resolved in it.
+     */
+    @CheckForNull
+    private String getFirstSubnetId() {
+        List<String> subnetIds = getSubnetIdList();
+        return subnetIds.isEmpty() ? null : subnetIds.get(0);
+    }
 
-            return currentSubnetId;
+    /**
+     * All the subnets of this template, empty if it has none.
+     */
+    List<String> getSubnetIdList() {
+        if (StringUtils.isBlank(subnetId)) {
+            return Collections.emptyList();
         }
+        return Arrays.asList(getSubnetId().trim().split(EC2_RESOURCE_ID_DELIMETERS));
     }
 
     public String chooseSubnetId(boolean rotateSubnet) {
@@ -1591,6 +1652,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     public void setAmi(String ami) {
         this.ami = ami;
+        invalidateImage();
     }
 
     public AMITypeData getAmiType() {
@@ -1609,6 +1671,112 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return minimumNumberOfSpareInstances;
     }
 
+    /**
+     * How many initialized, stopped instances of this template are kept for provisioning to start instead of
+     * launching new ones.
+     */
+    public int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setWarmPoolSize(int warmPoolSize) {
+        this.warmPoolSize = Math.max(0, warmPoolSize);
+    }
+
+    /**
+     * Whether agents are provisioned ahead of the demand forecast from the recent builds of this template, see
+     * {@link MinimumInstanceChecker#checkForPredictedDemand()}.
+     */
+    public boolean isPredictiveProvisioning() {
+        return predictiveProvisioning;
+    }
+
+    @DataBoundSetter
+    public void setPredictiveProvisioning(boolean predictiveProvisioning) {
+        this.predictiveProvisioning = predictiveProvisioning;
+    }
+
+    /**
+     * Whether the spot agents of this template are drained and replaced when EC2 warns that it reclaims their instance,
+     * see {@link SpotInterruptionHandler}.
+     */
+    public boolean isMonitorSpotInterruptions() {
+        return monitorSpotInterruptions;
+    }
+
+    @DataBoundSetter
+    public void setMonitorSpotInterruptions(boolean monitorSpotInterruptions) {
+        this.monitorSpotInterruptions = monitorSpotInterruptions;
+    }
+
+    /**
+     * The instance types launched when EC2 lacks capacity for {@link #type}, in order of preference.
+     */
+    public String getFallbackInstanceTypes() {
+        return fallbackInstanceTypes;
+    }
+
+    @DataBoundSetter
+    public void setFallbackInstanceTypes(String fallbackInstanceTypes) {
+        this.fallbackInstanceTypes = Util.fixEmptyAndTrim(fallbackInstanceTypes);
+    }
+
+    /**
+     * The instance types this template launches, in order of preference: {@link #type}, then its fallbacks.
+     */
+    List<String> getInstanceTypeList() {
+        List<String> types = new ArrayList<>();
+        types.add(type.toString());
+        for (String fallback : Util.fixNull(fallbackInstanceTypes).split(EC2_RESOURCE_ID_DELIMETERS)) {
+            if (!fallback.isEmpty() && !types.contains(fallback)) {
+                types.add(fallback);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * How the instances are launched with an EC2 Fleet, or null to launch them with {@code RunInstances}.
+     */
+    public FleetConfiguration getFleetConfig() {
+        return fleetConfig;
+    }
+
+    @DataBoundSetter
+    public void setFleetConfig(FleetConfiguration fleetConfig) {
+        this.fleetConfig = fleetConfig;
+    }
+
+    @Restricted(NoExternalUse.class)
+    public DemandForecast getDemandForecast() {
+        return demandForecast;
+    }
+
+    ProvisionBatcher getProvisionBatcher() {
+        return provisionBatcher;
+    }
+
+    void setSubnetSelector(@NonNull SubnetSelector subnetSelector) {
+        this.subnetSelector = subnetSelector;
+    }
+
+    /**
+     * The time from launching or starting the instance of an agent to the agent coming online.
+     */
+    @Restricted(NoExternalUse.class)
+    public LatencyRecorder getBootLatency() {
+        return bootLatency;
+    }
+
+    /**
+     * How long each phase of the provisioning of the recent agents took, from the request to their channel.
+     */
+    @Restricted(NoExternalUse.class)
+    public ProvisioningTimeline.Percentiles getProvisioningTimes() {
+        return provisioningTimes;
+    }
+
     public MinimumNumberOfInstancesTimeRangeConfig getMinimumNumberOfInstancesTimeRangeConfig() {
         return minimumNumberOfInstancesTimeRangeConfig;
     }
@@ -1683,6 +1851,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     @DataBoundSetter
     public void setAmiOwners(String amiOwners) {
         this.amiOwners = amiOwners;
+        invalidateImage();
     }
 
     @CheckForNull
@@ -1693,6 +1862,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     @DataBoundSetter
     public void setAmiUsers(String amiUsers) {
         this.amiUsers = amiUsers;
+        invalidateImage();
     }
 
     @CheckForNull
@@ -1703,6 +1873,15 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     @DataBoundSetter
     public void setAmiFilters(List<EC2Filter> amiFilters) {
         this.amiFilters = amiFilters;
+        invalidateImage();
+    }
+
+    /**
+     * Forgets the image the AMI search attributes were last resolved to, so that the next provisioning looks it up
+     * again.
+     */
+    public void invalidateImage() {
+        imageCache.invalidate();
     }
 
     @Override
@@ -1751,7 +1930,55 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     @NonNull
     public List<EC2AbstractSlave> provision(int number, EnumSet<ProvisionOptions> provisionOptions)
             throws AmazonClientException, IOException {
-        final Image image = getImage();
+        try (EC2ApiCaller.Scope scope = EC2ApiCaller.PROVISION.enter()) {
+            long requestedAt = System.currentTimeMillis();
+            final Image image = getImage();
+            long imageResolvedAt = System.currentTimeMillis();
+            List<EC2AbstractSlave> slaves = provision(image, number, provisionOptions);
+            for (EC2AbstractSlave slave : slaves != null ? slaves : Collections.<EC2AbstractSlave>emptyList()) {
+                if (slave != null) {
+                    slave.getTimeline()
+                            .started(requestedAt)
+                            .markAt(ProvisioningTimeline.Phase.IMAGE_RESOLVED, imageResolvedAt)
+                            .mark(ProvisioningTimeline.Phase.INSTANCES_LAUNCHED);
+                    watchConsole(slave);
+                }
+            }
+            return slaves;
+        } catch (AmazonEC2Exception e) {
+            if (e.getErrorCode() != null && e.getErrorCode().startsWith("InvalidGroup")) {
+                // a resolved security group was deleted or recreated since
+                securityGroupCache.invalidate();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts looking for the host keys in the console of a launched agent, if its strategy checks them against it.
+     * The spot agents are left out, as they only learn their instance once the request is fulfilled.
+     */
+    private void watchConsole(EC2AbstractSlave slave) {
+        HostKeyVerificationStrategyEnum strategy = getHostKeyVerificationStrategy();
+        EC2Cloud cloud = getParent();
+        if (isWindowsSlave()
+                || cloud == null
+                || !(slave instanceof EC2OndemandSlave)
+                || (strategy != HostKeyVerificationStrategyEnum.CHECK_NEW_HARD
+                        && strategy != HostKeyVerificationStrategyEnum.CHECK_NEW_SOFT)) {
+            return;
+        }
+        String instanceId = slave.getInstanceId();
+        ConsoleHostKeyWatcher.watch(
+                instanceId, () -> EC2Computer.getDecodedConsoleOutput(cloud, instanceId, slave.getInstanceType()));
+    }
+
+    private List<EC2AbstractSlave> provision(Image image, int number, EnumSet<ProvisionOptions> provisionOptions)
+            throws IOException {
+        if (this.fleetConfig != null) {
+            // the fleet launches the spot share itself
+            return provisionOndemand(image, number, provisionOptions);
+        }
         if (this.spotConfig != null) {
             if (provisionOptions.contains(ProvisionOptions.ALLOW_CREATE)
                     || provisionOptions.contains(ProvisionOptions.FORCE_CREATE)) {
@@ -1810,6 +2037,17 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     HashMap<RunInstancesRequest, List<Filter>> makeRunInstancesRequestAndFilters(
             Image image, int number, AmazonEC2 ec2, boolean rotateSubnet) throws IOException {
+        String subnetId = rotateSubnet ? chooseSubnetId(number, ec2) : getFirstSubnetId();
+        LOGGER.log(Level.FINE, () -> String.format("Chose subnetId %s", subnetId));
+        return makeRunInstancesRequestAndFilters(image, number, ec2, subnetId);
+    }
+
+    /**
+     * Makes the request to launch instances in the given subnet, and the filters to look up the existing instances
+     * that would be launched by it.
+     */
+    private HashMap<RunInstancesRequest, List<Filter>> makeRunInstancesRequestAndFilters(
+            Image image, int number, AmazonEC2 ec2, @CheckForNull String subnetId) throws IOException {
         String imageId = image.getImageId();
         RunInstancesRequest riRequest = new RunInstancesRequest(imageId, 1, number).withInstanceType(type);
         riRequest.setEbsOptimized(ebsOptimized);
@@ -1833,7 +2071,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
         List<Filter> diFilters = new ArrayList<>();
         diFilters.add(new Filter("image-id").withValues(imageId));
-        diFilters.add(new Filter("instance-type").withValues(type.toString()));
+        diFilters.add(new Filter("instance-type").withValues(getInstanceTypeList()));
 
         KeyPair keyPair = getKeyPair(ec2);
         if (keyPair == null) {
@@ -1865,9 +2103,6 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             diFilters.add(new Filter("tenancy").withValues(placement.getTenancy()));
         }
 
-        String subnetId = chooseSubnetId(rotateSubnet);
-        LOGGER.log(Level.FINE, () -> String.format("Chose subnetId %s", subnetId));
-
         InstanceNetworkInterfaceSpecification net = new InstanceNetworkInterfaceSpecification();
         if (StringUtils.isNotBlank(subnetId)) {
             if (getAssociatePublicIp()) {
@@ -1882,7 +2117,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
              * If we have a subnet ID then we can only use VPC security groups
              */
             if (!getSecurityGroupSet().isEmpty()) {
-                List<String> groupIds = getEc2SecurityGroups(ec2);
+                List<String> groupIds = getEc2SecurityGroups(ec2, subnetId);
 
                 if (!groupIds.isEmpty()) {
                     if (getAssociatePublicIp()) {
@@ -1895,10 +2130,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 }
             }
         } else {
-            List<String> groupIds =
-                    getSecurityGroupsBy("group-name", securityGroupSet, ec2).getSecurityGroups().stream()
-                            .map(SecurityGroup::getGroupId)
-                            .collect(Collectors.toList());
+            List<String> groupIds = getSecurityGroupIdsByName(ec2);
             if (getAssociatePublicIp()) {
                 net.setGroups(groupIds);
             } else {
@@ -1985,6 +2217,11 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 runInstancesRequestFilterMap.entrySet().iterator().next();
         RunInstancesRequest riRequest = entry.getKey();
         List<Filter> diFilters = entry.getValue();
+        if (fleetConfig != null) {
+            diFilters = toFleetFilters(diFilters);
+        } else if (warmPoolSize > 0) {
+            diFilters = toWarmPoolFilters(diFilters);
+        }
 
         DescribeInstancesRequest diRequest = new DescribeInstancesRequest().withFilters(diFilters);
 
@@ -2030,8 +2267,10 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                     throw e;
                 }
             }
+        } else if (fleetConfig != null) {
+            newInstances = FleetLauncher.launch(this, ec2, riRequest);
         } else {
-            newInstances = ec2.runInstances(riRequest).getReservation().getInstances();
+            newInstances = runInstancesInSubnets(image, ec2, riRequest);
         }
         // Have to create a new instance
 
@@ -2044,6 +2283,179 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return toSlaves(newInstances);
     }
 
+    /**
+     * Launches the instances of the request, moving on to the next best subnet of this template while the subnet of
+     * the request lacks capacity or IP addresses.
+     */
+    private List<Instance> runInstancesInSubnets(Image image, AmazonEC2 ec2, RunInstancesRequest riRequest)
+            throws IOException {
+        List<String> tried = new ArrayList<>();
+        while (true) {
+            String subnetId = getSubnetId(riRequest);
+            long start = System.currentTimeMillis();
+            try {
+                List<Instance> instances = runInstances(ec2, riRequest);
+                if (subnetId != null) {
+                    subnetSelector.launched(subnetId, instances.size(), System.currentTimeMillis() - start);
+                }
+                return instances;
+            } catch (AmazonEC2Exception e) {
+                if (subnetId == null) {
+                    throw e;
+                }
+                subnetSelector.failed(subnetId, e.getErrorCode());
+                if (!CapacityErrorCache.isCapacityError(e.getErrorCode())
+                        && !"InsufficientFreeAddressesInSubnet".equals(e.getErrorCode())) {
+                    throw e;
+                }
+                tried.add(subnetId);
+                int number = riRequest.getMaxCount();
+                String next = subnetSelector.rank(getSubnetIdList(), number, ec2).stream()
+                        .filter(candidate -> !tried.contains(candidate))
+                        .findFirst()
+                        .orElse(null);
+                if (next == null) {
+                    throw e;
+                }
+                HashMap<RunInstancesRequest, List<Filter>> runInstancesRequestFilterMap =
+                        makeRunInstancesRequestAndFilters(image, number, ec2, next);
+                if (runInstancesRequestFilterMap == null) {
+                    throw e;
+                }
+                logProvisionInfo(e.getErrorCode() + " in " + subnetId + ", trying again in " + next);
+                riRequest = runInstancesRequestFilterMap.keySet().iterator().next();
+            }
+        }
+    }
+
+    @CheckForNull
+    static String getSubnetId(RunInstancesRequest riRequest) {
+        String subnetId = riRequest.getSubnetId();
+        for (InstanceNetworkInterfaceSpecification net : riRequest.getNetworkInterfaces()) {
+            subnetId = net.getSubnetId();
+        }
+        return subnetId;
+    }
+
+    /**
+     * Launches the instances of the request with the first instance type of this template that EC2 did not recently
+     * lack capacity for where the request launches them. A lack of capacity moves on to the next instance type.
+     *
+     * @throws AmazonEC2Exception the last lack of capacity, if no instance type could be launched
+     */
+    private List<Instance> runInstances(AmazonEC2 ec2, RunInstancesRequest riRequest) {
+        CapacityErrorCache capacityErrors = getParent().getCapacityErrors();
+        String pool = CapacityErrorCache.pool(getSubnetId(riRequest), getZone());
+
+        List<String> types = getInstanceTypeList();
+        List<String> candidates = new ArrayList<>();
+        for (String candidate : types) {
+            if (capacityErrors.isExhausted(candidate, pool)) {
+                logProvisionInfo("Skipping " + candidate + ", recently out of capacity in " + pool);
+            } else {
+                candidates.add(candidate);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // the backoff is only a guess, better try again than not launch at all
+            candidates = types;
+        }
+
+        AmazonEC2Exception capacityError = null;
+        for (String candidate : candidates) {
+            riRequest.setInstanceType(candidate);
+            try {
+                List<Instance> instances = ec2.runInstances(riRequest).getReservation().getInstances();
+                capacityErrors.recordSuccess(candidate, pool);
+                return instances;
+            } catch (AmazonEC2Exception e) {
+                if (!CapacityErrorCache.isCapacityError(e.getErrorCode())) {
+                    throw e;
+                }
+                logProvisionInfo("No capacity for " + candidate + " in " + pool + ": " + e.getErrorCode());
+                capacityErrors.recordError(candidate, pool);
+                capacityError = e;
+            }
+        }
+        throw capacityError;
+    }
+
+    /**
+     * Launches instances to fill the warm pool. Their agents take no builds, and once connected they are removed and
+     * their instances stopped, initialized for {@link #provisionOndemand} to start them.
+     *
+     * @see EC2AbstractSlave#park()
+     */
+    List<EC2AbstractSlave> provisionWarmPool(int number) throws AmazonClientException, IOException {
+        AmazonEC2 ec2 = getParent().connect();
+        HashMap<RunInstancesRequest, List<Filter>> runInstancesRequestFilterMap =
+                makeRunInstancesRequestAndFilters(getImage(), number, ec2);
+        if (runInstancesRequestFilterMap == null) {
+            return Collections.emptyList();
+        }
+        RunInstancesRequest riRequest = runInstancesRequestFilterMap.keySet().iterator().next();
+
+        logProvisionInfo("Launching " + number + " instances for the warm pool");
+        List<EC2AbstractSlave> slaves = toSlaves(ec2.runInstances(riRequest).getReservation().getInstances());
+        for (EC2AbstractSlave slave : slaves) {
+            slave.warming = true;
+        }
+        return slaves;
+    }
+
+    /**
+     * Counts the stopped instances of this template that provisioning would start instead of launching new ones.
+     */
+    int countWarmInstances() throws AmazonClientException, IOException {
+        AmazonEC2 ec2 = getParent().connect();
+        HashMap<RunInstancesRequest, List<Filter>> runInstancesRequestFilterMap =
+                makeRunInstancesRequestAndFilters(getImage(), 1, ec2, false);
+        if (runInstancesRequestFilterMap == null) {
+            return 0;
+        }
+        List<Filter> filters = toWarmPoolFilters(runInstancesRequestFilterMap.values().iterator().next());
+        filters.add(new Filter("instance-state-name")
+                .withValues(InstanceStateName.Stopping.toString(), InstanceStateName.Stopped.toString()));
+
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withFilters(filters);
+        DescribeInstancesResult result;
+        int count = 0;
+        do {
+            result = ec2.describeInstances(request);
+            request.setNextToken(result.getNextToken());
+            for (Reservation reservation : result.getReservations()) {
+                for (Instance instance : reservation.getInstances()) {
+                    if (isSameIamInstanceProfile(instance)) {
+                        count++;
+                    }
+                }
+            }
+        } while (result.getNextToken() != null);
+        return count;
+    }
+
+    /**
+     * Widens the filters looking up existing instances to all the subnets of the template, since the warm pool is
+     * filled from every subnet in turn. The security groups resolved for a subnet only match in its own VPC, so the
+     * template tags identify the instances instead.
+     */
+    static List<Filter> toWarmPoolFilters(List<Filter> diFilters) {
+        List<Filter> filters = new ArrayList<>(diFilters);
+        filters.removeIf(
+                filter -> filter.getName().equals("subnet-id") || filter.getName().equals("instance.group-id"));
+        return filters;
+    }
+
+    /**
+     * Widens the filters looking up existing instances to everything a fleet may have launched for the template: any
+     * of its subnets and instance types.
+     */
+    static List<Filter> toFleetFilters(List<Filter> diFilters) {
+        List<Filter> filters = toWarmPoolFilters(diFilters);
+        filters.removeIf(filter -> filter.getName().equals("instance-type"));
+        return filters;
+    }
+
     void wakeOrphansOrStoppedUp(AmazonEC2 ec2, List<Instance> orphansOrStopped) {
         List<String> instances = new ArrayList<>();
         for (Instance instance : orphansOrStopped) {
@@ -2217,8 +2629,11 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     @NonNull
     private Image getImage() throws AmazonClientException {
-        DescribeImagesRequest request = makeDescribeImagesRequest();
+        return imageCache.get(makeDescribeImagesRequest(), this::describeImage);
+    }
 
+    @NonNull
+    private Image describeImage(DescribeImagesRequest request) throws AmazonClientException {
         LOGGER.info("Getting image for request " + request);
         List<Image> images = getParent().connect().describeImages(request).getImages();
         if (images.isEmpty()) {
@@ -2276,7 +2691,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             }
 
             InstanceNetworkInterfaceSpecification net = new InstanceNetworkInterfaceSpecification();
-            String subnetId = chooseSubnetId();
+            String subnetId = chooseSubnetId(number, ec2);
             LOGGER.log(Level.FINE, () -> String.format("Chose subnetId %s", subnetId));
             if (StringUtils.isNotBlank(subnetId)) {
                 net.setSubnetId(subnetId);
@@ -2285,18 +2700,14 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                  * If we have a subnet ID then we can only use VPC security groups
                  */
                 if (!securityGroupSet.isEmpty()) {
-                    List<String> groupIds = getEc2SecurityGroups(ec2);
+                    List<String> groupIds = getEc2SecurityGroups(ec2, subnetId);
                     if (!groupIds.isEmpty()) {
                         net.setGroups(groupIds);
                     }
                 }
             } else {
                 if (!securityGroupSet.isEmpty()) {
-                    List<String> groupIds =
-                            getSecurityGroupsBy("group-name", securityGroupSet, ec2).getSecurityGroups().stream()
-                                    .map(SecurityGroup::getGroupId)
-                                    .collect(Collectors.toList());
-                    net.setGroups(groupIds);
+                    net.setGroups(getSecurityGroupIdsByName(ec2));
                 }
             }
 
@@ -2506,7 +2917,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             throw new AmazonClientException(
                     "No keypair credential found. Please configure a credential in the Jenkins configuration.");
         }
-        KeyPair keyPair = ec2PrivateKey.find(ec2);
+        KeyPair keyPair = getParent().findKeyPair(ec2PrivateKey, ec2);
         if (keyPair == null) {
             throw new AmazonClientException("No matching keypair found on EC2. Is the EC2 private key a valid one?");
         }
@@ -2545,13 +2956,31 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     /**
      * Get a list of security group ids for the agent
      */
-    private List<String> getEc2SecurityGroups(AmazonEC2 ec2) throws AmazonClientException {
+    List<String> getEc2SecurityGroups(AmazonEC2 ec2, String subnetId) throws AmazonClientException {
+        return securityGroupCache.get(securityGroupSet, subnetId, () -> describeEc2SecurityGroups(ec2, subnetId));
+    }
+
+    /**
+     * Get the ids of the security groups of the agent when it is launched outside of a subnet
+     */
+    private List<String> getSecurityGroupIdsByName(AmazonEC2 ec2) throws AmazonClientException {
+        return securityGroupCache.get(
+                securityGroupSet,
+                null,
+                () -> getSecurityGroupsBy("group-name", securityGroupSet, ec2).getSecurityGroups().stream()
+                        .map(SecurityGroup::getGroupId)
+                        .collect(Collectors.toList()));
+    }
+
+    private List<String> describeEc2SecurityGroups(AmazonEC2 ec2, String subnetId) throws AmazonClientException {
         LOGGER.log(
                 Level.FINE,
                 () -> String.format(
                         "Get security group %s for EC2Cloud %s with currentSubnetId %s",
-                        securityGroupSet, this.getParent().name, getCurrentSubnetId()));
+                        securityGroupSet, this.getParent().name, subnetId));
         List<String> groupIds = new ArrayList<>();
+        // groups of the same VPC share the answer on whether the subnet is in it
+        Map<String, Boolean> subnetInVpc = new HashMap<>();
         DescribeSecurityGroupsResult groupResult = getSecurityGroupsBy("group-name", securityGroupSet, ec2);
         if (groupResult.getSecurityGroups().size() == 0) {
             groupResult = getSecurityGroupsBy("group-id", securityGroupSet, ec2);
@@ -2562,19 +2991,22 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                     Level.FINE,
                     () -> String.format(
                             "Checking security group %s (vpc-id = %s, subnet-id = %s)",
-                            group.getGroupId(), group.getVpcId(), getCurrentSubnetId()));
+                            group.getGroupId(), group.getVpcId(), subnetId));
             if (group.getVpcId() != null && !group.getVpcId().isEmpty()) {
-                List<Filter> filters = new ArrayList<>();
-                filters.add(new Filter("vpc-id").withValues(group.getVpcId()));
-                filters.add(new Filter("state").withValues("available"));
-                filters.add(new Filter("subnet-id").withValues(getCurrentSubnetId()));
-
-                DescribeSubnetsRequest subnetReq = new DescribeSubnetsRequest();
-                subnetReq.withFilters(filters);
-                DescribeSubnetsResult subnetResult = ec2.describeSubnets(subnetReq);
-
-                List<Subnet> subnets = subnetResult.getSubnets();
-                if (subnets != null && !subnets.isEmpty()) {
+                boolean inVpc = subnetInVpc.computeIfAbsent(group.getVpcId(), vpcId -> {
+                    List<Filter> filters = new ArrayList<>();
+                    filters.add(new Filter("vpc-id").withValues(vpcId));
+                    filters.add(new Filter("state").withValues("available"));
+                    filters.add(new Filter("subnet-id").withValues(subnetId));
+
+                    DescribeSubnetsRequest subnetReq = new DescribeSubnetsRequest();
+                    subnetReq.withFilters(filters);
+                    DescribeSubnetsResult subnetResult = ec2.describeSubnets(subnetReq);
+
+                    List<Subnet> subnets = subnetResult.getSubnets();
+                    return subnets != null && !subnets.isEmpty();
+                });
+                if (inVpc) {
                     LOGGER.log(Level.FINE, () -> "Adding security group");
                     groupIds.add(group.getGroupId());
                 }
@@ -2629,6 +3061,13 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
 
         securityGroupSet = parseSecurityGroups();
+        imageCache = new ImageCache();
+        securityGroupCache = new SecurityGroupCache();
+        demandForecast = new DemandForecast();
+        bootLatency = new LatencyRecorder();
+        provisioningTimes = new ProvisioningTimeline.Percentiles();
+        provisionBatcher = new ProvisionBatcher(this);
+        subnetSelector = new CapacityAwareSubnetSelector();
 
         /**
          * In releases of this plugin prior to 1.18, template-specific instance caps could be configured but were not
@@ -2656,6 +3095,11 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             maxTotalUses = -1;
         }
 
+        // the extra instance types of a fleet used to be configured apart from the fallback instance types
+        if (fleetConfig != null) {
+            fallbackInstanceTypes = fleetConfig.migrateInstanceTypes(fallbackInstanceTypes);
+        }
+
         if (nodeProperties == null) {
             nodeProperties = new DescribableList<>(Saveable.NOOP);
         }
@@ -2732,7 +3176,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     /**
      *
      * @param ec2
-     * @param allSubnets if true, uses all subnets defined for this SlaveTemplate as the filter, else will only use the current subnet
+     * @param allSubnets if true, uses all subnets defined for this SlaveTemplate as the filter, else will only use the first subnet
      * @return DescribeInstancesResult of DescribeInstanceRequst constructed from this SlaveTemplate's configs
      */
     DescribeInstancesResult getDescribeInstanceResult(AmazonEC2 ec2, boolean allSubnets) throws IOException {
@@ -2842,10 +3286,11 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                     useInstanceProfileForCredentials, credentialsId, roleArn, roleSessionName, region);
             AmazonEC2 ec2;
             if (region != null) {
-                ec2 = AmazonEC2Factory.getInstance()
+                ec2 = InstrumentedAmazonEC2Factory.forFormValidation()
                         .connect(credentialsProvider, AmazonEC2Cloud.getEc2EndpointUrl(region));
             } else {
-                ec2 = AmazonEC2Factory.getInstance().connect(credentialsProvider, new URL(ec2endpoint));
+                ec2 = InstrumentedAmazonEC2Factory.forFormValidation()
+                        .connect(credentialsProvider, new URL(ec2endpoint));
             }
             try {
                 Image img = CloudHelper.getAmiImage(ec2, ami);
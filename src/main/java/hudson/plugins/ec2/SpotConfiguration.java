@@ -13,7 +13,7 @@ import com.amazonaws.services.ec2.model.SpotPrice;
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
-import hudson.plugins.ec2.util.AmazonEC2Factory;
+import hudson.plugins.ec2.util.InstrumentedAmazonEC2Factory;
 import hudson.util.FormValidation;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -160,7 +160,7 @@ public final class SpotConfiguration extends AbstractDescribableImpl<SpotConfigu
             // region queried from the created cloud
             AWSCredentialsProvider credentialsProvider = EC2Cloud.createCredentialsProvider(
                     useInstanceProfileForCredentials, credentialsId, roleArn, roleSessionName, region);
-            AmazonEC2 ec2 = AmazonEC2Factory.getInstance()
+            AmazonEC2 ec2 = InstrumentedAmazonEC2Factory.forFormValidation()
                     .connect(credentialsProvider, AmazonEC2Cloud.getEc2EndpointUrl(region));
 
             if (ec2 != null) {
@@ -0,0 +1,163 @@
+package hudson.plugins.ec2;
+
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.Jenkins;
+
+/**
+ * Reacts to EC2 warning that it is about to reclaim a spot instance, about two minutes before it does.
+ * <p>
+ * Only the agents of the templates that {@link SlaveTemplate#isMonitorSpotInterruptions() monitor the interruptions}
+ * are handled. The agent stops accepting tasks, a replacement is provisioned from the same template straight away,
+ * and the builds running on the agent are scheduled again and aborted. The steps of a Pipeline are left running,
+ * since the Pipeline decides how to recover from losing its agent. The time from the warning to the replacement coming
+ * online is reported by {@link #getReplacementLatency()}.
+ */
+public final class SpotInterruptionHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(SpotInterruptionHandler.class.getName());
+
+    /**
+     * How long a replacement is waited for before its latency is no longer recorded.
+     */
+    private static final long REPLACEMENT_TIMEOUT_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final LatencyRecorder REPLACEMENT_LATENCY = new LatencyRecorder();
+
+    /**
+     * The time of the warning each replacement was provisioned for, by node name.
+     */
+    private static final Map<String, Long> PENDING_REPLACEMENTS = new ConcurrentHashMap<>();
+
+    private SpotInterruptionHandler() {}
+
+    /**
+     * The time from EC2 warning that it reclaims a spot instance to its replacement coming online.
+     */
+    public static LatencyRecorder getReplacementLatency() {
+        return REPLACEMENT_LATENCY;
+    }
+
+    static void interruptionNoticed(Computer computer, SlaveTemplate template, long noticeTime) {
+        LOGGER.info("EC2 is about to interrupt the spot instance of " + computer.getName()
+                + ", draining it and provisioning a replacement");
+        computer.setAcceptingTasks(false);
+
+        EC2Cloud cloud = template.getParent();
+        if (cloud != null) {
+            Computer.threadPoolForRemoting.submit(() -> replace(cloud, template, noticeTime));
+        }
+
+        requeueBuilds(computer);
+    }
+
+    /**
+     * Records the latency of a replacement coming online.
+     */
+    static void onOnline(EC2Computer computer) {
+        Long noticeTime = PENDING_REPLACEMENTS.remove(computer.getName());
+        if (noticeTime != null) {
+            long latency = System.currentTimeMillis() - noticeTime;
+            REPLACEMENT_LATENCY.record(latency);
+            LOGGER.info("Replacement " + computer.getName() + " of an interrupted spot instance is online "
+                    + TimeUnit.MILLISECONDS.toSeconds(latency) + "s after the interruption notice");
+        }
+    }
+
+    private static void replace(EC2Cloud cloud, SlaveTemplate template, long noticeTime) {
+        long now = System.currentTimeMillis();
+        PENDING_REPLACEMENTS.values().removeIf(time -> now - time > REPLACEMENT_TIMEOUT_MS);
+        for (EC2AbstractSlave replacement : cloud.provisionNodes(template, 1)) {
+            PENDING_REPLACEMENTS.put(replacement.getNodeName(), noticeTime);
+        }
+    }
+
+    /**
+     * Schedules the builds running on the computer again and aborts them, leaving the parts of bigger tasks running.
+     */
+    static void requeueBuilds(Computer computer) {
+        List<Executor> executors = new ArrayList<>(computer.getExecutors());
+        executors.addAll(computer.getOneOffExecutors());
+        for (Executor executor : executors) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable == null) {
+                continue;
+            }
+            Queue.Task task = executable.getParent().getOwnerTask();
+            if (!(task instanceof Job) || task != executable.getParent()) {
+                // a part of a bigger task, such as a Pipeline step, which recovers on its own terms
+                continue;
+            }
+
+            List<Action> actions = new ArrayList<>();
+            if (executable instanceof Run) {
+                actions.addAll(((Run<?, ?>) executable).getActions(ParametersAction.class));
+            }
+            actions.add(new CauseAction(new InterruptedCause(computer.getName())));
+            if (Jenkins.get().getQueue().schedule2(task, 0, actions).isAccepted()) {
+                LOGGER.info("Scheduled " + task.getFullDisplayName() + " again, aborting its build on "
+                        + computer.getName());
+                executor.interrupt(Result.ABORTED, new Interruption(computer.getName()));
+            } else {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Could not schedule {0} again, leaving its build on {1} running",
+                        new Object[] {task.getFullDisplayName(), computer.getName()});
+            }
+        }
+    }
+
+    /**
+     * Why a build was scheduled again.
+     */
+    public static final class InterruptedCause extends Cause {
+        private final String nodeName;
+
+        public InterruptedCause(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        public String getNodeName() {
+            return nodeName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Restarted after EC2 interrupted the spot instance of " + nodeName;
+        }
+    }
+
+    /**
+     * Why a build was aborted.
+     */
+    public static final class Interruption extends CauseOfInterruption {
+        private static final long serialVersionUID = 1L;
+
+        private final String nodeName;
+
+        public Interruption(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "EC2 is interrupting the spot instance of " + nodeName + ", the build was scheduled again";
+        }
+    }
+}
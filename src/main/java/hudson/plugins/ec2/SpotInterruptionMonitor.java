@@ -0,0 +1,162 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * Asks the spot agents of the templates that {@link SlaveTemplate#isMonitorSpotInterruptions() monitor the
+ * interruptions} whether the instance metadata of their instance holds an interruption notice, unless an
+ * {@link InstanceStateFeed} reports on their instance and so already delivers it.
+ */
+@Extension
+public class SpotInterruptionMonitor extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(SpotInterruptionMonitor.class.getName());
+
+    /**
+     * How long before the interruption EC2 issues its notice.
+     */
+    private static final long NOTICE_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final long CALL_TIMEOUT_SECONDS = 5;
+
+    private final long recurrencePeriod;
+
+    public SpotInterruptionMonitor() {
+        super("EC2 spot interruption monitor");
+        recurrencePeriod = Long.getLong("jenkins.ec2.spotInterruptionCheckPeriodMs", TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected Level getNormalLoggingLevel() {
+        return Level.FINEST;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Computer c : Jenkins.get().getComputers()) {
+            if (!(c instanceof EC2Computer)) {
+                continue;
+            }
+            EC2Computer computer = (EC2Computer) c;
+            SlaveTemplate template = computer.getSlaveTemplate();
+            VirtualChannel channel = computer.getChannel();
+            String instanceId = computer.getInstanceId();
+            if (template == null
+                    || !template.isMonitorSpotInterruptions()
+                    || channel == null
+                    || computer.getSpotInterruptionNoticeTime() != 0
+                    || (instanceId != null && InstanceStateFeed.reportsOn(instanceId))) {
+                continue;
+            }
+            try {
+                if (!computer.isSpot()) {
+                    continue;
+                }
+                String action = channel.callAsync(new GetInstanceAction()).get(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (action != null) {
+                    computer.spotInterruptionNoticed(noticeTime(action, System.currentTimeMillis()));
+                }
+            } catch (AmazonClientException | IOException | ExecutionException | TimeoutException e) {
+                LOGGER.log(Level.FINE, "Failed to read the spot instance action of " + computer.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * When EC2 issued the notice of the given instance action, which holds the time of the interruption.
+     *
+     * @param now the current time, returned if the action holds no time or one too close
+     */
+    static long noticeTime(String action, long now) {
+        try {
+            String time = JSONObject.fromObject(action).optString("time");
+            return Math.min(now, Instant.parse(time).toEpochMilli() - NOTICE_MS);
+        } catch (JSONException | DateTimeParseException e) {
+            return now;
+        }
+    }
+
+    /**
+     * Reads the spot instance action from the instance metadata, using IMDSv2 if it is available.
+     *
+     * @return the action, or {@code null} if the instance is not about to be interrupted
+     */
+    private static final class GetInstanceAction extends MasterToSlaveCallable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private static final String METADATA = "http://169.254.169.254/latest/";
+
+        private static final int TIMEOUT_MS = 1000;
+
+        @Override
+        public String call() throws IOException {
+            String token = null;
+            try {
+                HttpURLConnection tokenRequest = open("api/token");
+                tokenRequest.setRequestMethod("PUT");
+                tokenRequest.setRequestProperty("X-aws-ec2-metadata-token-ttl-seconds", "60");
+                tokenRequest.setDoOutput(true);
+                try (OutputStream out = tokenRequest.getOutputStream()) {
+                    out.flush();
+                }
+                if (tokenRequest.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    token = read(tokenRequest);
+                }
+            } catch (IOException e) {
+                // IMDSv1 only
+            }
+
+            HttpURLConnection actionRequest = open("meta-data/spot/instance-action");
+            if (token != null) {
+                actionRequest.setRequestProperty("X-aws-ec2-metadata-token", token);
+            }
+            if (actionRequest.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            return read(actionRequest);
+        }
+
+        private static HttpURLConnection open(String path) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(METADATA + path).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            return connection;
+        }
+
+        private static String read(HttpURLConnection connection) throws IOException {
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                in.transferTo(out);
+                return out.toString(StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.List;
+
+/**
+ * Chooses which of the subnets of a template to launch instances in, from what the launches in them taught.
+ * Implementations are called by concurrent provisioning and must be thread-safe.
+ *
+ * @see CapacityAwareSubnetSelector
+ */
+interface SubnetSelector {
+
+    /**
+     * Orders the subnets from the best to launch the given number of instances in to the worst. Successive calls
+     * spread the launches over subnets that are equally good.
+     *
+     * @param ec2 to look the subnets up with, or null to rank them with what is already known
+     */
+    @NonNull
+    List<String> rank(@NonNull List<String> subnetIds, int number, @CheckForNull AmazonEC2 ec2);
+
+    /**
+     * Records instances launched in the subnet, and how long the request took.
+     */
+    void launched(@NonNull String subnetId, int number, long latencyMs);
+
+    /**
+     * Records a launch in the subnet that failed with the given EC2 error code.
+     */
+    void failed(@NonNull String subnetId, @CheckForNull String errorCode);
+}
@@ -0,0 +1,342 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Terminates and stops the instances of a cloud on behalf of its agents, with one EC2 request per batch of instances
+ * rather than one per agent.
+ * <p>
+ * The first instance queued opens a batch, which is sent {@link #WINDOW_MS} later with every instance queued in the
+ * meantime: its spot requests are cancelled, the instances that are still alive are looked up, and those are
+ * terminated or stopped, each with a single request. A request that fails is sent again for each instance on its own,
+ * so that one instance cannot fail the others, and an instance that still fails is queued again after a backoff that
+ * doubles from {@link #RETRY_MS}, up to {@link #MAX_ATTEMPTS} attempts.
+ * <p>
+ * The batches of all the clouds are sent by a dedicated thread, which keeps a mass expiry of idle agents off the
+ * thread pool shared with the remoting channels.
+ */
+final class TerminationQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(TerminationQueue.class.getName());
+
+    /**
+     * How long the first instance queued waits for others to join its batch.
+     */
+    static final long WINDOW_MS = Long.getLong("jenkins.ec2.terminationBatchWindowMs", 500);
+
+    /**
+     * The most instances sent in a single request.
+     */
+    static final int BATCH_SIZE = Integer.getInteger("jenkins.ec2.terminationBatchSize", 500);
+
+    static final long RETRY_MS = Long.getLong("jenkins.ec2.terminationRetryMs", TimeUnit.SECONDS.toMillis(5));
+
+    static final int MAX_ATTEMPTS = Integer.getInteger("jenkins.ec2.terminationMaxAttempts", 5);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "EC2 termination queue"));
+
+    enum Action {
+        TERMINATE,
+        STOP
+    }
+
+    /**
+     * The EC2 requests of a batch.
+     */
+    interface Operations {
+        /**
+         * @return the instances among the given ones that are neither terminated nor unknown
+         */
+        @NonNull
+        Set<String> alive(@NonNull Collection<String> instanceIds) throws AmazonClientException;
+
+        void cancelSpotRequests(@NonNull List<String> spotRequestIds) throws AmazonClientException;
+
+        void apply(@NonNull Action action, @NonNull List<String> instanceIds) throws AmazonClientException;
+
+        /**
+         * Forgets the given instances, which were already gone.
+         */
+        void gone(@NonNull List<String> instanceIds);
+    }
+
+    private final Operations operations;
+
+    private final ScheduledExecutorService executor;
+
+    private final long windowMs;
+
+    private final long retryMs;
+
+    private List<Request> pending = new ArrayList<>();
+
+    private int retrying;
+
+    TerminationQueue(@NonNull EC2Cloud cloud) {
+        this(new CloudOperations(cloud), EXECUTOR, WINDOW_MS, RETRY_MS);
+    }
+
+    TerminationQueue(
+            @NonNull Operations operations, @NonNull ScheduledExecutorService executor, long windowMs, long retryMs) {
+        this.operations = operations;
+        this.executor = executor;
+        this.windowMs = windowMs;
+        this.retryMs = retryMs;
+    }
+
+    /**
+     * Queues the termination of an instance, and the cancellation of its spot request if any.
+     *
+     * @param instanceId the instance, or null if the spot request was never fulfilled
+     * @return completed once the instance is terminated, or exceptionally once it could not be
+     */
+    @NonNull
+    CompletableFuture<Void> terminate(@CheckForNull String instanceId, @CheckForNull String spotRequestId) {
+        return enqueue(new Request(Action.TERMINATE, instanceId, spotRequestId));
+    }
+
+    /**
+     * Queues the stop of an instance.
+     *
+     * @return completed once the instance is stopped, or exceptionally once it could not be
+     */
+    @NonNull
+    CompletableFuture<Void> stop(@NonNull String instanceId) {
+        return enqueue(new Request(Action.STOP, instanceId, null));
+    }
+
+    /**
+     * How many instances are waiting to be terminated or stopped, including those waiting for another attempt.
+     */
+    synchronized int size() {
+        return pending.size() + retrying;
+    }
+
+    private synchronized CompletableFuture<Void> enqueue(Request request) {
+        pending.add(request);
+        if (pending.size() == 1) {
+            executor.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        }
+        return request.done;
+    }
+
+    private void flush() {
+        List<Request> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        for (int from = 0; from < batch.size(); from += Math.max(1, BATCH_SIZE)) {
+            try {
+                send(batch.subList(from, Math.min(batch.size(), from + Math.max(1, BATCH_SIZE))));
+            } catch (RuntimeException | Error e) {
+                // the executor must keep going, and nobody may be left waiting
+                LOGGER.log(Level.WARNING, "Failed to terminate EC2 instances", e);
+                batch.subList(from, batch.size()).forEach(request -> request.done.completeExceptionally(e));
+                return;
+            }
+        }
+    }
+
+    private void send(List<Request> batch) {
+        LOGGER.log(Level.FINE, "Terminating or stopping {0} EC2 instances", batch.size());
+
+        List<String> spotRequestIds = batch.stream()
+                .filter(request -> request.attempts == 0 && request.spotRequestId != null)
+                .map(request -> request.spotRequestId)
+                .collect(Collectors.toList());
+        if (!spotRequestIds.isEmpty()) {
+            try {
+                operations.cancelSpotRequests(spotRequestIds);
+                LOGGER.log(Level.INFO, "Cancelled Spot requests: {0}", spotRequestIds);
+            } catch (AmazonClientException e) {
+                // a spot request that is no longer valid fails the whole request
+                for (String spotRequestId : spotRequestIds) {
+                    try {
+                        operations.cancelSpotRequests(Collections.singletonList(spotRequestId));
+                    } catch (AmazonClientException e2) {
+                        LOGGER.log(Level.WARNING, "Failed to cancel Spot request: " + spotRequestId, e2);
+                    }
+                }
+            }
+        }
+
+        List<Request> requests = new ArrayList<>();
+        for (Request request : batch) {
+            if (request.instanceId == null || request.instanceId.isEmpty()) {
+                request.done.complete(null);
+            } else {
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        List<String> instanceIds = requests.stream().map(request -> request.instanceId).collect(Collectors.toList());
+        Set<String> alive;
+        try {
+            alive = operations.alive(instanceIds);
+        } catch (AmazonClientException e) {
+            // terminating an instance again does no harm, and an instance that fails is sent again on its own
+            LOGGER.log(Level.FINE, "Failed to look up the EC2 instances to terminate or stop, sending them all", e);
+            alive = new HashSet<>(instanceIds);
+        }
+
+        List<String> gone = new ArrayList<>();
+        for (Action action : Action.values()) {
+            List<Request> toApply = new ArrayList<>();
+            for (Request request : requests) {
+                if (request.action != action) {
+                    continue;
+                }
+                if (alive.contains(request.instanceId)) {
+                    toApply.add(request);
+                } else {
+                    LOGGER.log(Level.INFO, "EC2 instance already terminated: {0}", request.instanceId);
+                    gone.add(request.instanceId);
+                    request.done.complete(null);
+                }
+            }
+            apply(action, toApply);
+        }
+        if (!gone.isEmpty()) {
+            operations.gone(gone);
+        }
+    }
+
+    private void apply(Action action, List<Request> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        List<String> instanceIds = requests.stream().map(request -> request.instanceId).collect(Collectors.toList());
+        try {
+            operations.apply(action, instanceIds);
+            LOGGER.log(Level.INFO, "EC2 instances {0}: {1}", new Object[] {
+                action == Action.STOP ? "stopped" : "terminated", instanceIds
+            });
+            requests.forEach(request -> request.done.complete(null));
+        } catch (AmazonClientException e) {
+            if (requests.size() == 1) {
+                retry(requests.get(0), e);
+                return;
+            }
+            for (Request request : requests) {
+                apply(action, Collections.singletonList(request));
+            }
+        }
+    }
+
+    private void retry(Request request, AmazonClientException e) {
+        request.attempts++;
+        if (request.attempts >= MAX_ATTEMPTS) {
+            LOGGER.log(Level.WARNING, "Giving up on EC2 instance " + request.instanceId, e);
+            request.done.completeExceptionally(e);
+            return;
+        }
+        long delay = retryMs << Math.min(request.attempts - 1, 16);
+        LOGGER.log(Level.FINE, "Failed to terminate or stop EC2 instance " + request.instanceId + ", retrying in "
+                + delay + "ms", e);
+        synchronized (this) {
+            retrying++;
+        }
+        executor.schedule(
+                () -> {
+                    synchronized (this) {
+                        retrying--;
+                    }
+                    enqueue(request);
+                },
+                delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Request {
+        private final Action action;
+
+        @CheckForNull
+        private final String instanceId;
+
+        @CheckForNull
+        private final String spotRequestId;
+
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private int attempts;
+
+        private Request(Action action, @CheckForNull String instanceId, @CheckForNull String spotRequestId) {
+            this.action = action;
+            this.instanceId = instanceId;
+            this.spotRequestId = spotRequestId;
+        }
+    }
+
+    private static final class CloudOperations implements Operations {
+        private final EC2Cloud cloud;
+
+        private CloudOperations(EC2Cloud cloud) {
+            this.cloud = cloud;
+        }
+
+        @NonNull
+        @Override
+        public Set<String> alive(@NonNull Collection<String> instanceIds) throws AmazonClientException {
+            Map<String, Instance> instances = CloudHelper.getInstances(instanceIds, cloud);
+            return instances.values().stream()
+                    .filter(instance ->
+                            !InstanceStateName.Terminated.toString().equals(instance.getState().getName()))
+                    .map(Instance::getInstanceId)
+                    .collect(Collectors.toSet());
+        }
+
+        @Override
+        public void cancelSpotRequests(@NonNull List<String> spotRequestIds) throws AmazonClientException {
+            try {
+                cloud.connect().cancelSpotInstanceRequests(new CancelSpotInstanceRequestsRequest(spotRequestIds));
+            } finally {
+                cloud.instancesRemoved(spotRequestIds.toArray(new String[0]));
+            }
+        }
+
+        @Override
+        public void apply(@NonNull Action action, @NonNull List<String> instanceIds) throws AmazonClientException {
+            AmazonEC2 ec2 = cloud.connect();
+            if (action == Action.STOP) {
+                ec2.stopInstances(new StopInstancesRequest(instanceIds));
+            } else {
+                ec2.terminateInstances(new TerminateInstancesRequest(instanceIds));
+            }
+            cloud.instancesRemoved(instanceIds.toArray(new String[0]));
+        }
+
+        @Override
+        public void gone(@NonNull List<String> instanceIds) {
+            cloud.instancesRemoved(instanceIds.toArray(new String[0]));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package hudson.plugins.ec2;
+
+import com.amazonaws.AmazonClientException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Fills the warm pools of the on-demand templates, see {@link SlaveTemplate#getWarmPoolSize()}.
+ */
+@Extension
+public class WarmPoolMaintainer extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(WarmPoolMaintainer.class.getName());
+
+    private final long recurrencePeriod;
+
+    public WarmPoolMaintainer() {
+        super("EC2 warm pool maintainer");
+        recurrencePeriod = Long.getLong("jenkins.ec2.warmPoolCheckPeriodMs", TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected Level getNormalLoggingLevel() {
+        return Level.FINEST;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.get();
+        if (jenkins.isQuietingDown() || jenkins.isTerminating()) {
+            return;
+        }
+        for (Cloud cloud : jenkins.clouds) {
+            if (!(cloud instanceof EC2Cloud)) {
+                continue;
+            }
+            for (SlaveTemplate template : ((EC2Cloud) cloud).getTemplates()) {
+                if (template.getWarmPoolSize() <= 0) {
+                    continue;
+                }
+                if (template.spotConfig != null) {
+                    LOGGER.log(Level.FINE, "{0}. Spot instances cannot be kept in a warm pool", template);
+                    continue;
+                }
+                try {
+                    ((EC2Cloud) cloud).replenishWarmPool(template);
+                } catch (AmazonClientException | IOException e) {
+                    LOGGER.log(Level.WARNING, template + ". Failed to fill the warm pool", e);
+                }
+            }
+        }
+    }
+}
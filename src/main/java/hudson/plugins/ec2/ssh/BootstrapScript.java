@@ -0,0 +1,166 @@
+package hudson.plugins.ec2.ssh;
+
+import hudson.console.LineTransformationOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The steps that prepare a Unix agent for its remoting.jar, generated as a single shell script so that they take one
+ * SSH exec rather than a session and a wait for the exit status each.
+ * <p>
+ * The script is idempotent: the init script only runs if the agent did not run it yet, and a tool is only installed if
+ * its check fails. Each step reports how it went on a line of its own, starting with {@link #REPORT}, which
+ * {@link Results} picks out of the output.
+ */
+final class BootstrapScript {
+
+    static final String REPORT = "@@ec2-bootstrap ";
+
+    /** The step ran and succeeded, or the tool was already there. */
+    static final String OK = "ok";
+
+    /** The tool was missing and got installed. */
+    static final String INSTALLED = "installed";
+
+    /** The init script already ran on the agent. */
+    static final String SKIPPED = "skipped";
+
+    private final String initMarker;
+
+    private final StringBuilder script = new StringBuilder();
+
+    BootstrapScript(String tmpDir) {
+        this(tmpDir, "~/.hudson-run-init");
+    }
+
+    /**
+     * @param initMarker the file whose existence tells that the init script already ran
+     */
+    BootstrapScript(String tmpDir, String initMarker) {
+        this.initMarker = initMarker;
+        script.append("report() { if [ \"$2\" = 0 ]; then echo \"" + REPORT + "$1 " + OK + "\"; ")
+                .append("else echo \"" + REPORT + "$1 $2\"; fi; }\n");
+        script.append("mkdir -p ").append(tmpDir).append("; report mkdir $?\n");
+    }
+
+    /**
+     * Runs the init script unless the agent already ran it, then marks it as ran; the bootstrap stops if either fails.
+     *
+     * @param initScript the content of the init script
+     * @param path where to write the init script on the agent
+     * @param runCommand how to run the init script
+     * @param markCommand how to mark it as ran
+     */
+    BootstrapScript init(String initScript, String path, String runCommand, String markCommand) {
+        String delimiter = "EC2_INIT_" + Integer.toHexString(initScript.hashCode());
+        script.append("if [ -e ")
+                .append(initMarker)
+                .append(" ]; then\n")
+                .append("  report init " + SKIPPED + "\n")
+                .append("else\n")
+                .append("  cat > ")
+                .append(path)
+                .append(" <<'")
+                .append(delimiter)
+                .append("'\n")
+                .append(initScript)
+                .append(initScript.endsWith("\n") ? "" : "\n")
+                .append(delimiter)
+                .append("\n")
+                .append("  chmod 0700 ")
+                .append(path)
+                .append("\n")
+                .append("  ")
+                .append(runCommand)
+                .append("; status=$?; [ $status -eq 0 ] || { report init $status; exit $status; }\n")
+                .append("  ")
+                .append(markCommand)
+                .append("; status=$?; report init $status; [ $status -eq 0 ] || exit $status\n")
+                .append("fi\n");
+        return this;
+    }
+
+    /**
+     * Runs the install command if the check command fails.
+     */
+    BootstrapScript ensure(String step, String checkCommand, String installCommand) {
+        script.append("if ")
+                .append(checkCommand)
+                .append("; then\n")
+                .append("  report ")
+                .append(step)
+                .append(" " + OK + "\n")
+                .append("else\n")
+                .append("  ")
+                .append(installCommand)
+                .append("; status=$?; if [ $status -eq 0 ]; then report ")
+                .append(step)
+                .append(" " + INSTALLED + "; else report ")
+                .append(step)
+                .append(" $status; fi\n")
+                .append("fi\n");
+        return this;
+    }
+
+    String getScript() {
+        return script.toString();
+    }
+
+    /**
+     * The command that runs the script with {@code sh}, whatever the login shell of the user.
+     */
+    String toCommand() {
+        return "sh -c '" + getScript().replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Passes the output of the script on, and collects how each step went.
+     */
+    static final class Results extends LineTransformationOutputStream.Delegating {
+        private final Map<String, String> steps = new LinkedHashMap<>();
+
+        Results(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            String line = trimEOL(new String(b, 0, len, StandardCharsets.UTF_8));
+            int start = line.indexOf(REPORT);
+            if (start < 0) {
+                out.write(b, 0, len);
+                return;
+            }
+            if (start > 0) {
+                // the step printed no newline at the end of its output
+                out.write((line.substring(0, start) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            String[] report = line.substring(start + REPORT.length()).trim().split(" ", 2);
+            synchronized (steps) {
+                steps.put(report[0], report.length > 1 ? report[1] : "");
+            }
+        }
+
+        /**
+         * How each step that ran went, in order: {@link #OK}, {@link #INSTALLED}, {@link #SKIPPED} or the exit code it
+         * failed with.
+         */
+        Map<String, String> getSteps() {
+            synchronized (steps) {
+                return Collections.unmodifiableMap(new LinkedHashMap<>(steps));
+            }
+        }
+
+        /**
+         * Whether the step ran and failed, or did not run because the script stopped before it.
+         */
+        boolean failed(String step) {
+            String status = getSteps().get(step);
+            return status == null || !(status.equals(OK) || status.equals(INSTALLED) || status.equals(SKIPPED));
+        }
+    }
+}
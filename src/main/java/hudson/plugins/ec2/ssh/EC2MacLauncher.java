@@ -27,6 +27,7 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.KeyPair;
 import com.trilead.ssh2.*;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.FilePath;
 import hudson.ProxyConfiguration;
 import hudson.Util;
@@ -64,8 +65,16 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
     private static final String READINESS_SLEEP_MS = "jenkins.ec2.readinessSleepMs";
     private static final String READINESS_TRIES = "jenkins.ec2.readinessTries";
 
+    private static final String BOOTSTRAP_AUTH_INITIAL_SLEEP_MS = "jenkins.ec2.bootstrapAuthInitialSleepMs";
+
     private static int bootstrapAuthSleepMs = 30000;
     private static int bootstrapAuthTries = 30;
+    private static int bootstrapAuthInitialSleepMs = 1000;
+
+    /**
+     * Whether to connect again after authenticating, even without a boot delay, rather than reuse the connection.
+     */
+    private static final boolean RECONNECT_AFTER_BOOTSTRAP = Boolean.getBoolean("jenkins.ec2.reconnectAfterBootstrap");
 
     private static int readinessSleepMs = 1000;
     private static int readinessTries = 120;
@@ -79,6 +88,10 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
         if (prop != null) {
             bootstrapAuthTries = Integer.parseInt(prop);
         }
+        prop = System.getProperty(BOOTSTRAP_AUTH_INITIAL_SLEEP_MS);
+        if (prop != null) {
+            bootstrapAuthInitialSleepMs = Integer.parseInt(prop);
+        }
         prop = System.getProperty(READINESS_TRIES);
         if (prop != null) {
             readinessTries = Integer.parseInt(prop);
@@ -89,6 +102,8 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
         }
     }
 
+    private static final SshReadinessProber PROBER = new SshReadinessProber();
+
     protected void log(Level level, EC2Computer computer, TaskListener listener, String message) {
         EC2Cloud.log(LOGGER, level, listener, message);
     }
@@ -158,9 +173,15 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
         logInfo(computer, listener, "Launching instance: " + node.getInstanceId());
 
         try {
-            boolean isBootstrapped = bootstrap(computer, listener, template);
-            if (isBootstrapped) {
-                int bootDelay = node.getBootDelay();
+            Connection bootstrapConn = bootstrap(computer, listener, template);
+            if (bootstrapConn == null) {
+                logWarning(computer, listener, "bootstrapresult failed");
+                return; // bootstrap closed for us.
+            }
+            int bootDelay = node.getBootDelay();
+            if (bootDelay > 0 || RECONNECT_AFTER_BOOTSTRAP) {
+                // sshd may restart while the instance finishes booting
+                bootstrapConn.close();
                 if (bootDelay > 0) {
                     logInfo(
                             computer,
@@ -180,8 +201,9 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
                     return; // failed to connect as root.
                 }
             } else {
-                logWarning(computer, listener, "bootstrapresult failed");
-                return; // bootstrap closed for us.
+                // already authenticated as the remote admin, with the same key
+                logInfo(computer, listener, "Reusing the bootstrap connection");
+                cleanupConn = bootstrapConn;
             }
             conn = cleanupConn;
 
@@ -235,6 +257,8 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
                 sess.close();
             }
 
+            computer.mark(ProvisioningTimeline.Phase.INITIALIZED);
+
             // TODO: parse the version number. maven-enforcer-plugin might help
             final String javaPath = node.javaPath;
             try {
@@ -261,9 +285,8 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
                 LOGGER.warning(ex.getMessage());
             }
 
-            // Always copy so we get the most recent remoting.jar
-            logInfo(computer, listener, "Copying remoting.jar to: " + tmpDir);
-            scp.put(Jenkins.get().getJnlpJars("remoting.jar").readFully(), "remoting.jar", tmpDir);
+            copyRemotingJar(computer, conn, tmpDir, logger, listener);
+            computer.mark(ProvisioningTimeline.Phase.AGENT_TRANSFERRED);
 
             final String jvmopts = node.jvmopts;
             final String prefix = computer.getSlaveCommandPrefix();
@@ -342,6 +365,42 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
         return true;
     }
 
+    /**
+     * Copies the remoting.jar of Jenkins to the agent, unless the agent already has it, as told by the hash file kept
+     * next to it.
+     */
+    private void copyRemotingJar(
+            EC2Computer computer, Connection conn, String tmpDir, PrintStream logger, TaskListener listener)
+            throws IOException, InterruptedException {
+        RemotingJar jar = RemotingJar.get();
+        String remoteJar = tmpDir + "/" + RemotingJar.FILE;
+        String remoteHash = tmpDir + "/" + RemotingJar.HASH_FILE;
+        String checkCommand =
+                "test -s " + remoteJar + " && test \"$(cat " + remoteHash + ")\" = " + jar.getSha256();
+        if (conn.exec(checkCommand, logger) == 0) {
+            logInfo(computer, listener, "remoting.jar is up to date in: " + tmpDir);
+            return;
+        }
+
+        logInfo(computer, listener, "Copying remoting.jar to: " + tmpDir);
+        Session sess = conn.openSession();
+        try {
+            // the hash is only written once the whole jar is in place
+            sess.execCommand("rm -f " + remoteHash + " && cat > " + remoteJar + ".part && mv " + remoteJar + ".part "
+                    + remoteJar + " && echo " + jar.getSha256() + " > " + remoteHash);
+            try (OutputStream stdin = sess.getStdin()) {
+                jar.copyTo(stdin);
+            }
+            IOUtils.copy(sess.getStdout(), logger);
+            IOUtils.copy(sess.getStderr(), logger);
+        } finally {
+            sess.close();
+        }
+        if (conn.exec(checkCommand, logger) != 0) {
+            throw new IOException("Failed to copy remoting.jar to " + tmpDir);
+        }
+    }
+
     private File createIdentityKeyFile(EC2Computer computer) throws IOException {
         EC2PrivateKey ec2PrivateKey = computer.getCloud().resolvePrivateKey();
         String privateKey = "";
@@ -372,25 +431,35 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
         }
     }
 
-    private boolean bootstrap(EC2Computer computer, TaskListener listener, SlaveTemplate template)
+    /**
+     * Connects and authenticates as the remote admin, retrying until the key is installed on the instance.
+     *
+     * @return the authenticated connection, or null if the authentication failed
+     */
+    @CheckForNull
+    private Connection bootstrap(EC2Computer computer, TaskListener listener, SlaveTemplate template)
             throws IOException, InterruptedException, AmazonClientException {
         logInfo(computer, listener, "bootstrap()");
         Connection bootstrapConn = null;
+        boolean isAuthenticated = false;
         try {
-            int tries = bootstrapAuthTries;
-            boolean isAuthenticated = false;
+            // sshd is up by now, but the key may not be installed yet: retry sooner at first, for as long as the
+            // configured tries would have slept
+            long deadline = System.currentTimeMillis() + (long) bootstrapAuthTries * bootstrapAuthSleepMs;
+            SshReadinessProber.Backoff backoff =
+                    new SshReadinessProber.Backoff(bootstrapAuthInitialSleepMs, bootstrapAuthSleepMs);
             logInfo(computer, listener, "Getting keypair...");
             KeyPair key = computer.getCloud().getKeyPair();
             if (key == null) {
                 logWarning(computer, listener, "Could not retrieve a valid key pair.");
-                return false;
+                return null;
             }
             logInfo(
                     computer,
                     listener,
                     String.format(
                             "Using private key %s (SHA-1 fingerprint %s)", key.getKeyName(), key.getKeyFingerprint()));
-            while (tries-- > 0) {
+            while (true) {
                 logInfo(computer, listener, "Authenticating as " + computer.getRemoteAdmin());
                 try {
                     bootstrapConn = connectToSsh(computer, listener, template);
@@ -398,24 +467,31 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
                             computer.getRemoteAdmin(), key.getKeyMaterial().toCharArray(), "");
                 } catch (IOException e) {
                     logException(computer, listener, "Exception trying to authenticate", e);
-                    bootstrapConn.close();
                 }
                 if (isAuthenticated) {
+                    computer.mark(ProvisioningTimeline.Phase.AUTHENTICATED);
+                    break;
+                }
+                bootstrapConn.close();
+                bootstrapConn = null;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
                     break;
                 }
-                logWarning(computer, listener, "Authentication failed. Trying again...");
-                Thread.sleep(bootstrapAuthSleepMs);
+                long sleep = Math.min(backoff.next(), remaining);
+                logWarning(computer, listener, "Authentication failed. Trying again in " + sleep + "ms...");
+                Thread.sleep(sleep);
             }
             if (!isAuthenticated) {
                 logWarning(computer, listener, "Authentication failed");
-                return false;
+                return null;
             }
+            return bootstrapConn;
         } finally {
-            if (bootstrapConn != null) {
+            if (!isAuthenticated && bootstrapConn != null) {
                 bootstrapConn.close();
             }
         }
-        return true;
     }
 
     private Connection connectToSsh(EC2Computer computer, TaskListener listener, SlaveTemplate template)
@@ -423,6 +499,8 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
         final EC2AbstractSlave node = computer.getNode();
         final long timeout = node == null ? 0L : node.getLaunchTimeoutInMillis();
         final long startTime = System.currentTimeMillis();
+        final SshReadinessProber.Backoff backoff = new SshReadinessProber.Backoff(
+                SshReadinessProber.INITIAL_BACKOFF_MS, SshReadinessProber.MAX_BACKOFF_MS);
         while (true) {
             try {
                 long waitTime = System.currentTimeMillis() - startTime;
@@ -452,6 +530,7 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
                             "Invalid host 0.0.0.0, your host is most likely waiting for an ip address.");
                     throw new IOException("goto sleep");
                 }
+                computer.mark(ProvisioningTimeline.Phase.ADDRESS_ASSIGNED);
 
                 int port = computer.getSshPort();
                 Integer slaveConnectTimeout = Integer.getInteger("jenkins.ec2.slaveConnectTimeout", 10000);
@@ -478,9 +557,19 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
                     logInfo(computer, listener, "Using HTTP Proxy Configuration");
                 }
 
+                if (proxy.equals(Proxy.NO_PROXY)) {
+                    // only start the handshake once sshd answers
+                    long window = timeout > 0
+                            ? Math.min(SshReadinessProber.WINDOW_MS, timeout - waitTime)
+                            : SshReadinessProber.WINDOW_MS;
+                    if (!PROBER.awaitBanner(host, port, slaveConnectTimeout, window)) {
+                        throw new IOException("no answer from SSH on " + host + ":" + port + " yet");
+                    }
+                }
                 conn.connect(
                         new ServerHostKeyVerifierImpl(computer, listener), slaveConnectTimeout, slaveConnectTimeout);
                 logInfo(computer, listener, "Connected via SSH.");
+                computer.mark(ProvisioningTimeline.Phase.REACHABLE);
                 return conn; // successfully connected
             } catch (IOException e) {
                 // keep retrying until SSH comes up
@@ -494,8 +583,9 @@ public class EC2MacLauncher extends EC2ComputerLauncher {
                     throw new AmazonClientException(
                             "The connection couldn't be established and the computer is now offline", e);
                 } else {
-                    logInfo(computer, listener, "Waiting for SSH to come up. Sleeping 5.");
-                    Thread.sleep(5000);
+                    long sleep = backoff.next();
+                    logInfo(computer, listener, "Waiting for SSH to come up. Sleeping " + sleep + "ms.");
+                    Thread.sleep(sleep);
                 }
             }
         }
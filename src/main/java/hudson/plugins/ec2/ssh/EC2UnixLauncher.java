@@ -31,6 +31,7 @@ import com.trilead.ssh2.HTTPProxyData;
 import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.Session;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.FilePath;
 import hudson.ProxyConfiguration;
 import hudson.Util;
@@ -47,6 +48,7 @@ import hudson.slaves.ComputerLauncher;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
@@ -74,8 +76,25 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
     private static final String READINESS_SLEEP_MS = "jenkins.ec2.readinessSleepMs";
     private static final String READINESS_TRIES = "jenkins.ec2.readinessTries";
 
+    private static final String BOOTSTRAP_AUTH_INITIAL_SLEEP_MS = "jenkins.ec2.bootstrapAuthInitialSleepMs";
+
     private static int bootstrapAuthSleepMs = 30000;
     private static int bootstrapAuthTries = 30;
+    private static int bootstrapAuthInitialSleepMs = 1000;
+
+    private static final String INSTALL_JAVA =
+            "sudo amazon-linux-extras install java-openjdk11 -y; sudo yum install -y fontconfig java-11-openjdk";
+    private static final String INSTALL_SCP = "sudo yum install -y openssh-clients";
+
+    /**
+     * Whether to prepare the agents with a command or a session per step, as before {@link BootstrapScript}.
+     */
+    private static final boolean STEP_BY_STEP_BOOTSTRAP = Boolean.getBoolean("jenkins.ec2.stepByStepBootstrap");
+
+    /**
+     * Whether to connect again after authenticating, even without a boot delay, rather than reuse the connection.
+     */
+    private static final boolean RECONNECT_AFTER_BOOTSTRAP = Boolean.getBoolean("jenkins.ec2.reconnectAfterBootstrap");
 
     private static int readinessSleepMs = 1000;
     private static int readinessTries = 120;
@@ -89,6 +108,10 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         if (prop != null) {
             bootstrapAuthTries = Integer.parseInt(prop);
         }
+        prop = System.getProperty(BOOTSTRAP_AUTH_INITIAL_SLEEP_MS);
+        if (prop != null) {
+            bootstrapAuthInitialSleepMs = Integer.parseInt(prop);
+        }
         prop = System.getProperty(READINESS_TRIES);
         if (prop != null) {
             readinessTries = Integer.parseInt(prop);
@@ -99,6 +122,8 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         }
     }
 
+    private static final SshReadinessProber PROBER = new SshReadinessProber();
+
     protected void log(Level level, EC2Computer computer, TaskListener listener, String message) {
         EC2Cloud.log(LOGGER, level, listener, message);
     }
@@ -168,9 +193,15 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         logInfo(computer, listener, "Launching instance: " + node.getInstanceId());
 
         try {
-            boolean isBootstrapped = bootstrap(computer, listener, template);
-            if (isBootstrapped) {
-                int bootDelay = node.getBootDelay();
+            Connection bootstrapConn = bootstrap(computer, listener, template);
+            if (bootstrapConn == null) {
+                logWarning(computer, listener, "bootstrapresult failed");
+                return; // bootstrap closed for us.
+            }
+            int bootDelay = node.getBootDelay();
+            if (bootDelay > 0 || RECONNECT_AFTER_BOOTSTRAP) {
+                // sshd may restart while the instance finishes booting
+                bootstrapConn.close();
                 if (bootDelay > 0) {
                     logInfo(
                             computer,
@@ -191,76 +222,25 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                     return; // failed to connect as root.
                 }
             } else {
-                logWarning(computer, listener, "bootstrapresult failed");
-                return; // bootstrap closed for us.
+                // already authenticated as the remote admin, with the same key
+                logInfo(computer, listener, "Reusing the bootstrap connection");
+                cleanupConn = bootstrapConn;
             }
             conn = cleanupConn;
 
-            SCPClient scp = conn.createSCPClient();
-            String initScript = node.initScript;
             String tmpDir = (Util.fixEmptyAndTrim(node.tmpDir) != null ? node.tmpDir : "/tmp");
-
-            logInfo(computer, listener, "Creating tmp directory (" + tmpDir + ") if it does not exist");
-            conn.exec("mkdir -p " + tmpDir, logger);
-
-            if (initScript != null
-                    && initScript.trim().length() > 0
-                    && conn.exec("test -e ~/.hudson-run-init", logger) != 0) {
-                logInfo(computer, listener, "Executing init script");
-                scp.put(initScript.getBytes("UTF-8"), "init.sh", tmpDir, "0700");
-                Session sess = conn.openSession();
-                sess.requestDumbPTY(); // so that the remote side bundles stdout
-                // and stderr
-                sess.execCommand(buildUpCommand(computer, tmpDir + "/init.sh"));
-
-                sess.getStdin().close(); // nothing to write here
-                sess.getStderr().close(); // we are not supposed to get anything
-                // from stderr
-                IOUtils.copy(sess.getStdout(), logger);
-
-                int exitStatus = waitCompletion(sess);
-                if (exitStatus != 0) {
-                    logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
-                    return;
-                }
-                sess.close();
-
-                logInfo(computer, listener, "Creating ~/.hudson-run-init");
-
-                // Needs a tty to run sudo.
-                sess = conn.openSession();
-                sess.requestDumbPTY(); // so that the remote side bundles stdout
-                // and stderr
-                sess.execCommand(buildUpCommand(computer, "touch ~/.hudson-run-init"));
-
-                sess.getStdin().close(); // nothing to write here
-                sess.getStderr().close(); // we are not supposed to get anything
-                // from stderr
-                IOUtils.copy(sess.getStdout(), logger);
-
-                exitStatus = waitCompletion(sess);
-                if (exitStatus != 0) {
-                    logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
-                    return;
-                }
-                sess.close();
+            boolean prepared = STEP_BY_STEP_BOOTSTRAP
+                    ? prepareStepByStep(computer, conn, node, tmpDir, logger, listener)
+                    : preparePipelined(computer, conn, node, tmpDir, logger, listener);
+            if (!prepared) {
+                return;
             }
+            computer.mark(ProvisioningTimeline.Phase.INITIALIZED);
 
-            // TODO: parse the version number. maven-enforcer-plugin might help
-            final String javaPath = node.javaPath;
-            executeRemote(
-                    computer,
-                    conn,
-                    javaPath + " -fullversion",
-                    "sudo amazon-linux-extras install java-openjdk11 -y; sudo yum install -y fontconfig java-11-openjdk",
-                    logger,
-                    listener);
-            executeRemote(computer, conn, "which scp", "sudo yum install -y openssh-clients", logger, listener);
-
-            // Always copy so we get the most recent remoting.jar
-            logInfo(computer, listener, "Copying remoting.jar to: " + tmpDir);
-            scp.put(Jenkins.get().getJnlpJars("remoting.jar").readFully(), "remoting.jar", tmpDir);
+            copyRemotingJar(computer, conn, tmpDir, logger, listener);
+            computer.mark(ProvisioningTimeline.Phase.AGENT_TRANSFERRED);
 
+            final String javaPath = node.javaPath;
             final String jvmopts = node.jvmopts;
             final String prefix = computer.getSlaveCommandPrefix();
             final String suffix = computer.getSlaveCommandSuffix();
@@ -329,6 +309,123 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         }
     }
 
+    /**
+     * Prepares the agent with a single generated script: creates the tmp directory, runs the init script if it did not
+     * run yet, and installs Java and scp if they are missing.
+     *
+     * @return whether the agent is ready for its remoting.jar
+     */
+    private boolean preparePipelined(
+            EC2Computer computer,
+            Connection conn,
+            EC2AbstractSlave node,
+            String tmpDir,
+            PrintStream logger,
+            TaskListener listener)
+            throws IOException, InterruptedException {
+        BootstrapScript script = new BootstrapScript(tmpDir);
+        String initScript = node.initScript;
+        if (initScript != null && initScript.trim().length() > 0) {
+            script.init(
+                    initScript,
+                    tmpDir + "/init.sh",
+                    buildUpCommand(computer, tmpDir + "/init.sh"),
+                    buildUpCommand(computer, "touch ~/.hudson-run-init"));
+        }
+        // TODO: parse the version number. maven-enforcer-plugin might help
+        script.ensure("java", node.javaPath + " -fullversion", INSTALL_JAVA)
+                .ensure("scp", "which scp", INSTALL_SCP);
+
+        logInfo(computer, listener, "Preparing the agent in " + tmpDir);
+        BootstrapScript.Results results = new BootstrapScript.Results(logger);
+        Session sess = conn.openSession();
+        try {
+            // Needs a tty to run sudo.
+            sess.requestDumbPTY(); // so that the remote side bundles stdout and stderr
+            sess.execCommand(script.toCommand());
+            sess.getStdin().close(); // nothing to write here
+            sess.getStderr().close(); // we are not supposed to get anything from stderr
+            IOUtils.copy(sess.getStdout(), results);
+            results.forceEol();
+        } finally {
+            sess.close();
+        }
+
+        results.getSteps().forEach((step, status) -> logInfo(computer, listener, "Bootstrap " + step + ": " + status));
+        boolean hasInitScript = initScript != null && initScript.trim().length() > 0;
+        if (hasInitScript && results.failed("init")) {
+            logWarning(computer, listener, "init script failed: " + results.getSteps());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prepares the agent like {@link #preparePipelined}, but with a command or a session per step.
+     */
+    private boolean prepareStepByStep(
+            EC2Computer computer,
+            Connection conn,
+            EC2AbstractSlave node,
+            String tmpDir,
+            PrintStream logger,
+            TaskListener listener)
+            throws IOException, InterruptedException {
+        SCPClient scp = conn.createSCPClient();
+        String initScript = node.initScript;
+
+        logInfo(computer, listener, "Creating tmp directory (" + tmpDir + ") if it does not exist");
+        conn.exec("mkdir -p " + tmpDir, logger);
+
+        if (initScript != null
+                && initScript.trim().length() > 0
+                && conn.exec("test -e ~/.hudson-run-init", logger) != 0) {
+            logInfo(computer, listener, "Executing init script");
+            scp.put(initScript.getBytes("UTF-8"), "init.sh", tmpDir, "0700");
+            Session sess = conn.openSession();
+            sess.requestDumbPTY(); // so that the remote side bundles stdout
+            // and stderr
+            sess.execCommand(buildUpCommand(computer, tmpDir + "/init.sh"));
+
+            sess.getStdin().close(); // nothing to write here
+            sess.getStderr().close(); // we are not supposed to get anything
+            // from stderr
+            IOUtils.copy(sess.getStdout(), logger);
+
+            int exitStatus = waitCompletion(sess);
+            if (exitStatus != 0) {
+                logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
+                return false;
+            }
+            sess.close();
+
+            logInfo(computer, listener, "Creating ~/.hudson-run-init");
+
+            // Needs a tty to run sudo.
+            sess = conn.openSession();
+            sess.requestDumbPTY(); // so that the remote side bundles stdout
+            // and stderr
+            sess.execCommand(buildUpCommand(computer, "touch ~/.hudson-run-init"));
+
+            sess.getStdin().close(); // nothing to write here
+            sess.getStderr().close(); // we are not supposed to get anything
+            // from stderr
+            IOUtils.copy(sess.getStdout(), logger);
+
+            exitStatus = waitCompletion(sess);
+            if (exitStatus != 0) {
+                logWarning(computer, listener, "init script failed: exit code=" + exitStatus);
+                return false;
+            }
+            sess.close();
+        }
+
+        // TODO: parse the version number. maven-enforcer-plugin might help
+        executeRemote(computer, conn, node.javaPath + " -fullversion", INSTALL_JAVA, logger, listener);
+        executeRemote(computer, conn, "which scp", INSTALL_SCP, logger, listener);
+        return true;
+    }
+
     private boolean executeRemote(
             EC2Computer computer,
             Connection conn,
@@ -348,6 +445,42 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         return true;
     }
 
+    /**
+     * Copies the remoting.jar of Jenkins to the agent, unless the agent already has it, as told by the hash file kept
+     * next to it.
+     */
+    private void copyRemotingJar(
+            EC2Computer computer, Connection conn, String tmpDir, PrintStream logger, TaskListener listener)
+            throws IOException, InterruptedException {
+        RemotingJar jar = RemotingJar.get();
+        String remoteJar = tmpDir + "/" + RemotingJar.FILE;
+        String remoteHash = tmpDir + "/" + RemotingJar.HASH_FILE;
+        String checkCommand =
+                "test -s " + remoteJar + " && test \"$(cat " + remoteHash + ")\" = " + jar.getSha256();
+        if (conn.exec(checkCommand, logger) == 0) {
+            logInfo(computer, listener, "remoting.jar is up to date in: " + tmpDir);
+            return;
+        }
+
+        logInfo(computer, listener, "Copying remoting.jar to: " + tmpDir);
+        Session sess = conn.openSession();
+        try {
+            // the hash is only written once the whole jar is in place
+            sess.execCommand("rm -f " + remoteHash + " && cat > " + remoteJar + ".part && mv " + remoteJar + ".part "
+                    + remoteJar + " && echo " + jar.getSha256() + " > " + remoteHash);
+            try (OutputStream stdin = sess.getStdin()) {
+                jar.copyTo(stdin);
+            }
+            IOUtils.copy(sess.getStdout(), logger);
+            IOUtils.copy(sess.getStderr(), logger);
+        } finally {
+            sess.close();
+        }
+        if (conn.exec(checkCommand, logger) != 0) {
+            throw new IOException("Failed to copy remoting.jar to " + tmpDir);
+        }
+    }
+
     private File createIdentityKeyFile(EC2Computer computer) throws IOException {
         EC2PrivateKey ec2PrivateKey = computer.getCloud().resolvePrivateKey();
         String privateKey = "";
@@ -405,25 +538,35 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         }
     }
 
-    private boolean bootstrap(EC2Computer computer, TaskListener listener, SlaveTemplate template)
+    /**
+     * Connects and authenticates as the remote admin, retrying until the key is installed on the instance.
+     *
+     * @return the authenticated connection, or null if the authentication failed
+     */
+    @CheckForNull
+    private Connection bootstrap(EC2Computer computer, TaskListener listener, SlaveTemplate template)
             throws IOException, InterruptedException, AmazonClientException {
         logInfo(computer, listener, "bootstrap()");
         Connection bootstrapConn = null;
+        boolean isAuthenticated = false;
         try {
-            int tries = bootstrapAuthTries;
-            boolean isAuthenticated = false;
+            // sshd is up by now, but the key may not be installed yet: retry sooner at first, for as long as the
+            // configured tries would have slept
+            long deadline = System.currentTimeMillis() + (long) bootstrapAuthTries * bootstrapAuthSleepMs;
+            SshReadinessProber.Backoff backoff =
+                    new SshReadinessProber.Backoff(bootstrapAuthInitialSleepMs, bootstrapAuthSleepMs);
             logInfo(computer, listener, "Getting keypair...");
             KeyPair key = computer.getCloud().getKeyPair();
             if (key == null) {
                 logWarning(computer, listener, "Could not retrieve a valid key pair.");
-                return false;
+                return null;
             }
             logInfo(
                     computer,
                     listener,
                     String.format(
                             "Using private key %s (SHA-1 fingerprint %s)", key.getKeyName(), key.getKeyFingerprint()));
-            while (tries-- > 0) {
+            while (true) {
                 logInfo(computer, listener, "Authenticating as " + computer.getRemoteAdmin());
                 try {
                     bootstrapConn = connectToSsh(computer, listener, template);
@@ -431,24 +574,31 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                             computer.getRemoteAdmin(), key.getKeyMaterial().toCharArray(), "");
                 } catch (IOException e) {
                     logException(computer, listener, "Exception trying to authenticate", e);
-                    bootstrapConn.close();
                 }
                 if (isAuthenticated) {
+                    computer.mark(ProvisioningTimeline.Phase.AUTHENTICATED);
                     break;
                 }
-                logWarning(computer, listener, "Authentication failed. Trying again...");
-                Thread.sleep(bootstrapAuthSleepMs);
+                bootstrapConn.close();
+                bootstrapConn = null;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                long sleep = Math.min(backoff.next(), remaining);
+                logWarning(computer, listener, "Authentication failed. Trying again in " + sleep + "ms...");
+                Thread.sleep(sleep);
             }
             if (!isAuthenticated) {
                 logWarning(computer, listener, "Authentication failed");
-                return false;
+                return null;
             }
+            return bootstrapConn;
         } finally {
-            if (bootstrapConn != null) {
+            if (!isAuthenticated && bootstrapConn != null) {
                 bootstrapConn.close();
             }
         }
-        return true;
     }
 
     private Connection connectToSsh(EC2Computer computer, TaskListener listener, SlaveTemplate template)
@@ -456,6 +606,8 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
         final EC2AbstractSlave node = computer.getNode();
         final long timeout = node == null ? 0L : node.getLaunchTimeoutInMillis();
         final long startTime = System.currentTimeMillis();
+        final SshReadinessProber.Backoff backoff = new SshReadinessProber.Backoff(
+                SshReadinessProber.INITIAL_BACKOFF_MS, SshReadinessProber.MAX_BACKOFF_MS);
         while (true) {
             try {
                 long waitTime = System.currentTimeMillis() - startTime;
@@ -485,6 +637,7 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                             "Invalid host 0.0.0.0, your host is most likely waiting for an ip address.");
                     throw new IOException("goto sleep");
                 }
+                computer.mark(ProvisioningTimeline.Phase.ADDRESS_ASSIGNED);
 
                 int port = computer.getSshPort();
                 Integer slaveConnectTimeout = Integer.getInteger("jenkins.ec2.slaveConnectTimeout", 10000);
@@ -511,9 +664,19 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                     logInfo(computer, listener, "Using HTTP Proxy Configuration");
                 }
 
+                if (proxy.equals(Proxy.NO_PROXY)) {
+                    // only start the handshake once sshd answers
+                    long window = timeout > 0
+                            ? Math.min(SshReadinessProber.WINDOW_MS, timeout - waitTime)
+                            : SshReadinessProber.WINDOW_MS;
+                    if (!PROBER.awaitBanner(host, port, slaveConnectTimeout, window)) {
+                        throw new IOException("no answer from SSH on " + host + ":" + port + " yet");
+                    }
+                }
                 conn.connect(
                         new ServerHostKeyVerifierImpl(computer, listener), slaveConnectTimeout, slaveConnectTimeout);
                 logInfo(computer, listener, "Connected via SSH.");
+                computer.mark(ProvisioningTimeline.Phase.REACHABLE);
                 return conn; // successfully connected
             } catch (IOException e) {
                 // keep retrying until SSH comes up
@@ -527,8 +690,9 @@ public class EC2UnixLauncher extends EC2ComputerLauncher {
                     throw new AmazonClientException(
                             "The connection couldn't be established and the computer is now offline", e);
                 } else {
-                    logInfo(computer, listener, "Waiting for SSH to come up. Sleeping 5.");
-                    Thread.sleep(5000);
+                    long sleep = backoff.next();
+                    logInfo(computer, listener, "Waiting for SSH to come up. Sleeping " + sleep + "ms.");
+                    Thread.sleep(sleep);
                 }
             }
         }
@@ -0,0 +1,183 @@
+package hudson.plugins.ec2.ssh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for sshd to answer on an instance, so that the launcher starts the SSH handshake as soon as sshd is up rather
+ * than at the end of a fixed sleep.
+ * <p>
+ * Each attempt connects without blocking and only reads the identification string the server sends first, which is
+ * much cheaper than a handshake: an instance still booting refuses or drops the connection, or accepts it before sshd
+ * is ready to talk. Attempts are retried after a short backoff that grows up to {@link #MAX_BACKOFF_MS}, with jitter
+ * so that the agents launched together do not probe in lockstep.
+ */
+final class SshReadinessProber {
+
+    private static final Logger LOGGER = Logger.getLogger(SshReadinessProber.class.getName());
+
+    static final long INITIAL_BACKOFF_MS = Long.getLong("jenkins.ec2.sshProbeInitialBackoffMs", 200);
+
+    static final long MAX_BACKOFF_MS = Long.getLong("jenkins.ec2.sshProbeMaxBackoffMs", 2000);
+
+    /**
+     * How long to probe an address before the launcher looks the address of the instance up again.
+     */
+    static final long WINDOW_MS = Long.getLong("jenkins.ec2.sshProbeWindowMs", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * The identification string must be within the first lines the server sends, which are at most 255 characters
+     * each; a few of them are plenty.
+     */
+    private static final int MAX_BANNER_BYTES = 4096;
+
+    private static final byte[] IDENTIFICATION_PREFIX = "SSH-".getBytes(StandardCharsets.US_ASCII);
+
+    private final long initialBackoffMs;
+
+    private final long maxBackoffMs;
+
+    SshReadinessProber() {
+        this(INITIAL_BACKOFF_MS, MAX_BACKOFF_MS);
+    }
+
+    SshReadinessProber(long initialBackoffMs, long maxBackoffMs) {
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * Probes the SSH server at the address until it sends its identification string.
+     *
+     * @param attemptTimeoutMs how long each attempt waits for the connection and the identification string
+     * @param windowMs how long to keep probing
+     * @return whether the server answered within the window
+     */
+    boolean awaitBanner(String host, int port, long attemptTimeoutMs, long windowMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+        Backoff backoff = new Backoff(initialBackoffMs, maxBackoffMs);
+        while (true) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                if (probe(new InetSocketAddress(host, port), Math.min(attemptTimeoutMs, remaining))) {
+                    return true;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINEST, "SSH is not up yet on " + host + ":" + port, e);
+            }
+            remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(backoff.next(), remaining));
+        }
+    }
+
+    /**
+     * Connects once to the address and reads what the server sends first.
+     *
+     * @return whether the server sent an SSH identification string within the timeout
+     */
+    static boolean probe(InetSocketAddress address, long timeoutMs) throws IOException, InterruptedException {
+        if (address.isUnresolved()) {
+            throw new IOException("Cannot resolve " + address.getHostString());
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try (Selector selector = Selector.open();
+                SocketChannel channel = SocketChannel.open()) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.connect(address)
+                    ? channel.register(selector, SelectionKey.OP_READ)
+                    : channel.register(selector, SelectionKey.OP_CONNECT);
+            ByteBuffer received = ByteBuffer.allocate(MAX_BANNER_BYTES);
+            while (true) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                selector.select(remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                selector.selectedKeys().clear();
+                if (key.isValid() && key.isConnectable()) {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                } else if (key.isValid() && key.isReadable()) {
+                    if (channel.read(received) < 0) {
+                        return false;
+                    }
+                    if (hasIdentification(received)) {
+                        return true;
+                    }
+                    if (!received.hasRemaining()) {
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether one of the lines received so far starts with the SSH identification prefix.
+     */
+    static boolean hasIdentification(ByteBuffer received) {
+        byte[] bytes = received.array();
+        int length = received.position();
+        for (int lineStart = 0; lineStart < length; ) {
+            if (startsWithPrefix(bytes, lineStart, length)) {
+                return true;
+            }
+            int lineEnd = lineStart;
+            while (lineEnd < length && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return false;
+    }
+
+    private static boolean startsWithPrefix(byte[] bytes, int from, int length) {
+        if (length - from < IDENTIFICATION_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < IDENTIFICATION_PREFIX.length; i++) {
+            if (bytes[from + i] != IDENTIFICATION_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits that double from the initial one up to the maximum, each picked at random in its upper half.
+     */
+    static final class Backoff {
+        private final long maxMs;
+
+        private long ceilingMs;
+
+        Backoff(long initialMs, long maxMs) {
+            this.maxMs = Math.max(1, maxMs);
+            this.ceilingMs = Math.min(Math.max(1, initialMs), this.maxMs);
+        }
+
+        long next() {
+            long ceiling = ceilingMs;
+            ceilingMs = Math.min(maxMs, ceilingMs * 2);
+            return ceiling - ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package hudson.plugins.ec2.ssh.verifiers;
+
+import com.amazonaws.AmazonClientException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Watches the console of an instance from its launch and keeps the host keys it prints, so that the strategies that
+ * check the key against the console find it ready by the time sshd answers, rather than fetching the whole console on
+ * each connection attempt.
+ * <p>
+ * EC2 returns the whole console on each request, so each poll only parses the lines printed since the previous one. A
+ * line holds a host key when a word is followed by a Base64 public key announcing that word as its algorithm, the way
+ * cloud-init prints them. The console is polled every {@link #INTERVAL_MS} until a poll brings no new key after some
+ * were found, and the keys are kept until the agent connects or {@link #WINDOW_MS} after the launch.
+ */
+@Restricted(NoExternalUse.class)
+public final class ConsoleHostKeyWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(ConsoleHostKeyWatcher.class.getName());
+
+    static final long INTERVAL_MS = Long.getLong("jenkins.ec2.consoleWatchIntervalMs", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * How long the keys of an instance are watched for and kept, 0 not to watch the consoles.
+     */
+    static final long WINDOW_MS = Long.getLong("jenkins.ec2.consoleWatchWindowMs", TimeUnit.MINUTES.toMillis(10));
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "EC2 console host key watcher"));
+
+    private static final Map<String, ConsoleHostKeyWatcher> WATCHERS = new ConcurrentHashMap<>();
+
+    /**
+     * Fetches the console of the instance.
+     */
+    @FunctionalInterface
+    public interface Console {
+        /**
+         * @return the decoded console output, null or empty while it is blank
+         */
+        @CheckForNull
+        String fetch() throws AmazonClientException;
+    }
+
+    private final String instanceId;
+
+    private final Console console;
+
+    private final ScheduledExecutorService executor;
+
+    private final long intervalMs;
+
+    private final Map<String, HostKey> keys = new LinkedHashMap<>();
+
+    /**
+     * The complete lines of the console parsed so far.
+     */
+    private String parsed = "";
+
+    private ScheduledFuture<?> next;
+
+    private ScheduledFuture<?> expiry;
+
+    private boolean stopped;
+
+    ConsoleHostKeyWatcher(
+            @NonNull String instanceId,
+            @NonNull Console console,
+            @NonNull ScheduledExecutorService executor,
+            long intervalMs) {
+        this.instanceId = instanceId;
+        this.console = console;
+        this.executor = executor;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Starts watching the console of a launched instance, in place of any previous watch of it.
+     */
+    public static void watch(@CheckForNull String instanceId, @NonNull Console console) {
+        if (instanceId == null || instanceId.isEmpty() || WINDOW_MS <= 0) {
+            return;
+        }
+        watch(new ConsoleHostKeyWatcher(instanceId, console, EXECUTOR, INTERVAL_MS), WINDOW_MS);
+    }
+
+    static ConsoleHostKeyWatcher watch(@NonNull ConsoleHostKeyWatcher watcher, long windowMs) {
+        ConsoleHostKeyWatcher previous = WATCHERS.put(watcher.instanceId, watcher);
+        if (previous != null) {
+            previous.cancel();
+        }
+        watcher.start(windowMs);
+        return watcher;
+    }
+
+    /**
+     * The watcher of the console of the instance, null if it is not watched.
+     */
+    @CheckForNull
+    public static ConsoleHostKeyWatcher get(@CheckForNull String instanceId) {
+        return instanceId == null ? null : WATCHERS.get(instanceId);
+    }
+
+    /**
+     * Stops watching the console of the instance and forgets its keys.
+     */
+    public static void stop(@CheckForNull String instanceId) {
+        ConsoleHostKeyWatcher watcher = instanceId == null ? null : WATCHERS.remove(instanceId);
+        if (watcher != null) {
+            watcher.cancel();
+        }
+    }
+
+    private synchronized void start(long windowMs) {
+        next = executor.schedule(this::poll, 0, TimeUnit.MILLISECONDS);
+        expiry = executor.schedule(
+                () -> {
+                    if (WATCHERS.remove(instanceId, this)) {
+                        cancel();
+                    }
+                },
+                windowMs,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancel() {
+        stopped = true;
+        if (next != null) {
+            next.cancel(false);
+        }
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+    }
+
+    private void poll() {
+        boolean found = false;
+        try {
+            found = consume(console.fetch());
+        } catch (AmazonClientException e) {
+            LOGGER.log(Level.FINE, "Failed to get the console of " + instanceId, e);
+        }
+        synchronized (this) {
+            if (stopped || (!found && !keys.isEmpty())) {
+                // the keys are printed all together, the next connection attempt looks any missing one up itself
+                return;
+            }
+            next = executor.schedule(this::poll, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Parses the lines of the console printed since the previous time.
+     *
+     * @return whether any new key was found
+     */
+    synchronized boolean consume(@CheckForNull String output) {
+        if (output == null || output.isEmpty()) {
+            return false;
+        }
+        int end = output.lastIndexOf('\n') + 1;
+        // the console may be the latest output only, which no longer starts with what was parsed
+        int start = output.startsWith(parsed) ? parsed.length() : 0;
+        boolean found = false;
+        for (String line : output.substring(Math.min(start, end), end).split("\n")) {
+            found |= parse(line);
+        }
+        parsed = output.substring(0, end);
+        return found;
+    }
+
+    private boolean parse(String line) {
+        boolean found = false;
+        String[] words = line.trim().split("\\s+");
+        for (int i = 0; i + 1 < words.length; i++) {
+            String algorithm = words[i];
+            if (algorithm.indexOf('-') < 0 || keys.containsKey(algorithm)) {
+                continue;
+            }
+            byte[] key = decode(algorithm, words[i + 1]);
+            if (key != null) {
+                // the first key printed for an algorithm wins, as when looking it up in the whole console
+                keys.put(algorithm, new HostKey(algorithm, key));
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Decodes a public key in the SSH wire format, which starts with the name of its algorithm.
+     *
+     * @return the key, null if the word is not a key of the algorithm
+     */
+    @CheckForNull
+    static byte[] decode(@NonNull String algorithm, @NonNull String word) {
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(word);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        byte[] name = algorithm.getBytes(StandardCharsets.US_ASCII);
+        if (key.length < 4 + name.length || ByteBuffer.wrap(key).getInt() != name.length) {
+            return null;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (key[4 + i] != name[i]) {
+                return null;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * The key the console printed for the algorithm, null if it did not print one yet.
+     */
+    @CheckForNull
+    public synchronized HostKey getHostKey(@NonNull String algorithm) {
+        return keys.get(algorithm);
+    }
+}
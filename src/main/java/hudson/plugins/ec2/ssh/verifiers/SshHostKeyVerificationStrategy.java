@@ -69,7 +69,8 @@ public abstract class SshHostKeyVerificationStrategy implements Describable<SshH
             extends Descriptor<SshHostKeyVerificationStrategy> {}
 
     /**
-     * Get the host key printed out in the console.
+     * Get the host key printed out in the console, as found by the {@link ConsoleHostKeyWatcher} of the instance if it
+     * already did, or else in the whole console.
      * @param computer
      * @param serverHostKeyAlgorithm
      * @return the hostkey found in the console, null if the console is blank, a non-null HostKey with the algorithm
@@ -83,6 +84,15 @@ public abstract class SshHostKeyVerificationStrategy implements Describable<SshH
         HostKey key;
         TaskListener listener = computer.getListener();
 
+        ConsoleHostKeyWatcher watcher = ConsoleHostKeyWatcher.get(computer.getInstanceId());
+        if (watcher != null) {
+            key = watcher.getHostKey(serverHostKeyAlgorithm);
+            if (key != null) {
+                // printed since the launch, no need to fetch the console again
+                return key;
+            }
+        }
+
         try {
             if (!computer.getState().equals(InstanceState.RUNNING)) {
                 EC2Cloud.log(
@@ -134,6 +144,11 @@ public abstract class SshHostKeyVerificationStrategy implements Describable<SshH
             return null;
         }
 
+        ConsoleHostKeyWatcher watcher = ConsoleHostKeyWatcher.get(computer.getInstanceId());
+        if (watcher != null) {
+            watcher.consume(console);
+        }
+
         try {
             int start = console.indexOf(serverHostKeyAlgorithm);
             if (start > -1) {
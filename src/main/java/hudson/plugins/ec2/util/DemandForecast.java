@@ -0,0 +1,148 @@
+package hudson.plugins.ec2.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Forecasts how many agents of a template will be busy a few minutes ahead, from the rate at which builds it can take
+ * enter the queue and how long they run.
+ * <p>
+ * Arrivals are counted per minute in a ring buffer. Every minute that ends updates a double exponential smoothing of
+ * the arrival rate, which follows its trend, so that a ramp-up is extrapolated rather than lagged behind as a plain
+ * moving average would. The build duration is an exponentially weighted moving average. By Little's law, the builds
+ * running at once are the arrival rate times the build duration.
+ */
+@Restricted(NoExternalUse.class)
+public final class DemandForecast {
+
+    static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * How many minutes of arrivals are kept.
+     */
+    private static final int MINUTES = 60;
+
+    /**
+     * After how long without any activity the history no longer says anything about the demand.
+     */
+    private static final long STALE_MINUTES = TimeUnit.DAYS.toMinutes(1);
+
+    private static final double LEVEL_WEIGHT = 0.3;
+
+    private static final double TREND_WEIGHT = 0.1;
+
+    private static final double DURATION_WEIGHT = 0.2;
+
+    private final LongSupplier clock;
+
+    private final int[] arrivals = new int[MINUTES];
+
+    /**
+     * The minute since the epoch whose arrivals are being counted.
+     */
+    private long minute;
+
+    private boolean smoothed;
+
+    private double level;
+
+    private double trend;
+
+    private double durationMs = -1;
+
+    public DemandForecast() {
+        this(System::currentTimeMillis);
+    }
+
+    DemandForecast(LongSupplier clock) {
+        this.clock = clock;
+        this.minute = clock.getAsLong() / MINUTE_MS;
+    }
+
+    /**
+     * Records a build entering the queue.
+     */
+    public synchronized void recordArrival() {
+        advance();
+        arrivals[(int) (minute % MINUTES)]++;
+    }
+
+    /**
+     * Records how long a build ran.
+     */
+    public synchronized void recordDuration(long durationMs) {
+        if (this.durationMs < 0) {
+            this.durationMs = durationMs;
+        } else {
+            this.durationMs = DURATION_WEIGHT * durationMs + (1 - DURATION_WEIGHT) * this.durationMs;
+        }
+    }
+
+    /**
+     * The arrivals per minute expected the given number of minutes ahead.
+     */
+    public synchronized double forecastRate(double minutesAhead) {
+        advance();
+        return smoothed ? Math.max(0, level + trend * minutesAhead) : 0;
+    }
+
+    /**
+     * How many agents are expected to be busy the given number of minutes ahead.
+     */
+    public synchronized int forecastAgents(double minutesAhead, int executorsPerAgent) {
+        double rate = forecastRate(minutesAhead);
+        if (rate == 0 || durationMs < 0) {
+            return 0;
+        }
+        double busyExecutors = rate * durationMs / MINUTE_MS;
+        return (int) Math.ceil(busyExecutors / Math.max(1, executorsPerAgent));
+    }
+
+    /**
+     * How many builds entered the queue during the given number of last complete minutes, up to an hour.
+     */
+    public synchronized int getArrivals(int minutes) {
+        advance();
+        int sum = 0;
+        for (int i = 1; i <= Math.min(minutes, MINUTES - 1); i++) {
+            sum += arrivals[(int) ((minute - i) % MINUTES)];
+        }
+        return sum;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "arrivals/min=" + String.format("%.2f", forecastRate(0)) + ", trend/min=" + String.format("%.2f", trend)
+                + ", duration=" + (durationMs < 0 ? "?" : TimeUnit.MILLISECONDS.toSeconds((long) durationMs) + "s");
+    }
+
+    /**
+     * Smooths the arrival rate with the counts of the minutes that ended since the last call.
+     */
+    private void advance() {
+        long now = clock.getAsLong() / MINUTE_MS;
+        if (now - minute > STALE_MINUTES) {
+            Arrays.fill(arrivals, 0);
+            smoothed = false;
+            level = 0;
+            trend = 0;
+            minute = now;
+            return;
+        }
+        for (; minute < now; minute++) {
+            int count = arrivals[(int) (minute % MINUTES)];
+            if (smoothed) {
+                double previousLevel = level;
+                level = LEVEL_WEIGHT * count + (1 - LEVEL_WEIGHT) * (level + trend);
+                trend = TREND_WEIGHT * (level - previousLevel) + (1 - TREND_WEIGHT) * trend;
+            } else {
+                level = count;
+                smoothed = true;
+            }
+            arrivals[(int) ((minute + 1) % MINUTES)] = 0;
+        }
+    }
+}
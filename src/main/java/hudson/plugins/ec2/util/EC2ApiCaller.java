@@ -0,0 +1,62 @@
+package hudson.plugins.ec2.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * The part of the plugin the EC2 API calls of the current thread are made for, which the calls are counted against
+ * and, for the background ones, which give way to the others in the {@link EC2RateLimiter}.
+ * <pre>
+ * try (EC2ApiCaller.Scope scope = EC2ApiCaller.MONITOR.enter()) {
+ *     ...
+ * }
+ * </pre>
+ */
+@Restricted(NoExternalUse.class)
+public enum EC2ApiCaller {
+    PROVISION(false),
+    LAUNCHER(false),
+    MONITOR(true),
+    RETENTION(true),
+    UI(false),
+    OTHER(false);
+
+    private static final ThreadLocal<EC2ApiCaller> CURRENT = ThreadLocal.withInitial(() -> OTHER);
+
+    private final boolean background;
+
+    EC2ApiCaller(boolean background) {
+        this.background = background;
+    }
+
+    /**
+     * The caller of the current thread, {@link #OTHER} outside any {@link #enter()}.
+     */
+    public static EC2ApiCaller current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Whether the calls are periodic sweeps that can wait for the others.
+     */
+    public boolean isBackground() {
+        return background;
+    }
+
+    /**
+     * Makes this the caller of the current thread until the returned scope is closed.
+     */
+    public Scope enter() {
+        EC2ApiCaller previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> CURRENT.set(previous);
+    }
+
+    /**
+     * Restores the previous caller of the current thread when closed.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,121 @@
+package hudson.plugins.ec2.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.plugins.ec2.LatencyRecorder;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * How the EC2 API calls of a cloud went, per operation: how many there were and for which {@link EC2ApiCaller}, how
+ * many failed or were throttled, and how long they took, including the retries of the SDK and the waits for the
+ * {@link EC2RateLimiter}.
+ *
+ * @see InstrumentedAmazonEC2Factory
+ */
+@Restricted(NoExternalUse.class)
+public final class EC2ApiMetrics {
+
+    /**
+     * The calls of the form validation of all the clouds, which connects with the values being configured rather than
+     * those of a cloud.
+     */
+    public static final EC2ApiMetrics FORM_VALIDATION = new EC2ApiMetrics();
+
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentSkipListMap<>();
+
+    /**
+     * Records a call to the operation, which took the given time and failed with the given error if any.
+     */
+    public void called(String operation, EC2ApiCaller caller, long millis, @CheckForNull Exception error) {
+        operations.computeIfAbsent(operation, Operation::new).called(caller, millis, error != null);
+    }
+
+    /**
+     * Records an attempt of a call to the operation that EC2 throttled.
+     */
+    public void throttled(String operation) {
+        operations.computeIfAbsent(operation, Operation::new).throttled();
+    }
+
+    /**
+     * The operations called so far, by name.
+     */
+    public List<Operation> getOperations() {
+        return new ArrayList<>(operations.values());
+    }
+
+    @Override
+    public String toString() {
+        return operations.values().stream().map(Operation::toString).collect(Collectors.joining("\n"));
+    }
+
+    public static final class Operation {
+        private final String name;
+
+        private final LatencyRecorder latency = new LatencyRecorder();
+
+        private final Map<EC2ApiCaller, Long> callers = new EnumMap<>(EC2ApiCaller.class);
+
+        private long errors;
+
+        private long throttles;
+
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        private synchronized void called(EC2ApiCaller caller, long millis, boolean failed) {
+            latency.record(millis);
+            callers.merge(caller, 1L, Long::sum);
+            if (failed) {
+                errors++;
+            }
+        }
+
+        private synchronized void throttled() {
+            throttles++;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        public synchronized long getErrors() {
+            return errors;
+        }
+
+        public synchronized long getThrottles() {
+            return throttles;
+        }
+
+        /**
+         * How long the recent calls took, in milliseconds.
+         */
+        public LatencyRecorder getLatency() {
+            return latency;
+        }
+
+        /**
+         * How many calls each caller made.
+         */
+        public synchronized Map<EC2ApiCaller, Long> getCallers() {
+            return new EnumMap<>(callers);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + ": " + latency + ", errors=" + errors + ", throttles=" + throttles + ", callers=" + callers;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package hudson.plugins.ec2.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Client side budget of the EC2 API calls of a cloud, modelled on the token buckets EC2 throttles the calls of an
+ * account with: one for the calls that only read, such as {@code DescribeInstances}, and one for those that change
+ * something, such as {@code RunInstances} or {@code CreateTags}.
+ * <p>
+ * Each call takes a token from its bucket, waiting for one if the bucket is empty. When EC2 throttles a call anyway,
+ * because other clients share the account, the bucket is refilled half as fast, then a little faster again after each
+ * call that goes through, up to its configured rate.
+ * <p>
+ * The calls of a {@linkplain EC2ApiCaller#isBackground() background} caller, such as the periodic sweeps over all the
+ * agents, leave half of each bucket to the others, so that provisioning is not held up behind them.
+ */
+@Restricted(NoExternalUse.class)
+public final class EC2RateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(EC2RateLimiter.class.getName());
+
+    /**
+     * How many calls that only read are made per second. 0 or less disables the limit.
+     */
+    static final int DESCRIBE_RATE = Integer.getInteger("jenkins.ec2.apiDescribeRate", 10);
+
+    static final int DESCRIBE_BURST = Integer.getInteger("jenkins.ec2.apiDescribeBurst", 50);
+
+    /**
+     * How many calls that change something are made per second. 0 or less disables the limit.
+     */
+    static final int MUTATING_RATE = Integer.getInteger("jenkins.ec2.apiMutatingRate", 5);
+
+    static final int MUTATING_BURST = Integer.getInteger("jenkins.ec2.apiMutatingBurst", 20);
+
+    /**
+     * The slowest a bucket is refilled at, as a fraction of its configured rate.
+     */
+    private static final double MIN_RATE_FACTOR = 0.05;
+
+    /**
+     * How much faster a bucket is refilled after each call that goes through, as a fraction of its configured rate.
+     */
+    private static final double RECOVERY_FACTOR = 0.02;
+
+    /**
+     * How long after a slow down another throttled call does not slow down again, since the calls that were in flight
+     * are throttled too.
+     */
+    private static final long THROTTLE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Budget {
+        DESCRIBE,
+        MUTATING
+    }
+
+    private final LongSupplier nanoClock;
+
+    private final Bucket describe;
+
+    private final Bucket mutating;
+
+    public EC2RateLimiter() {
+        this(System::nanoTime, DESCRIBE_RATE, DESCRIBE_BURST, MUTATING_RATE, MUTATING_BURST);
+    }
+
+    EC2RateLimiter(LongSupplier nanoClock, int describeRate, int describeBurst, int mutatingRate, int mutatingBurst) {
+        this.nanoClock = nanoClock;
+        this.describe = new Bucket(describeRate, describeBurst, nanoClock.getAsLong());
+        this.mutating = new Bucket(mutatingRate, mutatingBurst, nanoClock.getAsLong());
+    }
+
+    /**
+     * The budget an EC2 operation, such as {@code DescribeInstances}, takes its tokens from.
+     */
+    public static Budget budgetOf(String operation) {
+        return operation.startsWith("Describe") || operation.startsWith("Get") || operation.startsWith("List")
+                ? Budget.DESCRIBE
+                : Budget.MUTATING;
+    }
+
+    /**
+     * Takes a token for the operation, waiting for one as long as needed.
+     */
+    public void acquire(String operation) throws InterruptedException {
+        Bucket bucket = bucket(budgetOf(operation));
+        boolean background = EC2ApiCaller.current().isBackground();
+        long waitNanos;
+        while ((waitNanos = bucket.tryAcquire(background, nanoClock.getAsLong())) > 0) {
+            LOGGER.log(Level.FINEST, "Waiting {0}ms for a token to call {1}", new Object[] {
+                TimeUnit.NANOSECONDS.toMillis(waitNanos), operation
+            });
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Takes a token for a call from the budget if one is available.
+     *
+     * @return 0 if a token was taken, otherwise how many nanoseconds until one is
+     */
+    long tryAcquire(Budget budget, boolean background) {
+        return bucket(budget).tryAcquire(background, nanoClock.getAsLong());
+    }
+
+    /**
+     * Records a call to the operation that EC2 throttled.
+     */
+    public void throttled(String operation) {
+        Budget budget = budgetOf(operation);
+        if (bucket(budget).throttled(nanoClock.getAsLong())) {
+            LOGGER.log(Level.FINE, "EC2 throttled {0}, slowing {1} calls down to {2}/s", new Object[] {
+                operation, budget, getRate(budget)
+            });
+        }
+    }
+
+    /**
+     * Records a call to the operation that went through.
+     */
+    public void succeeded(String operation) {
+        bucket(budgetOf(operation)).succeeded();
+    }
+
+    /**
+     * How many calls per second the budget currently allows.
+     */
+    public double getRate(Budget budget) {
+        return bucket(budget).getRate();
+    }
+
+    /**
+     * How many calls per second each budget currently allows, to a tenth.
+     */
+    public Map<Budget, Double> getRates() {
+        Map<Budget, Double> rates = new EnumMap<>(Budget.class);
+        for (Budget budget : Budget.values()) {
+            rates.put(budget, Math.round(getRate(budget) * 10) / 10.0);
+        }
+        return rates;
+    }
+
+    private Bucket bucket(Budget budget) {
+        return budget == Budget.DESCRIBE ? describe : mutating;
+    }
+
+    private static final class Bucket {
+        private final double maxRate;
+
+        private final double burst;
+
+        private double rate;
+
+        private double tokens;
+
+        private long refilledAt;
+
+        private long throttledAt;
+
+        private Bucket(int rate, int burst, long now) {
+            this.maxRate = rate;
+            this.burst = Math.max(1, burst);
+            this.rate = rate;
+            this.tokens = this.burst;
+            this.refilledAt = now;
+            this.throttledAt = now - THROTTLE_COOLDOWN_NANOS;
+        }
+
+        synchronized long tryAcquire(boolean background, long now) {
+            if (maxRate <= 0) {
+                return 0;
+            }
+            tokens = Math.min(burst, tokens + rate * (now - refilledAt) / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+            double needed = background ? 1 + Math.floor(burst / 2) : 1;
+            if (tokens >= needed) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((needed - tokens) / rate * TimeUnit.SECONDS.toNanos(1)));
+        }
+
+        synchronized boolean throttled(long now) {
+            if (maxRate <= 0 || now - throttledAt < THROTTLE_COOLDOWN_NANOS) {
+                return false;
+            }
+            throttledAt = now;
+            rate = Math.max(maxRate * MIN_RATE_FACTOR, rate / 2);
+            // what is left was counted on a faster rate
+            tokens = 0;
+            return true;
+        }
+
+        synchronized void succeeded() {
+            rate = Math.min(maxRate, rate + maxRate * RECOVERY_FACTOR);
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+    }
+}
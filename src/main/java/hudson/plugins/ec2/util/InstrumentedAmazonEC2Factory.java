@@ -0,0 +1,116 @@
+package hudson.plugins.ec2.util;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.ec2.AmazonEC2;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Decorates the clients made by another {@link AmazonEC2Factory} so that their calls are recorded in
+ * {@link EC2ApiMetrics}.
+ * <p>
+ * The client is returned as is, with a request handler added when it is an SDK client; the calls of other clients,
+ * such as those of tests, are not recorded.
+ */
+@Restricted(NoExternalUse.class)
+public class InstrumentedAmazonEC2Factory implements AmazonEC2Factory {
+
+    private final AmazonEC2Factory delegate;
+
+    private final EC2ApiMetrics metrics;
+
+    @CheckForNull
+    private final EC2ApiCaller caller;
+
+    /**
+     * @param caller the caller to record the calls against, or null for {@link EC2ApiCaller#current()}
+     */
+    public InstrumentedAmazonEC2Factory(
+            AmazonEC2Factory delegate, EC2ApiMetrics metrics, @CheckForNull EC2ApiCaller caller) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.caller = caller;
+    }
+
+    /**
+     * The factory of the clients of the form validation, whose calls are recorded in
+     * {@link EC2ApiMetrics#FORM_VALIDATION}.
+     */
+    public static AmazonEC2Factory forFormValidation() {
+        return new InstrumentedAmazonEC2Factory(
+                AmazonEC2Factory.getInstance(), EC2ApiMetrics.FORM_VALIDATION, EC2ApiCaller.UI);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public AmazonEC2 connect(AWSCredentialsProvider credentialsProvider, URL ec2Endpoint) {
+        AmazonEC2 client = delegate.connect(credentialsProvider, ec2Endpoint);
+        if (client instanceof AmazonWebServiceClient) {
+            ((AmazonWebServiceClient) client).addRequestHandler(new MetricsHandler(metrics, caller, System::nanoTime));
+        }
+        return client;
+    }
+
+    static final class MetricsHandler extends RequestHandler2 {
+        private static final HandlerContextKey<Long> STARTED_AT =
+                new HandlerContextKey<>(MetricsHandler.class.getName() + ".startedAt");
+
+        private final EC2ApiMetrics metrics;
+
+        @CheckForNull
+        private final EC2ApiCaller caller;
+
+        private final LongSupplier nanoClock;
+
+        MetricsHandler(EC2ApiMetrics metrics, @CheckForNull EC2ApiCaller caller, LongSupplier nanoClock) {
+            this.metrics = metrics;
+            this.caller = caller;
+            this.nanoClock = nanoClock;
+        }
+
+        @Override
+        public void beforeRequest(Request<?> request) {
+            request.addHandlerContext(STARTED_AT, nanoClock.getAsLong());
+        }
+
+        @Override
+        public void afterAttempt(HandlerAfterAttemptContext context) {
+            Exception e = context.getException();
+            if (e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e)) {
+                metrics.throttled(RateLimitedAmazonEC2Factory.operationOf(context.getRequest()));
+            }
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Response<?> response) {
+            record(request, null);
+        }
+
+        @Override
+        public void afterError(Request<?> request, Response<?> response, Exception e) {
+            record(request, e);
+        }
+
+        private void record(Request<?> request, @CheckForNull Exception e) {
+            Long startedAt = request.getHandlerContext(STARTED_AT);
+            long millis = startedAt == null ? 0 : TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - startedAt);
+            metrics.called(
+                    RateLimitedAmazonEC2Factory.operationOf(request),
+                    caller != null ? caller : EC2ApiCaller.current(),
+                    millis,
+                    e);
+        }
+    }
+}
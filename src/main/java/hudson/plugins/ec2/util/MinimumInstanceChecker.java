@@ -13,6 +13,9 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 import jenkins.model.Jenkins;
 import org.kohsuke.accmod.Restricted;
@@ -21,6 +24,19 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 @Restricted(NoExternalUse.class)
 public class MinimumInstanceChecker {
 
+    private static final Logger LOGGER = Logger.getLogger(MinimumInstanceChecker.class.getName());
+
+    /**
+     * How often the demand forecasts are checked.
+     */
+    public static final long FORECAST_PERIOD_MILLIS =
+            Long.getLong("jenkins.ec2.demandForecastPeriodMs", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * The time assumed to boot an agent before any has.
+     */
+    private static final long DEFAULT_BOOT_MILLIS = TimeUnit.MINUTES.toMillis(4);
+
     @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Needs to be overridden from tests")
     public static Clock clock = Clock.systemDefaultZone();
 
@@ -111,6 +127,49 @@ public class MinimumInstanceChecker {
                 });
     }
 
+    /**
+     * Provisions the agents that the templates forecasting their demand expect to be busy by the time a new agent
+     * would be online, beyond the agents they already have.
+     *
+     * @see DemandForecast
+     */
+    public static void checkForPredictedDemand() {
+        Jenkins.get().clouds.stream()
+                .filter(EC2Cloud.class::isInstance)
+                .map(cloud -> (EC2Cloud) cloud)
+                .forEach(cloud -> {
+                    cloud.getTemplates().forEach(agentTemplate -> {
+                        if (!agentTemplate.isPredictiveProvisioning()) {
+                            return;
+                        }
+                        // Ahead by the time to boot an agent, and until the next check
+                        long bootMillis = agentTemplate.getBootLatency().getPercentile(90);
+                        if (bootMillis < 0) {
+                            bootMillis = DEFAULT_BOOT_MILLIS;
+                        }
+                        double leadMinutes =
+                                (double) (bootMillis + FORECAST_PERIOD_MILLIS) / TimeUnit.MINUTES.toMillis(1);
+                        DemandForecast forecast = agentTemplate.getDemandForecast();
+                        int forecastAgents = forecast.forecastAgents(leadMinutes, agentTemplate.getNumExecutors());
+                        int numberToProvision = forecastAgents - countCurrentNumberOfAgents(agentTemplate);
+                        if (numberToProvision > 0) {
+                            LOGGER.log(
+                                    Level.INFO,
+                                    "{0}. Provisioning {1} agents ahead of a forecast of {2} busy agents in {3} minutes"
+                                            + " ({4})",
+                                    new Object[] {
+                                        agentTemplate,
+                                        numberToProvision,
+                                        forecastAgents,
+                                        String.format("%.1f", leadMinutes),
+                                        forecast
+                                    });
+                            cloud.provision(agentTemplate, numberToProvision);
+                        }
+                    });
+                });
+    }
+
     public static boolean minimumInstancesActive(
             MinimumNumberOfInstancesTimeRangeConfig minimumNumberOfInstancesTimeRangeConfig) {
         if (minimumNumberOfInstancesTimeRangeConfig == null) {
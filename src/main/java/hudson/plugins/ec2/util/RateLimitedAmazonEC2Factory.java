@@ -0,0 +1,89 @@
+package hudson.plugins.ec2.util;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.Request;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.ec2.AmazonEC2;
+import java.net.URL;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Decorates the clients made by another {@link AmazonEC2Factory} so that their calls, including the attempts the SDK
+ * retries on its own, stay within the budget of an {@link EC2RateLimiter}.
+ * <p>
+ * The client is returned as is, with a request handler added when it is an SDK client; other clients, such as those of
+ * tests, are not limited.
+ */
+@Restricted(NoExternalUse.class)
+public class RateLimitedAmazonEC2Factory implements AmazonEC2Factory {
+
+    private static final Logger LOGGER = Logger.getLogger(RateLimitedAmazonEC2Factory.class.getName());
+
+    private final AmazonEC2Factory delegate;
+
+    private final EC2RateLimiter limiter;
+
+    public RateLimitedAmazonEC2Factory(AmazonEC2Factory delegate, EC2RateLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public AmazonEC2 connect(AWSCredentialsProvider credentialsProvider, URL ec2Endpoint) {
+        AmazonEC2 client = delegate.connect(credentialsProvider, ec2Endpoint);
+        if (client instanceof AmazonWebServiceClient) {
+            ((AmazonWebServiceClient) client).addRequestHandler(new RateLimitingHandler(limiter));
+        } else {
+            LOGGER.log(Level.FINE, "Not limiting the rate of calls of {0}", client);
+        }
+        return client;
+    }
+
+    /**
+     * The name of the EC2 operation of a request, such as {@code DescribeInstances}.
+     */
+    static String operationOf(Request<?> request) {
+        String name = request.getOriginalRequest().getClass().getSimpleName();
+        return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+    }
+
+    static final class RateLimitingHandler extends RequestHandler2 {
+        private final EC2RateLimiter limiter;
+
+        RateLimitingHandler(EC2RateLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void beforeAttempt(HandlerBeforeAttemptContext context) {
+            try {
+                limiter.acquire(operationOf(context.getRequest()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("Interrupted while waiting to call EC2", e);
+            }
+        }
+
+        @Override
+        public void afterAttempt(HandlerAfterAttemptContext context) {
+            String operation = operationOf(context.getRequest());
+            Exception e = context.getException();
+            if (e == null) {
+                limiter.succeeded(operation);
+            } else if (e instanceof AmazonServiceException
+                    && RetryUtils.isThrottlingException((AmazonServiceException) e)) {
+                limiter.throttled(operation);
+            }
+        }
+    }
+}
@@ -17,12 +17,12 @@ import hudson.slaves.ComputerLauncher;
 import hudson.slaves.OfflineCause;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLException;
-import jenkins.model.Jenkins;
 import org.apache.commons.io.IOUtils;
 
 public class EC2WindowsLauncher extends EC2ComputerLauncher {
@@ -80,12 +80,23 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
                 }
                 logger.println("init script ran successfully");
             }
+            computer.mark(ProvisioningTimeline.Phase.INITIALIZED);
 
-            try (OutputStream agentJar = connection.putFile(tmpDir + AGENT_JAR)) {
-                agentJar.write(Jenkins.get().getJnlpJars(AGENT_JAR).readFully());
+            RemotingJar jar = RemotingJar.get();
+            if (hasRemotingJar(connection, tmpDir, jar)) {
+                logger.println("remoting.jar is up to date remotely. Bootstrapping it");
+            } else {
+                // the hash is only written once the whole jar is in place
+                connection.putFile(tmpDir + RemotingJar.HASH_FILE).close();
+                try (OutputStream agentJar = connection.putFile(tmpDir + AGENT_JAR)) {
+                    jar.copyTo(agentJar);
+                }
+                try (OutputStream hash = connection.putFile(tmpDir + RemotingJar.HASH_FILE)) {
+                    hash.write(jar.getHashFile());
+                }
+                logger.println("remoting.jar sent remotely. Bootstrapping it");
             }
-
-            logger.println("remoting.jar sent remotely. Bootstrapping it");
+            computer.mark(ProvisioningTimeline.Phase.AGENT_TRANSFERRED);
 
             final String javaPath = node.javaPath;
             final String jvmopts = node.jvmopts;
@@ -120,6 +131,18 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
         }
     }
 
+    /**
+     * Whether the agent already has the jar, as told by the hash file kept next to it.
+     */
+    private static boolean hasRemotingJar(WinConnection connection, String tmpDir, RemotingJar jar) throws IOException {
+        if (!connection.exists(tmpDir + AGENT_JAR) || !connection.exists(tmpDir + RemotingJar.HASH_FILE)) {
+            return false;
+        }
+        try (InputStream hash = connection.getFile(tmpDir + RemotingJar.HASH_FILE)) {
+            return jar.matches(IOUtils.toString(hash, StandardCharsets.US_ASCII));
+        }
+    }
+
     @NonNull
     private WinConnection connectToWinRM(
             EC2Computer computer, EC2AbstractSlave node, SlaveTemplate template, PrintStream logger)
@@ -154,6 +177,7 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
                                 "Invalid host (null or 0.0.0.0). Your host is most likely waiting for an IP address.");
                         throw new IOException("goto sleep");
                     }
+                    computer.mark(ProvisioningTimeline.Phase.ADDRESS_ASSIGNED);
 
                     if (!node.isSpecifyPassword()) {
                         GetPasswordDataResult result;
@@ -202,6 +226,7 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
                     Thread.sleep(sleepBetweenAttempts);
                     continue;
                 }
+                computer.mark(ProvisioningTimeline.Phase.REACHABLE);
 
                 if (!alreadyBooted || node.stopOnTerminate) {
                     int bootDelay = node.getBootDelay();
@@ -220,6 +245,7 @@ public class EC2WindowsLauncher extends EC2ComputerLauncher {
                 }
 
                 logger.println("Connected with WinRM.");
+                computer.mark(ProvisioningTimeline.Phase.AUTHENTICATED);
                 return connection; // successfully connected
             } catch (IOException e) {
                 if (e instanceof SSLException) {
@@ -0,0 +1,92 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
+import com.amazonaws.services.ec2.model.Subnet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class CapacityAwareSubnetSelectorTest {
+
+    private static final List<String> SUBNETS = List.of("subnet-a", "subnet-b", "subnet-c");
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private final CapacityAwareSubnetSelector selector = new CapacityAwareSubnetSelector(now::get);
+
+    private static AmazonEC2 ec2(Subnet... subnets) {
+        AmazonEC2 ec2 = mock(AmazonEC2.class);
+        when(ec2.describeSubnets(any(DescribeSubnetsRequest.class)))
+                .thenReturn(new DescribeSubnetsResult().withSubnets(subnets));
+        return ec2;
+    }
+
+    private static Subnet subnet(String subnetId, String zone, int freeIps) {
+        return new Subnet().withSubnetId(subnetId).withAvailabilityZone(zone).withAvailableIpAddressCount(freeIps);
+    }
+
+    @Test
+    public void testRoundRobinWithoutAnyKnowledge() {
+        assertEquals("subnet-a", selector.rank(SUBNETS, 1, null).get(0));
+        assertEquals("subnet-b", selector.rank(SUBNETS, 1, null).get(0));
+        assertEquals("subnet-c", selector.rank(SUBNETS, 1, null).get(0));
+        assertEquals("subnet-a", selector.rank(SUBNETS, 1, null).get(0));
+    }
+
+    @Test
+    public void testSubnetsShortOfAddressesComeLast() {
+        AmazonEC2 ec2 = ec2(
+                subnet("subnet-a", "us-east-1a", 2),
+                subnet("subnet-b", "us-east-1b", 100),
+                subnet("subnet-c", "us-east-1c", 100));
+        assertEquals(List.of("subnet-b", "subnet-c", "subnet-a"), selector.rank(SUBNETS, 5, ec2));
+        // the free addresses are only described again once they are too old
+        selector.rank(SUBNETS, 5, ec2);
+        verify(ec2, times(1)).describeSubnets(any(DescribeSubnetsRequest.class));
+
+        selector.launched("subnet-b", 98, 1000);
+        assertEquals(List.of("subnet-c", "subnet-a", "subnet-b"), selector.rank(SUBNETS, 5, ec2));
+
+        now.addAndGet(CapacityAwareSubnetSelector.STATS_TTL_MS);
+        selector.rank(SUBNETS, 5, ec2);
+        verify(ec2, times(2)).describeSubnets(any(DescribeSubnetsRequest.class));
+    }
+
+    @Test
+    public void testZoneOutOfCapacityRanksDownAllItsSubnets() {
+        AmazonEC2 ec2 = ec2(
+                subnet("subnet-a", "us-east-1a", 100),
+                subnet("subnet-b", "us-east-1a", 100),
+                subnet("subnet-c", "us-east-1c", 100));
+        selector.rank(SUBNETS, 1, ec2);
+        selector.failed("subnet-a", "InsufficientInstanceCapacity");
+        assertEquals(List.of("subnet-c", "subnet-b", "subnet-a"), selector.rank(SUBNETS, 1, ec2));
+
+        now.addAndGet(CapacityAwareSubnetSelector.ERROR_PENALTY_MS);
+        selector.rank(SUBNETS, 1, null);
+        assertEquals(SUBNETS, selector.rank(SUBNETS, 1, null));
+    }
+
+    @Test
+    public void testSlowSubnetsAreRankedDown() {
+        selector.launched("subnet-a", 1, 10_000);
+        selector.launched("subnet-b", 1, 1_000);
+        selector.launched("subnet-c", 1, 1_500);
+        assertEquals(List.of("subnet-b", "subnet-c", "subnet-a"), selector.rank(SUBNETS, 1, null));
+    }
+
+    @Test
+    public void testOtherErrorsDoNotRankDown() {
+        selector.failed("subnet-a", "InvalidParameterValue");
+        assertEquals("subnet-a", selector.rank(SUBNETS, 1, null).get(0));
+    }
+}
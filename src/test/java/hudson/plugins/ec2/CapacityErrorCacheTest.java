@@ -0,0 +1,62 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class CapacityErrorCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private final CapacityErrorCache cache = new CapacityErrorCache(now::get);
+
+    @Test
+    public void testBackoffDoublesAtEachError() {
+        cache.recordError("m5.xlarge", "subnet-a");
+        assertTrue(cache.isExhausted("m5.xlarge", "subnet-a"));
+        assertFalse(cache.isExhausted("m5.xlarge", "subnet-b"));
+        assertFalse(cache.isExhausted("m5a.xlarge", "subnet-a"));
+
+        now.addAndGet(CapacityErrorCache.BACKOFF_MS);
+        assertFalse(cache.isExhausted("m5.xlarge", "subnet-a"));
+
+        cache.recordError("m5.xlarge", "subnet-a");
+        now.addAndGet(CapacityErrorCache.BACKOFF_MS);
+        assertTrue(cache.isExhausted("m5.xlarge", "subnet-a"));
+        now.addAndGet(CapacityErrorCache.BACKOFF_MS);
+        assertFalse(cache.isExhausted("m5.xlarge", "subnet-a"));
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        for (int i = 0; i < 64; i++) {
+            cache.recordError("m5.xlarge", "subnet-a");
+        }
+        now.addAndGet(CapacityErrorCache.MAX_BACKOFF_MS);
+        assertFalse(cache.isExhausted("m5.xlarge", "subnet-a"));
+    }
+
+    @Test
+    public void testSuccessForgetsErrors() {
+        cache.recordError("m5.xlarge", "subnet-a");
+        cache.recordError("m5.xlarge", "subnet-a");
+        cache.recordSuccess("m5.xlarge", "subnet-a");
+        assertFalse(cache.isExhausted("m5.xlarge", "subnet-a"));
+
+        cache.recordError("m5.xlarge", "subnet-a");
+        now.addAndGet(CapacityErrorCache.BACKOFF_MS);
+        assertFalse(cache.isExhausted("m5.xlarge", "subnet-a"));
+    }
+
+    @Test
+    public void testPool() {
+        assertEquals("subnet-a", CapacityErrorCache.pool("subnet-a", "us-east-1a"));
+        assertEquals("us-east-1a", CapacityErrorCache.pool(" ", "us-east-1a"));
+        assertEquals("", CapacityErrorCache.pool(null, null));
+        assertTrue(CapacityErrorCache.isCapacityError("InsufficientInstanceCapacity"));
+        assertFalse(CapacityErrorCache.isCapacityError("InvalidAMIID.NotFound"));
+    }
+}
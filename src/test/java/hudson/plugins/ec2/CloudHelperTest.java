@@ -1,6 +1,7 @@
 package hudson.plugins.ec2;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
@@ -8,8 +9,10 @@ import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.Reservation;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -132,4 +135,26 @@ public class CloudHelperTest {
         Instance result = CloudHelper.getInstanceWithRetry("test-instance-id", spyCloud);
         assertEquals(mockedInstance, result);
     }
+
+    @Test
+    public void testGetInstancesFollowsPagesAndSkipsUnknownIds() throws Exception {
+        EC2Cloud spyCloud = Mockito.spy(cloud);
+        AmazonEC2 mockEc2 = Mockito.mock(AmazonEC2.class);
+        Mockito.doReturn(mockEc2).when(spyCloud).connect();
+        Instance first = new Instance().withInstanceId("i-1");
+        Instance second = new Instance().withInstanceId("i-2");
+        Mockito.doReturn(
+                        new DescribeInstancesResult()
+                                .withReservations(new Reservation().withInstances(first))
+                                .withNextToken("page-2"),
+                        new DescribeInstancesResult().withReservations(new Reservation().withInstances(second)))
+                .when(mockEc2)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+
+        Map<String, Instance> instances = CloudHelper.getInstances(Arrays.asList("i-1", "i-2", "i-3"), spyCloud);
+        assertEquals(first, instances.get("i-1"));
+        assertEquals(second, instances.get("i-2"));
+        assertNull(instances.get("i-3"));
+        Mockito.verify(mockEc2, Mockito.times(2)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
 }
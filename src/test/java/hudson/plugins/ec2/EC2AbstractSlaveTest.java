@@ -5,6 +5,8 @@ import static hudson.plugins.ec2.EC2AbstractSlave.DEFAULT_METADATA_HOPS_LIMIT;
 import static hudson.plugins.ec2.EC2AbstractSlave.DEFAULT_METADATA_SUPPORTED;
 import static hudson.plugins.ec2.EC2AbstractSlave.DEFAULT_METADATA_TOKENS_REQUIRED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import com.amazonaws.services.ec2.model.InstanceType;
 import hudson.model.Node;
@@ -159,4 +161,55 @@ public class EC2AbstractSlaveTest {
                 };
         assertEquals(-1, slave.maxTotalUses);
     }
+
+    @Test
+    public void testAgentIsRemovedWhenItsCloudIsGone() throws Exception {
+        EC2AbstractSlave slave = agentOfCloud("gone", true);
+        r.jenkins.addNode(slave);
+        slave.terminate();
+        assertNull(r.jenkins.getNode("gone-spot"));
+
+        // the agent is kept for an administrator to look into, as when its instance cannot be terminated
+        EC2AbstractSlave kept = agentOfCloud("gone", false);
+        r.jenkins.addNode(kept);
+        kept.terminate();
+        assertNotNull(r.jenkins.getNode("gone-ondemand"));
+    }
+
+    private static EC2AbstractSlave agentOfCloud(String cloudName, boolean removeAnyway) throws Exception {
+        return new EC2AbstractSlave(
+                cloudName + (removeAnyway ? "-spot" : "-ondemand"),
+                "i-0123456789abcdef0",
+                "description",
+                "fs",
+                1,
+                null,
+                "label",
+                null,
+                null,
+                "init",
+                "tmpDir",
+                new ArrayList<NodeProperty<?>>(),
+                "root",
+                "jvm",
+                false,
+                "idle",
+                null,
+                cloudName,
+                false,
+                Integer.MAX_VALUE,
+                new UnixData("remote", null, null, "22", null),
+                ConnectionStrategy.PRIVATE_IP,
+                -1) {
+            @Override
+            public void terminate() {
+                queueTermination(null, removeAnyway);
+            }
+
+            @Override
+            public String getEc2Type() {
+                return null;
+            }
+        };
+    }
 }
@@ -0,0 +1,156 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.AmazonClientException;
+import hudson.model.Label;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class EC2CloudProvisionTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private final Label label = Label.get("linux");
+
+    private EC2Cloud cloud;
+
+    private SlaveTemplate first;
+
+    private SlaveTemplate second;
+
+    @Before
+    public void setUp() throws Exception {
+        cloud = spy(new AmazonEC2Cloud(
+                "us-east-1",
+                true,
+                "abc",
+                "us-east-1",
+                null,
+                "ghi",
+                "3",
+                Collections.emptyList(),
+                "roleArn",
+                "roleSessionName"));
+        first = template("first");
+        second = template("second");
+        doReturn(List.of(first, second)).when(cloud).getTemplates(label);
+        doAnswer(invocation -> new PlannedNode(
+                        invocation.<SlaveTemplate>getArgument(0).getDisplayName(),
+                        CompletableFuture.completedFuture(invocation.getArgument(1)),
+                        1))
+                .when(cloud)
+                .createPlannedNode(any(), any());
+    }
+
+    private static SlaveTemplate template(String name) {
+        SlaveTemplate template = mock(SlaveTemplate.class);
+        when(template.getNumExecutors()).thenReturn(1);
+        when(template.getDisplayName()).thenReturn(name);
+        return template;
+    }
+
+    private static List<EC2AbstractSlave> agents(int number) {
+        List<EC2AbstractSlave> agents = new ArrayList<>();
+        for (int i = 0; i < number; i++) {
+            agents.add(mock(EC2AbstractSlave.class));
+        }
+        return agents;
+    }
+
+    @Test
+    public void testTemplatesDoNotLaunchForTheSameWorkload() throws Exception {
+        // the first template only covers two of the three units, and is still launching when the next one is tried
+        when(first.getNumExecutors()).thenReturn(2);
+        CountDownLatch secondLaunched = new CountDownLatch(1);
+        doAnswer(invocation -> {
+                    assertTrue(secondLaunched.await(1, TimeUnit.MINUTES));
+                    return agents(invocation.getArgument(1));
+                })
+                .when(cloud)
+                .getNewOrExistingAvailableSlave(eq(first), anyInt(), anyBoolean(), any());
+        doAnswer(invocation -> {
+                    secondLaunched.countDown();
+                    return agents(invocation.getArgument(1));
+                })
+                .when(cloud)
+                .getNewOrExistingAvailableSlave(eq(second), anyInt(), anyBoolean(), any());
+
+        Collection<PlannedNode> planned = cloud.provision(label, 3);
+
+        assertEquals(2, planned.size());
+        verify(cloud).getNewOrExistingAvailableSlave(eq(first), eq(1), anyBoolean(), any());
+        verify(cloud).getNewOrExistingAvailableSlave(eq(second), eq(1), anyBoolean(), any());
+    }
+
+    @Test
+    public void testShareOfFailedTemplateIsGivenBack() throws Exception {
+        doAnswer(invocation -> {
+                    throw new AmazonClientException("InsufficientInstanceCapacity");
+                })
+                .when(cloud)
+                .getNewOrExistingAvailableSlave(eq(first), anyInt(), anyBoolean(), any());
+        doAnswer(invocation -> agents(invocation.getArgument(1)))
+                .when(cloud)
+                .getNewOrExistingAvailableSlave(eq(second), anyInt(), anyBoolean(), any());
+
+        Collection<PlannedNode> planned = cloud.provision(label, 2);
+
+        assertEquals(2, planned.size());
+        verify(cloud).getNewOrExistingAvailableSlave(eq(second), eq(2), anyBoolean(), any());
+    }
+
+    @Test
+    public void testLaunchedAgentsAreKeptWhenInterrupted() throws Exception {
+        CountDownLatch launching = new CountDownLatch(1);
+        CountDownLatch launched = new CountDownLatch(1);
+        doAnswer(invocation -> {
+                    launching.countDown();
+                    assertTrue(launched.await(1, TimeUnit.MINUTES));
+                    return agents(invocation.getArgument(1));
+                })
+                .when(cloud)
+                .getNewOrExistingAvailableSlave(eq(first), anyInt(), anyBoolean(), any());
+
+        AtomicReference<Collection<PlannedNode>> planned = new AtomicReference<>();
+        AtomicBoolean stillInterrupted = new AtomicBoolean();
+        Thread provisioning = new Thread(() -> {
+            planned.set(cloud.provision(label, 1));
+            stillInterrupted.set(Thread.currentThread().isInterrupted());
+        });
+        provisioning.start();
+        assertTrue(launching.await(1, TimeUnit.MINUTES));
+        provisioning.interrupt();
+        launched.countDown();
+        provisioning.join(TimeUnit.MINUTES.toMillis(1));
+
+        assertEquals(1, planned.get().size());
+        assertTrue(stillInterrupted.get());
+        verify(cloud, never()).getNewOrExistingAvailableSlave(eq(second), anyInt(), anyBoolean(), any());
+    }
+}
@@ -0,0 +1,174 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateFleetRequest;
+import com.amazonaws.services.ec2.model.DefaultTargetCapacityType;
+import com.amazonaws.services.ec2.model.FleetLaunchTemplateOverridesRequest;
+import com.amazonaws.services.ec2.model.IamInstanceProfileSpecification;
+import com.amazonaws.services.ec2.model.InstanceNetworkInterfaceSpecification;
+import com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
+import com.amazonaws.services.ec2.model.ResourceType;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagSpecification;
+import java.util.Collections;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.junit.Test;
+
+public class FleetLauncherTest {
+
+    @Test
+    public void testInstanceTypesOfTheFleetMoveToTheTemplate() {
+        FleetConfiguration config = (FleetConfiguration) Jenkins.XSTREAM2.fromXML(
+                "<hudson.plugins.ec2.FleetConfiguration><instanceTypes>m5a.xlarge, m6i.xlarge</instanceTypes>"
+                        + "<spotPercentage>50</spotPercentage></hudson.plugins.ec2.FleetConfiguration>");
+        assertEquals("m5.xlarge m5a.xlarge, m6i.xlarge", config.migrateInstanceTypes("m5.xlarge"));
+        assertEquals(50, config.getSpotPercentage());
+        assertNull(config.migrateInstanceTypes(null));
+        assertEquals("m5.xlarge", config.migrateInstanceTypes("m5.xlarge"));
+    }
+
+    @Test
+    public void testOverridesTryEveryInstanceTypeInEverySubnet() {
+        CreateFleetRequest request = FleetLauncher.toFleetRequest(
+                "lt-123",
+                List.of("m5.xlarge", "m5a.xlarge"),
+                List.of("subnet-a", "subnet-b"),
+                5,
+                60,
+                new CapacityErrorCache(),
+                null);
+
+        List<FleetLaunchTemplateOverridesRequest> overrides =
+                request.getLaunchTemplateConfigs().get(0).getOverrides();
+        assertEquals(4, overrides.size());
+        assertEquals("m5.xlarge", overrides.get(1).getInstanceType());
+        assertEquals("subnet-b", overrides.get(1).getSubnetId());
+        assertEquals(0.0, overrides.get(1).getPriority(), 0);
+        assertEquals("m5a.xlarge", overrides.get(2).getInstanceType());
+        assertEquals(1.0, overrides.get(2).getPriority(), 0);
+
+        assertEquals(5, request.getTargetCapacitySpecification().getTotalTargetCapacity().intValue());
+        assertEquals(3, request.getTargetCapacitySpecification().getSpotTargetCapacity().intValue());
+        assertEquals(2, request.getTargetCapacitySpecification().getOnDemandTargetCapacity().intValue());
+        assertEquals(
+                DefaultTargetCapacityType.Spot.toString(),
+                request.getTargetCapacitySpecification().getDefaultTargetCapacityType());
+    }
+
+    @Test
+    public void testWithoutSubnetTheFleetUsesTheDefaultOne() {
+        CreateFleetRequest request =
+                FleetLauncher.toFleetRequest(
+                        "lt-123", List.of("t3.micro"), Collections.emptyList(), 1, 0, new CapacityErrorCache(), null);
+        List<FleetLaunchTemplateOverridesRequest> overrides =
+                request.getLaunchTemplateConfigs().get(0).getOverrides();
+        assertEquals(1, overrides.size());
+        assertNull(overrides.get(0).getSubnetId());
+        assertEquals(
+                DefaultTargetCapacityType.OnDemand.toString(),
+                request.getTargetCapacitySpecification().getDefaultTargetCapacityType());
+    }
+
+    @Test
+    public void testPoolsOutOfCapacityAreLeftOut() {
+        CapacityErrorCache capacityErrors = new CapacityErrorCache();
+        capacityErrors.recordError("m5.xlarge", "subnet-a");
+        List<FleetLaunchTemplateOverridesRequest> overrides = FleetLauncher.toFleetRequest(
+                        "lt-123",
+                        List.of("m5.xlarge", "m5a.xlarge"),
+                        List.of("subnet-a", "subnet-b"),
+                        1,
+                        0,
+                        capacityErrors,
+                        null)
+                .getLaunchTemplateConfigs()
+                .get(0)
+                .getOverrides();
+        assertEquals(3, overrides.size());
+        assertEquals("subnet-b", overrides.get(0).getSubnetId());
+
+        // with every pool out of capacity, all of them are tried again
+        capacityErrors.recordError("m5.xlarge", "subnet-b");
+        capacityErrors.recordError("m5a.xlarge", "subnet-a");
+        capacityErrors.recordError("m5a.xlarge", "subnet-b");
+        overrides = FleetLauncher.toFleetRequest(
+                        "lt-123",
+                        List.of("m5.xlarge", "m5a.xlarge"),
+                        List.of("subnet-a", "subnet-b"),
+                        1,
+                        0,
+                        capacityErrors,
+                        null)
+                .getLaunchTemplateConfigs()
+                .get(0)
+                .getOverrides();
+        assertEquals(4, overrides.size());
+    }
+
+    @Test
+    public void testLaunchTemplateDataLeavesTheSubnetToTheFleet() {
+        RunInstancesRequest riRequest = new RunInstancesRequest("ami-123", 1, 2)
+                .withInstanceType("m5.xlarge")
+                .withKeyName("jenkins")
+                .withUserData("dXNlcmRhdGE=")
+                .withIamInstanceProfile(new IamInstanceProfileSpecification().withArn("arn:profile"))
+                .withNetworkInterfaces(new InstanceNetworkInterfaceSpecification()
+                        .withSubnetId("subnet-a")
+                        .withGroups("sg-1")
+                        .withAssociatePublicIpAddress(true)
+                        .withDeviceIndex(0))
+                .withTagSpecifications(new TagSpecification()
+                        .withResourceType(ResourceType.Instance)
+                        .withTags(new Tag("jenkins_slave_type", "demand_test")));
+
+        RequestLaunchTemplateData data = FleetLauncher.toLaunchTemplateData(riRequest);
+        assertEquals("ami-123", data.getImageId());
+        assertEquals("jenkins", data.getKeyName());
+        assertEquals("dXNlcmRhdGE=", data.getUserData());
+        assertEquals("arn:profile", data.getIamInstanceProfile().getArn());
+        assertNull(data.getInstanceType());
+        assertEquals(1, data.getNetworkInterfaces().size());
+        assertNull(data.getNetworkInterfaces().get(0).getSubnetId());
+        assertEquals(List.of("sg-1"), data.getNetworkInterfaces().get(0).getGroups());
+        assertEquals("instance", data.getTagSpecifications().get(0).getResourceType());
+        assertEquals("demand_test", data.getTagSpecifications().get(0).getTags().get(0).getValue());
+    }
+
+    @Test
+    public void testOnlySubnetsWithTheSameSecurityGroupsAreUsed() {
+        AmazonEC2 ec2 = mock(AmazonEC2.class);
+        SlaveTemplate template = mock(SlaveTemplate.class);
+        when(template.getSubnetIdList()).thenReturn(List.of("subnet-a", "subnet-b", "subnet-c", "subnet-d"));
+        when(template.getEc2SecurityGroups(ec2, "subnet-a")).thenReturn(List.of("sg-1", "sg-2"));
+        when(template.getEc2SecurityGroups(ec2, "subnet-b")).thenReturn(List.of("sg-9"));
+        when(template.getEc2SecurityGroups(ec2, "subnet-c")).thenReturn(List.of("sg-2", "sg-1"));
+        when(template.getEc2SecurityGroups(ec2, "subnet-d")).thenThrow(new AmazonClientException("not in a VPC"));
+
+        RunInstancesRequest riRequest =
+                new RunInstancesRequest("ami-123", 1, 2).withSubnetId("subnet-a").withSecurityGroupIds("sg-1", "sg-2");
+        assertEquals(List.of("subnet-a", "subnet-c"), FleetLauncher.getSubnetIds(template, ec2, riRequest));
+
+        // without security groups, each subnet gets the default group of its VPC
+        assertEquals(
+                List.of("subnet-a", "subnet-b", "subnet-c", "subnet-d"),
+                FleetLauncher.getSubnetIds(template, ec2, new RunInstancesRequest("ami-123", 1, 2)));
+    }
+
+    @Test
+    public void testLaunchTemplateIsGoneOnlyOnItsErrors() {
+        assertTrue(FleetLauncher.isLaunchTemplateGone("InvalidLaunchTemplateId.NotFound"));
+        assertTrue(FleetLauncher.isLaunchTemplateGone("InvalidLaunchTemplateName.NotFoundException"));
+        assertFalse(FleetLauncher.isLaunchTemplateGone("InsufficientInstanceCapacity"));
+        assertFalse(FleetLauncher.isLaunchTemplateGone(null));
+    }
+}
@@ -0,0 +1,187 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.model.Jenkins;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+
+public class FleetStateCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final List<Instance> instances = new ArrayList<>();
+
+    private MockedStatic<Jenkins> mockedJenkins;
+
+    private AmazonEC2 ec2;
+
+    private SlaveTemplate template;
+
+    private FleetStateCache cache;
+
+    @Before
+    public void setUp() {
+        Jenkins jenkins = mock(Jenkins.class);
+        mockedJenkins = Mockito.mockStatic(Jenkins.class);
+        mockedJenkins.when(Jenkins::get).thenReturn(jenkins);
+        when(jenkins.getNodes()).thenReturn(Collections.emptyList());
+
+        ec2 = mock(AmazonEC2.class);
+        when(ec2.describeInstances(Mockito.any(DescribeInstancesRequest.class)))
+                .thenAnswer(invocation -> new DescribeInstancesResult()
+                        .withReservations(new Reservation().withInstances(new ArrayList<>(instances))));
+        when(ec2.describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class)))
+                .thenReturn(new DescribeSpotInstanceRequestsResult());
+
+        AmazonEC2Cloud cloud = Mockito.spy(new AmazonEC2Cloud(
+                "us-east-1",
+                true,
+                "abc",
+                "us-east-1",
+                null,
+                "key",
+                null,
+                Collections.emptyList(),
+                "roleArn",
+                "roleSessionName"));
+        Mockito.doReturn(ec2).when(cloud).connect();
+
+        template = mock(SlaveTemplate.class);
+        when(template.getAmi()).thenReturn("ami-1");
+
+        cache = new FleetStateCache(cloud, now::get);
+    }
+
+    @After
+    public void tearDown() {
+        mockedJenkins.close();
+    }
+
+    private static Instance instance(String id, String slaveType) {
+        return new Instance()
+                .withInstanceId(id)
+                .withImageId("ami-1")
+                .withTags(new Tag(EC2Tag.TAG_NAME_JENKINS_SLAVE_TYPE, slaveType));
+    }
+
+    private static EC2OndemandSlave slave(String instanceId) {
+        EC2OndemandSlave slave = mock(EC2OndemandSlave.class);
+        when(slave.getInstanceId()).thenReturn(instanceId);
+        return slave;
+    }
+
+    @Test
+    public void testCountsFromOneDescribeUntilExpired() {
+        instances.add(instance("i-1", EC2Cloud.EC2_SLAVE_TYPE_DEMAND));
+        instances.add(instance("i-2", EC2Cloud.getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_DEMAND, null)));
+        instances.add(instance("i-3", EC2Cloud.getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_DEMAND, "other")));
+
+        assertEquals(3, cache.count(null, "url"));
+        assertEquals(2, cache.count(template, "url"));
+        verify(ec2, times(1)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+
+        instances.remove(0);
+        now.addAndGet(FleetStateCache.TTL_MS);
+        assertEquals(2, cache.count(null, "url"));
+        verify(ec2, times(2)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    public void testServerUrlChangeRefreshes() {
+        instances.add(instance("i-1", EC2Cloud.EC2_SLAVE_TYPE_DEMAND));
+
+        assertEquals(1, cache.count(null, "url"));
+        assertEquals(1, cache.count(null, "other-url"));
+        verify(ec2, times(2)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    public void testLaunchAndTerminateAreAppliedWithoutDescribe() {
+        instances.add(instance("i-1", EC2Cloud.EC2_SLAVE_TYPE_DEMAND));
+        assertEquals(1, cache.count(template, "url"));
+
+        cache.launched(template, Collections.singletonList(slave("i-2")));
+        assertEquals(2, cache.count(null, "url"));
+        assertEquals(2, cache.count(template, "url"));
+
+        cache.terminated("i-1");
+        assertEquals(1, cache.count(null, "url"));
+        assertEquals(1, cache.count(template, "url"));
+        verify(ec2, times(1)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    public void testLocalUpdatesOutliveStaleSnapshotsWithinGracePeriod() {
+        instances.add(instance("i-1", EC2Cloud.EC2_SLAVE_TYPE_DEMAND));
+        assertEquals(1, cache.count(null, "url"));
+
+        // Neither the launch nor the termination is visible to the describe yet
+        cache.launched(template, Collections.singletonList(slave("i-2")));
+        cache.terminated("i-1");
+        now.addAndGet(FleetStateCache.TTL_MS);
+        assertEquals(1, cache.count(null, "url"));
+
+        // The describe caught up with the launch
+        instances.clear();
+        instances.add(instance("i-2", EC2Cloud.getSlaveTypeTagValue(EC2Cloud.EC2_SLAVE_TYPE_DEMAND, null)));
+        now.addAndGet(FleetStateCache.TTL_MS);
+        assertEquals(1, cache.count(template, "url"));
+
+        // A launch never seen by the describe stops counting once the grace period is over
+        cache.launched(template, Collections.singletonList(slave("i-3")));
+        assertEquals(2, cache.count(null, "url"));
+        now.addAndGet(FleetStateCache.GRACE_MS);
+        assertEquals(1, cache.count(null, "url"));
+    }
+
+    @Test
+    public void testReservationIsReplacedByLaunchedAgentsOnCommit() {
+        assertEquals(0, cache.count(template, "url"));
+
+        FleetStateCache.CapacityReservation reservation = cache.reserve(template, 3);
+        assertEquals(3, cache.reserved(null));
+        assertEquals(3, cache.reserved(template));
+
+        reservation.commit(Arrays.asList(slave("i-1"), slave("i-2")));
+        reservation.rollback();
+        assertEquals(0, cache.reserved(null));
+        assertEquals(0, cache.reserved(template));
+        assertEquals(2, cache.count(template, "url"));
+    }
+
+    @Test
+    public void testReservationIsReleasedOnRollback() {
+        FleetStateCache.CapacityReservation first = cache.reserve(template, 2);
+        FleetStateCache.CapacityReservation second = cache.reserve(template, 1);
+        assertEquals(3, cache.reserved(template));
+
+        first.rollback();
+        first.rollback();
+        assertEquals(1, cache.reserved(template));
+
+        second.rollback();
+        assertEquals(0, cache.reserved(null));
+        assertEquals(0, cache.count(null, "url"));
+    }
+}
@@ -0,0 +1,107 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.Image;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final List<Runnable> background = new ArrayList<>();
+
+    private final DescribeImagesRequest request = new DescribeImagesRequest().withOwners("self");
+
+    private ImageCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new ImageCache(now::get, background::add);
+    }
+
+    private Image resolve(DescribeImagesRequest request) {
+        return new Image().withImageId("ami-" + lookups.incrementAndGet());
+    }
+
+    private void runBackground() {
+        List<Runnable> tasks = new ArrayList<>(background);
+        background.clear();
+        tasks.forEach(Runnable::run);
+    }
+
+    @Test
+    public void testImageIsReusedWithinTtl() {
+        assertEquals("ami-1", cache.get(request, this::resolve).getImageId());
+        now.addAndGet(ImageCache.TTL_MS - 1);
+        assertEquals("ami-1", cache.get(request, this::resolve).getImageId());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testStaleImageIsServedWhileRefreshedInBackground() {
+        cache.get(request, this::resolve);
+        now.addAndGet(ImageCache.TTL_MS);
+
+        assertEquals("ami-1", cache.get(request, this::resolve).getImageId());
+        assertEquals("ami-1", cache.get(request, this::resolve).getImageId());
+        assertEquals("Only one refresh is scheduled", 1, background.size());
+        assertEquals(1, lookups.get());
+
+        runBackground();
+        assertEquals("ami-2", cache.get(request, this::resolve).getImageId());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsStaleImage() {
+        cache.get(request, this::resolve);
+        now.addAndGet(ImageCache.TTL_MS);
+
+        cache.get(request, r -> {
+            throw new AmazonClientException("throttled");
+        });
+        runBackground();
+        assertEquals("ami-1", cache.get(request, this::resolve).getImageId());
+        assertEquals("A new refresh is scheduled after the failed one", 1, background.size());
+    }
+
+    @Test
+    public void testTooStaleImageIsResolvedAgain() {
+        cache.get(request, this::resolve);
+        now.addAndGet(ImageCache.TTL_MS + ImageCache.MAX_STALE_MS);
+        assertEquals(ImageCache.PINNED ? "ami-1" : "ami-2", cache.get(request, this::resolve).getImageId());
+    }
+
+    @Test
+    public void testChangedRequestOrInvalidationMisses() {
+        cache.get(request, this::resolve);
+        assertEquals(
+                "ami-2",
+                cache.get(new DescribeImagesRequest().withOwners("amazon"), this::resolve)
+                        .getImageId());
+
+        cache.invalidate();
+        assertEquals("ami-3", cache.get(request, this::resolve).getImageId());
+    }
+
+    @Test
+    public void testRefreshStartedBeforeInvalidationIsDiscarded() {
+        cache.get(request, this::resolve);
+        now.addAndGet(ImageCache.TTL_MS);
+        cache.get(request, this::resolve);
+
+        cache.invalidate();
+        assertEquals("ami-2", cache.get(request, this::resolve).getImageId());
+        runBackground();
+        assertEquals("ami-2", cache.get(request, this::resolve).getImageId());
+    }
+}
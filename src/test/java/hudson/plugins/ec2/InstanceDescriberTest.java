@@ -0,0 +1,139 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class InstanceDescriberTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final List<Set<String>> batches = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger singleLookups = new AtomicInteger();
+
+    private final Set<String> reportedByFeed = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> known = new TreeSet<>(List.of("i-1", "i-2", "i-3"));
+
+    private Map<String, Instance> describeBatch(Collection<String> instanceIds) {
+        batches.add(new TreeSet<>(instanceIds));
+        Map<String, Instance> instances = new HashMap<>();
+        for (String instanceId : instanceIds) {
+            if (known.contains(instanceId)) {
+                instances.put(instanceId, new Instance().withInstanceId(instanceId));
+            }
+        }
+        return instances;
+    }
+
+    private Instance describeSingle(String instanceId) {
+        singleLookups.incrementAndGet();
+        return new Instance().withInstanceId(instanceId);
+    }
+
+    private InstanceDescriber describer(long windowMs) {
+        return new InstanceDescriber(
+                this::describeBatch, this::describeSingle, now::get, windowMs, 2000, reportedByFeed::contains);
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneRequest() throws Exception {
+        InstanceDescriber describer = describer(500);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Instance>> lookups = new ArrayList<>();
+            for (String instanceId : known) {
+                lookups.add(executor.submit(() -> describer.describe(instanceId)));
+            }
+            for (Future<Instance> lookup : lookups) {
+                lookup.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(List.of(known), batches);
+        assertEquals(0, singleLookups.get());
+    }
+
+    @Test
+    public void testDescriptionIsSharedForAWhile() throws Exception {
+        InstanceDescriber describer = describer(0);
+        Instance instance = describer.describe("i-1");
+        assertSame(instance, describer.describe("i-1"));
+        assertEquals(1, batches.size());
+
+        now.addAndGet(2000);
+        describer.describe("i-1");
+        assertEquals(2, batches.size());
+
+        describer.forget("i-1");
+        describer.describe("i-1");
+        assertEquals(3, batches.size());
+    }
+
+    @Test
+    public void testMissingOrFailedInstancesAreLookedUpOnTheirOwn() throws Exception {
+        InstanceDescriber describer = describer(0);
+        assertEquals("i-4", describer.describe("i-4").getInstanceId());
+        assertEquals(1, singleLookups.get());
+
+        InstanceDescriber failing = new InstanceDescriber(
+                ids -> {
+                    throw new AmazonClientException("throttled");
+                },
+                instanceId -> null,
+                now::get,
+                0,
+                2000,
+                reportedByFeed::contains);
+        assertNull(failing.describe("i-1"));
+    }
+
+    @Test
+    public void testFeedKeepsSettledInstancesUpToDate() throws Exception {
+        InstanceDescriber describer = describer(0);
+        reportedByFeed.add("i-1");
+        describer.stateChanged("i-1", InstanceState.PENDING, new Instance().withInstanceId("i-1"));
+        now.addAndGet(2000);
+        describer.describe("i-1");
+        assertEquals("A pending instance is described again shortly", 1, batches.size());
+
+        describer.stateChanged("i-1", InstanceState.STOPPED, null);
+        now.addAndGet(InstanceStateFeed.RECONCILE_MS - 1);
+        assertEquals("stopped", describer.describe("i-1").getState().getName());
+        assertEquals(1, batches.size());
+
+        now.addAndGet(1);
+        describer.describe("i-1");
+        assertEquals("A settled instance is reconciled eventually", 2, batches.size());
+    }
+
+    @Test
+    public void testInstancesTheFeedDoesNotReportOnArePolled() throws Exception {
+        InstanceDescriber describer = describer(0);
+        reportedByFeed.add("i-1");
+        describer.stateChanged("i-2", InstanceState.STOPPED, new Instance().withInstanceId("i-2"));
+        now.addAndGet(2000);
+        describer.describe("i-2");
+        assertEquals(1, batches.size());
+    }
+}
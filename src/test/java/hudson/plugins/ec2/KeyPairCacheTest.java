@@ -0,0 +1,53 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.KeyPair;
+import org.junit.Test;
+
+public class KeyPairCacheTest {
+
+    private final AmazonEC2 ec2 = mock(AmazonEC2.class);
+
+    private final KeyPairCache cache = new KeyPairCache();
+
+    @Test
+    public void testKeyPairIsReusedForTheSameKey() throws Exception {
+        EC2PrivateKey privateKey = mock(EC2PrivateKey.class);
+        KeyPair keyPair = new KeyPair().withKeyName("jenkins");
+        when(privateKey.find(ec2)).thenReturn(keyPair);
+
+        assertSame(keyPair, cache.find("ssh", privateKey, ec2));
+        assertSame(keyPair, cache.find("ssh", privateKey, ec2));
+        verify(privateKey, times(1)).find(ec2);
+    }
+
+    @Test
+    public void testUpdatedCredentialIsResolvedAgain() throws Exception {
+        EC2PrivateKey privateKey = mock(EC2PrivateKey.class);
+        when(privateKey.find(ec2)).thenReturn(new KeyPair().withKeyName("old"));
+        cache.find("ssh", privateKey, ec2);
+
+        EC2PrivateKey updatedKey = mock(EC2PrivateKey.class);
+        KeyPair keyPair = new KeyPair().withKeyName("new");
+        when(updatedKey.find(ec2)).thenReturn(keyPair);
+        assertSame(keyPair, cache.find("ssh", updatedKey, ec2));
+        verify(updatedKey, times(1)).find(ec2);
+    }
+
+    @Test
+    public void testMissingKeyPairIsNotRemembered() throws Exception {
+        EC2PrivateKey privateKey = mock(EC2PrivateKey.class);
+        assertNull(cache.find("ssh", privateKey, ec2));
+
+        KeyPair keyPair = new KeyPair().withKeyName("jenkins");
+        when(privateKey.find(ec2)).thenReturn(keyPair);
+        assertSame(keyPair, cache.find("ssh", privateKey, ec2));
+    }
+}
@@ -0,0 +1,37 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void testPercentilesOfRecordedSamples() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        assertEquals(-1, recorder.getPercentile(50));
+        assertEquals(-1, recorder.getLast());
+
+        for (int i = 100; i >= 1; i--) {
+            recorder.record(i);
+        }
+        assertEquals(100, recorder.getCount());
+        assertEquals(1, recorder.getLast());
+        assertEquals(1, recorder.getPercentile(0));
+        assertEquals(50, recorder.getPercentile(50));
+        assertEquals(90, recorder.getPercentile(90));
+        assertEquals(100, recorder.getPercentile(100));
+    }
+
+    @Test
+    public void testOnlyRecentSamplesAreKept() {
+        LatencyRecorder recorder = new LatencyRecorder(3);
+        recorder.record(1000);
+        recorder.record(1);
+        recorder.record(2);
+        recorder.record(3);
+        assertEquals(4, recorder.getCount());
+        assertEquals(3, recorder.getLast());
+        assertEquals(3, recorder.getPercentile(100));
+    }
+}
@@ -0,0 +1,123 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import com.amazonaws.AmazonClientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class ProvisionBatcherTest {
+
+    private static final EnumSet<SlaveTemplate.ProvisionOptions> OPTIONS =
+            EnumSet.of(SlaveTemplate.ProvisionOptions.ALLOW_CREATE);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final List<Integer> calls = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static List<EC2AbstractSlave> slaves(int number) {
+        List<EC2AbstractSlave> slaves = new ArrayList<>();
+        for (int i = 0; i < number; i++) {
+            slaves.add(mock(EC2AbstractSlave.class));
+        }
+        return slaves;
+    }
+
+    private ProvisionBatcher batcher(int capacity, long windowMs) {
+        return new ProvisionBatcher(
+                (number, options) -> {
+                    calls.add(number);
+                    return slaves(Math.min(number, capacity));
+                },
+                new Object(),
+                windowMs);
+    }
+
+    private Future<List<EC2AbstractSlave>> provision(ProvisionBatcher batcher, int number, boolean cancelled) {
+        return executor.submit(() -> batcher.provision(number, OPTIONS, () -> cancelled));
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneCall() throws Exception {
+        ProvisionBatcher batcher = batcher(Integer.MAX_VALUE, 500);
+        Future<List<EC2AbstractSlave>> first = provision(batcher, 2, false);
+        Future<List<EC2AbstractSlave>> second = provision(batcher, 3, false);
+
+        assertEquals(2, first.get(5, TimeUnit.SECONDS).size());
+        assertEquals(3, second.get(5, TimeUnit.SECONDS).size());
+        assertEquals(Collections.singletonList(5), calls);
+    }
+
+    @Test
+    public void testPartialCapacityServesEarlierRequestsFirst() throws Exception {
+        ProvisionBatcher batcher = batcher(3, 500);
+        Future<List<EC2AbstractSlave>> first = provision(batcher, 2, false);
+        Thread.sleep(100);
+        Future<List<EC2AbstractSlave>> second = provision(batcher, 3, false);
+
+        assertEquals(2, first.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, second.get(5, TimeUnit.SECONDS).size());
+        assertEquals(Collections.singletonList(5), calls);
+    }
+
+    @Test
+    public void testCancelledRequestsAreLeftOut() throws Exception {
+        ProvisionBatcher batcher = batcher(Integer.MAX_VALUE, 500);
+        Future<List<EC2AbstractSlave>> first = provision(batcher, 2, true);
+        Future<List<EC2AbstractSlave>> second = provision(batcher, 3, false);
+
+        assertTrue(first.get(5, TimeUnit.SECONDS).isEmpty());
+        assertEquals(3, second.get(5, TimeUnit.SECONDS).size());
+        assertEquals(Collections.singletonList(3), calls);
+    }
+
+    @Test
+    public void testFailureIsReportedToEveryRequest() throws Exception {
+        AmazonClientException failure = new AmazonClientException("InsufficientInstanceCapacity");
+        ProvisionBatcher batcher = new ProvisionBatcher(
+                (number, options) -> {
+                    throw failure;
+                },
+                new Object(),
+                500);
+        List<Future<List<EC2AbstractSlave>>> futures = new ArrayList<>();
+        futures.add(provision(batcher, 1, false));
+        futures.add(provision(batcher, 1, false));
+
+        for (Future<List<EC2AbstractSlave>> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("the failure should have been reported");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+    }
+
+    @Test
+    public void testWithoutWindowEveryRequestIsProvisionedOnItsOwn() throws Exception {
+        ProvisionBatcher batcher = batcher(Integer.MAX_VALUE, 0);
+        assertEquals(2, batcher.provision(2, OPTIONS, () -> false).size());
+        assertEquals(3, batcher.provision(3, OPTIONS, () -> false).size());
+        assertTrue(batcher.provision(1, OPTIONS, () -> true).isEmpty());
+        assertEquals(List.of(2, 3), calls);
+    }
+}
@@ -0,0 +1,96 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.plugins.ec2.ProvisioningTimeline.Phase;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class ProvisioningTimelineTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final ProvisioningTimeline timeline = new ProvisioningTimeline(now::get);
+
+    private void markAfter(long millis, Phase phase) {
+        now.addAndGet(millis);
+        timeline.mark(phase);
+    }
+
+    @Test
+    public void testPhasesLastFromThePreviousPhaseReached() {
+        timeline.started(1000);
+        markAfter(5, Phase.CAPACITY_CHECKED);
+        markAfter(100, Phase.INSTANCES_LAUNCHED);
+        markAfter(20000, Phase.RUNNING);
+        markAfter(30000, Phase.REACHABLE);
+        markAfter(3000, Phase.CONNECTED);
+
+        assertEquals(
+                Map.of(
+                        Phase.CAPACITY_CHECKED, 5L,
+                        Phase.INSTANCES_LAUNCHED, 100L,
+                        Phase.RUNNING, 20000L,
+                        Phase.REACHABLE, 30000L,
+                        Phase.CONNECTED, 3000L),
+                timeline.getDurations());
+        assertEquals(53105, timeline.getTotal());
+    }
+
+    @Test
+    public void testFirstMarkWins() {
+        timeline.started(1000);
+        markAfter(10, Phase.REACHABLE);
+        markAfter(10, Phase.REACHABLE);
+        timeline.started(2000);
+
+        assertEquals(Map.of(Phase.REACHABLE, 10L), timeline.getDurations());
+    }
+
+    @Test
+    public void testPhasesMarkedOutOfOrderDoNotLastLessThanNothing() {
+        timeline.started(1000);
+        timeline.markAt(Phase.CAPACITY_CHECKED, 1500);
+        timeline.markAt(Phase.IMAGE_RESOLVED, 1200);
+        timeline.markAt(Phase.INSTANCES_LAUNCHED, 1800);
+
+        assertEquals(
+                Map.of(Phase.CAPACITY_CHECKED, 500L, Phase.IMAGE_RESOLVED, 0L, Phase.INSTANCES_LAUNCHED, 300L),
+                timeline.getDurations());
+    }
+
+    @Test
+    public void testOnlyTimelinesOfLaunchedAgentsAreRecordedOnce() {
+        markAfter(10, Phase.CONNECTED);
+        assertFalse("the agent was loaded from disk", timeline.takeForRecording());
+
+        markAfter(10, Phase.INSTANCES_LAUNCHED);
+        assertTrue(timeline.takeForRecording());
+        assertFalse(timeline.takeForRecording());
+    }
+
+    @Test
+    public void testPercentilesPerPhase() {
+        ProvisioningTimeline.Percentiles percentiles = new ProvisioningTimeline.Percentiles();
+        assertNull(percentiles.getSlowest());
+
+        for (int i = 1; i <= 10; i++) {
+            ProvisioningTimeline agent = new ProvisioningTimeline(now::get).started(0);
+            agent.markAt(Phase.INSTANCES_LAUNCHED, 100);
+            agent.markAt(Phase.RUNNING, 100 + i * 1000);
+            agent.markAt(Phase.CONNECTED, 100 + i * 1000 + 500);
+            percentiles.record(agent);
+        }
+
+        assertEquals(10, percentiles.get(Phase.RUNNING).getCount());
+        assertEquals(9000, percentiles.get(Phase.RUNNING).getPercentile(90));
+        assertEquals(500, percentiles.get(Phase.CONNECTED).getPercentile(50));
+        assertEquals(0, percentiles.get(Phase.REACHABLE).getCount());
+        assertEquals(10600, percentiles.getTotal().getPercentile(100));
+        assertEquals(Phase.RUNNING, percentiles.getSlowest());
+    }
+}
@@ -0,0 +1,142 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+public class QueueInstanceStateFeedTest {
+
+    private static final String TIME = "2024-03-01T12:00:00Z";
+
+    private final LocalInstanceEventQueue queue = new LocalInstanceEventQueue();
+
+    private final List<InstanceEventQueue> queues = new ArrayList<>(Collections.singletonList(queue));
+
+    private final QueueInstanceStateFeed feed = new QueueInstanceStateFeed(() -> queues, () -> 42);
+
+    private static String event(String detailType, JSONObject detail) {
+        JSONObject event = new JSONObject();
+        event.put("version", "0");
+        event.put("detail-type", detailType);
+        event.put("source", "aws.ec2");
+        event.put("time", TIME);
+        event.put("region", "us-east-1");
+        event.put("detail", detail);
+        return event.toString();
+    }
+
+    private static String stateChange(String instanceId, String state) {
+        JSONObject detail = new JSONObject();
+        detail.put("instance-id", instanceId);
+        detail.put("state", state);
+        return event(QueueInstanceStateFeed.STATE_CHANGE, detail);
+    }
+
+    @Test
+    public void testEventsAreReadAndAcknowledged() throws Exception {
+        queue.send(stateChange("i-1", "stopping"));
+        JSONObject detail = new JSONObject();
+        detail.put("instance-id", "i-2");
+        detail.put("instance-action", "terminate");
+        queue.send(event(QueueInstanceStateFeed.SPOT_INTERRUPTION, detail));
+        queue.send("not json");
+
+        long time = Instant.parse(TIME).toEpochMilli();
+        InstanceStateFeed.Received received = feed.receive();
+        assertEquals(
+                List.of(
+                        InstanceStateEvent.stateChange("i-1", InstanceState.STOPPING, time),
+                        InstanceStateEvent.spotInterruption("i-2", time)),
+                received.getEvents());
+        assertTrue(feed.isActive());
+        assertEquals("The events are only acknowledged once applied", 3, queue.size());
+        received.acknowledge();
+        assertEquals(0, queue.size());
+        assertEquals(List.of(), feed.receive().getEvents());
+    }
+
+    @Test
+    public void testManyEventsAreDrainedAtOnce() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            queue.send(stateChange("i-" + i, "running"));
+        }
+        assertEquals(25, feed.receive().getEvents().size());
+    }
+
+    @Test
+    public void testBusyQueueIsDrainedInSteps() throws Exception {
+        int sent = QueueInstanceStateFeed.MAX_MESSAGES_PER_RECEIVE + 5;
+        for (int i = 0; i < sent; i++) {
+            queue.send(stateChange("i-" + i, "running"));
+        }
+        InstanceStateFeed.Received received = feed.receive();
+        assertEquals(QueueInstanceStateFeed.MAX_MESSAGES_PER_RECEIVE, received.getEvents().size());
+        received.acknowledge();
+        assertEquals(5, queue.size());
+        assertEquals(5, feed.receive().getEvents().size());
+    }
+
+    @Test
+    public void testSnsNotificationIsUnwrapped() {
+        JSONObject notification = new JSONObject();
+        notification.put("Type", "Notification");
+        notification.put("Message", stateChange("i-1", "shutting-down"));
+        InstanceStateEvent event = feed.parse(notification.toString());
+        assertEquals(InstanceState.SHUTTING_DOWN, event.getState());
+    }
+
+    @Test
+    public void testUnknownEventsAreIgnored() {
+        assertNull(feed.parse(stateChange("i-1", "hibernating")));
+        assertNull(feed.parse(event("EC2 AMI State Change", new JSONObject())));
+        JSONObject detail = new JSONObject();
+        detail.put("instance-id", "i-1");
+        assertEquals(42, feed.parse(event(QueueInstanceStateFeed.SPOT_INTERRUPTION, detail).replace(TIME, "?"))
+                .getTime());
+    }
+
+    @Test
+    public void testFeedIsInactiveWithoutWorkingQueue() throws Exception {
+        queues.clear();
+        feed.receive().acknowledge();
+        assertFalse(feed.isActive());
+
+        LocalInstanceEventQueue failing = new LocalInstanceEventQueue() {
+            @Override
+            public synchronized void delete(Collection<Message> messages) {
+                throw new IllegalStateException("queue is gone");
+            }
+        };
+        queues.add(failing);
+        queues.add(queue);
+        failing.send(stateChange("i-1", "running"));
+        queue.send(stateChange("i-2", "running"));
+        InstanceStateFeed.Received received = feed.receive();
+        assertEquals(2, received.getEvents().size());
+        assertTrue(feed.isActive());
+        received.acknowledge();
+        assertEquals("The other queues are still acknowledged", 0, queue.size());
+        assertFalse(feed.isActive());
+    }
+
+    @Test
+    public void testFailingQueueIsReported() throws Exception {
+        queues.set(0, new LocalInstanceEventQueue() {
+            @Override
+            public synchronized List<Message> receive(int maxMessages) {
+                throw new IllegalStateException("unreachable");
+            }
+        });
+        assertEquals(List.of(), feed.receive().getEvents());
+        assertFalse(feed.isActive());
+    }
+}
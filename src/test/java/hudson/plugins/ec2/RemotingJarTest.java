@@ -0,0 +1,55 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RemotingJarTest {
+
+    // sha256sum of "remoting\n"
+    private static final String SHA256 = "0d5f027515ed2244e6863aab38481c0814b624841ef952f3e31a49189f8cbe6e";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RemotingJar jar(String content) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return new RemotingJar("2.0", file.toURI().toURL());
+    }
+
+    @Test
+    public void testHashIsTheSha256OfTheJar() throws Exception {
+        RemotingJar jar = jar("remoting\n");
+        assertEquals(SHA256, jar.getSha256());
+        assertArrayEquals((SHA256 + "\n").getBytes(StandardCharsets.US_ASCII), jar.getHashFile());
+    }
+
+    @Test
+    public void testHashFileOfTheAgentMatches() throws Exception {
+        RemotingJar jar = jar("remoting\n");
+        assertTrue(jar.matches(SHA256 + "\n"));
+        assertTrue(jar.matches(SHA256.toUpperCase()));
+        assertFalse(jar.matches(""));
+        assertFalse(jar.matches(null));
+        assertFalse(jar.matches(jar("other\n").getSha256()));
+    }
+
+    @Test
+    public void testJarIsStreamed() throws Exception {
+        RemotingJar jar = jar("remoting\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        jar.copyTo(out);
+        jar.copyTo(out);
+        assertEquals("remoting\nremoting\n", out.toString(StandardCharsets.US_ASCII));
+    }
+}
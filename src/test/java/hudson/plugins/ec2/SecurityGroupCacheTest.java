@@ -0,0 +1,88 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class SecurityGroupCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final SecurityGroupCache cache = new SecurityGroupCache(now::get);
+
+    private final Set<String> groups = new LinkedHashSet<>(Arrays.asList("web", "ssh"));
+
+    private List<String> resolve() {
+        return Collections.singletonList("sg-" + lookups.incrementAndGet());
+    }
+
+    private List<String> fail(AmazonClientException e) {
+        lookups.incrementAndGet();
+        throw e;
+    }
+
+    @Test
+    public void testGroupsAreReusedPerSubnetWithinTtl() {
+        assertEquals(List.of("sg-1"), cache.get(groups, "subnet-a", this::resolve));
+        now.addAndGet(SecurityGroupCache.TTL_MS - 1);
+        assertEquals(
+                List.of("sg-1"),
+                cache.get(new LinkedHashSet<>(Arrays.asList("ssh", "web")), "subnet-a", this::resolve));
+        assertEquals(List.of("sg-2"), cache.get(groups, "subnet-b", this::resolve));
+        assertEquals(List.of("sg-3"), cache.get(groups, null, this::resolve));
+        assertEquals(3, lookups.get());
+
+        now.addAndGet(1);
+        assertEquals(List.of("sg-4"), cache.get(groups, "subnet-a", this::resolve));
+    }
+
+    @Test
+    public void testFailedVpcCheckIsRemembered() {
+        AmazonClientException failure = new AmazonClientException("not in the VPC");
+        assertThrows(AmazonClientException.class, () -> cache.get(groups, "subnet-a", () -> fail(failure)));
+        assertThrows(AmazonClientException.class, () -> cache.get(groups, "subnet-a", this::resolve));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(SecurityGroupCache.NEGATIVE_TTL_MS);
+        assertEquals(List.of("sg-2"), cache.get(groups, "subnet-a", this::resolve));
+    }
+
+    @Test
+    public void testUnknownGroupIsRememberedButThrottlingIsNot() {
+        AmazonServiceException notFound = new AmazonServiceException("unknown group");
+        notFound.setErrorCode("InvalidGroup.NotFound");
+        notFound.setErrorType(AmazonServiceException.ErrorType.Client);
+        assertThrows(AmazonClientException.class, () -> cache.get(groups, "subnet-a", () -> fail(notFound)));
+        assertThrows(AmazonClientException.class, () -> cache.get(groups, "subnet-a", this::resolve));
+
+        AmazonServiceException throttled = new AmazonServiceException("slow down");
+        throttled.setErrorCode("RequestLimitExceeded");
+        throttled.setErrorType(AmazonServiceException.ErrorType.Client);
+        assertThrows(AmazonClientException.class, () -> cache.get(groups, "subnet-b", () -> fail(throttled)));
+        AmazonClientException io = new AmazonClientException("connection reset", new IOException());
+        assertThrows(AmazonClientException.class, () -> cache.get(groups, "subnet-c", () -> fail(io)));
+
+        assertEquals(List.of("sg-4"), cache.get(groups, "subnet-b", this::resolve));
+        assertEquals(List.of("sg-5"), cache.get(groups, "subnet-c", this::resolve));
+    }
+
+    @Test
+    public void testInvalidationForgetsEverything() {
+        cache.get(groups, "subnet-a", this::resolve);
+        cache.invalidate();
+        assertEquals(List.of("sg-2"), cache.get(groups, "subnet-a", this::resolve));
+    }
+}
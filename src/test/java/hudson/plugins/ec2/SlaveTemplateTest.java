@@ -41,6 +41,7 @@ import com.amazonaws.services.ec2.model.DescribeSecurityGroupsRequest;
 import com.amazonaws.services.ec2.model.DescribeSecurityGroupsResult;
 import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
 import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.HttpTokensState;
 import com.amazonaws.services.ec2.model.IamInstanceProfile;
 import com.amazonaws.services.ec2.model.Image;
@@ -63,6 +64,7 @@ import hudson.plugins.ec2.SlaveTemplate.ProvisionOptions;
 import hudson.plugins.ec2.util.MinimumNumberOfInstancesTimeRangeConfig;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
@@ -773,6 +775,8 @@ public class SlaveTemplateTest {
         when(mockedPrivateKey.find(mockedEC2)).thenReturn(mockedKeyPair);
         when(mockedCloud.connect()).thenReturn(mockedEC2);
         when(mockedCloud.resolvePrivateKey()).thenReturn(mockedPrivateKey);
+        when(mockedCloud.findKeyPair(mockedPrivateKey, mockedEC2)).thenReturn(mockedKeyPair);
+        when(mockedCloud.getCapacityErrors()).thenReturn(new CapacityErrorCache());
 
         template.parent = mockedCloud;
 
@@ -1279,6 +1283,137 @@ public class SlaveTemplateTest {
         assertEquals(metadataOptionsRequest.getHttpPutResponseHopLimit(), Integer.valueOf(1));
     }
 
+    @Test
+    public void testWarmPoolFiltersSpanAllSubnets() {
+        List<Filter> diFilters = new ArrayList<>();
+        diFilters.add(new Filter("image-id").withValues("ami-123"));
+        diFilters.add(new Filter("subnet-id").withValues("subnet-123"));
+        diFilters.add(new Filter("instance.group-id").withValues("sg-123"));
+        diFilters.add(new Filter("tag:jenkins_slave_type").withValues("demand_foo"));
+
+        List<Filter> filters = SlaveTemplate.toWarmPoolFilters(diFilters);
+
+        assertEquals(
+                Arrays.asList("image-id", "tag:jenkins_slave_type"),
+                filters.stream().map(Filter::getName).collect(Collectors.toList()));
+        assertEquals(4, diFilters.size());
+    }
+
+    @Test
+    public void provisionFallsBackToTheNextInstanceTypeWhenOutOfCapacity() throws Exception {
+        SlaveTemplate template = new SlaveTemplate(
+                TEST_AMI,
+                TEST_ZONE,
+                null,
+                "some security group",
+                TEST_REMOTE_FS,
+                TEST_INSTANCE_TYPE,
+                TEST_EBSO,
+                TEST_LABEL,
+                Node.Mode.NORMAL,
+                "foo ami",
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                "-Xmx1g",
+                false,
+                "some-subnet",
+                null,
+                null,
+                false,
+                null,
+                "some instance profile",
+                true,
+                false,
+                "",
+                false,
+                "");
+        template.setFallbackInstanceTypes("m5.large, m5a.large");
+        AmazonEC2 mockedEC2 = setupTestForProvisioning(template);
+
+        AmazonEC2Exception capacityException = new AmazonEC2Exception("Insufficient capacity");
+        capacityException.setErrorCode("InsufficientInstanceCapacity");
+        RunInstancesResult result = new RunInstancesResult()
+                .withReservation(new Reservation().withInstances(new Instance().withInstanceId("i-123")));
+        List<String> launchedTypes = new ArrayList<>();
+        when(mockedEC2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            String instanceType = invocation.<RunInstancesRequest>getArgument(0).getInstanceType();
+            launchedTypes.add(instanceType);
+            if (!instanceType.equals("m5a.large")) {
+                throw capacityException;
+            }
+            return result;
+        });
+
+        template.provision(2, EnumSet.noneOf(ProvisionOptions.class));
+        assertEquals(Arrays.asList(TEST_INSTANCE_TYPE.toString(), "m5.large", "m5a.large"), launchedTypes);
+
+        // the types out of capacity are skipped until their backoff ends
+        launchedTypes.clear();
+        template.provision(2, EnumSet.noneOf(ProvisionOptions.class));
+        assertEquals(Collections.singletonList("m5a.large"), launchedTypes);
+    }
+
+    @Test
+    public void provisionTriesTheNextSubnetWhenOutOfCapacity() throws Exception {
+        SlaveTemplate template = new SlaveTemplate(
+                TEST_AMI,
+                TEST_ZONE,
+                null,
+                "some security group",
+                TEST_REMOTE_FS,
+                TEST_INSTANCE_TYPE,
+                TEST_EBSO,
+                TEST_LABEL,
+                Node.Mode.NORMAL,
+                "foo ami",
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                "-Xmx1g",
+                false,
+                "subnet-a subnet-b",
+                null,
+                null,
+                false,
+                null,
+                "some instance profile",
+                true,
+                false,
+                "",
+                false,
+                "");
+        AmazonEC2 mockedEC2 = setupTestForProvisioning(template);
+
+        AmazonEC2Exception capacityException = new AmazonEC2Exception("Insufficient capacity");
+        capacityException.setErrorCode("InsufficientInstanceCapacity");
+        RunInstancesResult result = new RunInstancesResult()
+                .withReservation(new Reservation().withInstances(new Instance().withInstanceId("i-123")));
+        List<String> launchedSubnets = new ArrayList<>();
+        when(mockedEC2.runInstances(any(RunInstancesRequest.class))).thenAnswer(invocation -> {
+            String subnetId = invocation.<RunInstancesRequest>getArgument(0).getSubnetId();
+            launchedSubnets.add(subnetId);
+            if (subnetId.equals("subnet-a")) {
+                throw capacityException;
+            }
+            return result;
+        });
+
+        template.provision(2, EnumSet.noneOf(ProvisionOptions.class));
+        assertEquals(Arrays.asList("subnet-a", "subnet-b"), launchedSubnets);
+
+        // the subnet out of capacity is now ranked last
+        launchedSubnets.clear();
+        template.provision(2, EnumSet.noneOf(ProvisionOptions.class));
+        assertEquals(Collections.singletonList("subnet-b"), launchedSubnets);
+    }
+
     private HtmlForm getConfigForm(AmazonEC2Cloud ac) throws IOException, SAXException {
         return r.createWebClient().goTo(ac.getUrl() + "configure").getFormByName("config");
     }
@@ -4,6 +4,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -860,6 +861,47 @@ public class SlaveTemplateUnitTest {
         assertEquals(subnet3, "subnet-123");
     }
 
+    @Test
+    public void testLaunchesDoNotShareTheirSubnet() throws Exception {
+        SlaveTemplate slaveTemplate = new SlaveTemplate(
+                "ami-123",
+                EC2AbstractSlave.TEST_ZONE,
+                null,
+                "default",
+                "foo",
+                InstanceType.M1Large,
+                false,
+                "ttt",
+                Node.Mode.NORMAL,
+                "AMI description",
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                "-Xmx1g",
+                false,
+                "subnet-123 subnet-456",
+                null,
+                null,
+                true,
+                null,
+                "",
+                false,
+                false,
+                "",
+                false,
+                "");
+
+        // each launch gets its own subnet, which another launch choosing in the meantime does not change
+        String first = slaveTemplate.chooseSubnetId(1, null);
+        String second = slaveTemplate.chooseSubnetId(1, null);
+        assertEquals("subnet-123", first);
+        assertEquals("subnet-456", second);
+        assertNull(slaveTemplate.getCurrentSubnetId());
+    }
+
     @Test
     public void testChooseCommaDelimitedSubnetId() throws Exception {
         SlaveTemplate slaveTemplate = new SlaveTemplate(
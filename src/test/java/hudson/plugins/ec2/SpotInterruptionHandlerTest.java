@@ -0,0 +1,78 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.CauseAction;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.slaves.DumbSlave;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+public class SpotInterruptionHandlerTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void testBuildsAreScheduledAgainAndAborted() throws Exception {
+        DumbSlave agent = r.createOnlineSlave();
+        FreeStyleProject project = r.createFreeStyleProject();
+        project.setAssignedNode(agent);
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("FOO", "default")));
+        project.getBuildersList().add(new SleepBuilder(60_000));
+        FreeStyleBuild build = project.scheduleBuild2(0, new ParametersAction(new StringParameterValue("FOO", "bar")))
+                .waitForStart();
+        while (!build.isBuilding() || build.getExecutor() == null) {
+            Thread.sleep(10);
+        }
+
+        // the agent is drained first, so that the build waits for another one
+        agent.toComputer().setAcceptingTasks(false);
+        SpotInterruptionHandler.requeueBuilds(agent.toComputer());
+
+        r.assertBuildStatus(Result.ABORTED, r.waitForCompletion(build));
+        Queue.Item item = r.jenkins.getQueue().getItem(project);
+        assertNotNull(item);
+        SpotInterruptionHandler.InterruptedCause cause =
+                item.getAction(CauseAction.class).findCause(SpotInterruptionHandler.InterruptedCause.class);
+        assertNotNull(cause);
+        assertEquals(agent.getNodeName(), cause.getNodeName());
+        assertEquals(
+                "bar",
+                ((StringParameterValue) item.getAction(ParametersAction.class).getParameter("FOO")).getValue());
+    }
+
+    @Test
+    public void testInterruptionsAreHandledOnceForTheTemplatesMonitoringThem() throws Exception {
+        SlaveTemplate template = mock(SlaveTemplate.class);
+        EC2Computer computer = mock(EC2Computer.class);
+        when(computer.getSlaveTemplate()).thenReturn(template);
+        doCallRealMethod().when(computer).spotInterruptionNoticed(anyLong());
+
+        computer.spotInterruptionNoticed(1000);
+        verify(computer, never()).setAcceptingTasks(anyBoolean());
+
+        when(template.isMonitorSpotInterruptions()).thenReturn(true);
+        computer.spotInterruptionNoticed(2000);
+        computer.spotInterruptionNoticed(3000);
+        verify(computer, times(1)).setAcceptingTasks(false);
+    }
+}
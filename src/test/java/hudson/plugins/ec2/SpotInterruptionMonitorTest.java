@@ -0,0 +1,64 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.ec2.model.Instance;
+import java.time.Instant;
+import org.junit.Test;
+
+public class SpotInterruptionMonitorTest {
+
+    private static final long NOW = Instant.parse("2026-10-18T12:01:00Z").toEpochMilli();
+
+    @Test
+    public void testNoticeIsTwoMinutesBeforeTheInterruption() {
+        assertEquals(
+                Instant.parse("2026-10-18T12:00:30Z").toEpochMilli(),
+                SpotInterruptionMonitor.noticeTime(
+                        "{\"action\": \"terminate\", \"time\": \"2026-10-18T12:02:30Z\"}", NOW));
+    }
+
+    @Test
+    public void testNoticeIsNeverInTheFuture() {
+        // the clock of the controller may lag behind that of EC2
+        assertEquals(
+                NOW,
+                SpotInterruptionMonitor.noticeTime("{\"action\": \"stop\", \"time\": \"2026-10-18T12:04:00Z\"}", NOW));
+    }
+
+    @Test
+    public void testNoticeIsNowWhenTheActionHoldsNoTime() {
+        assertEquals(NOW, SpotInterruptionMonitor.noticeTime("{\"action\": \"terminate\"}", NOW));
+        assertEquals(NOW, SpotInterruptionMonitor.noticeTime("{\"time\": \"at noon\"}", NOW));
+        assertEquals(NOW, SpotInterruptionMonitor.noticeTime("not json", NOW));
+    }
+
+    @Test
+    public void testSpotInstancesOfFleetsAreSpotInstances() throws Exception {
+        FleetConfiguration fleetConfig = new FleetConfiguration();
+        fleetConfig.setSpotPercentage(50);
+        SlaveTemplate template = mock(SlaveTemplate.class);
+        when(template.getFleetConfig()).thenReturn(fleetConfig);
+
+        assertTrue(isSpot(template, "spot"));
+        assertFalse(isSpot(template, null));
+
+        fleetConfig.setSpotPercentage(0);
+        assertFalse(isSpot(template, "spot"));
+        assertFalse(isSpot(null, "spot"));
+    }
+
+    private static boolean isSpot(SlaveTemplate template, String lifecycle) throws Exception {
+        EC2Computer computer = mock(EC2Computer.class);
+        when(computer.getNode()).thenReturn(mock(EC2OndemandSlave.class));
+        when(computer.getSlaveTemplate()).thenReturn(template);
+        when(computer.describeInstance()).thenReturn(new Instance().withInstanceLifecycle(lifecycle));
+        doCallRealMethod().when(computer).isSpot();
+        return computer.isSpot();
+    }
+}
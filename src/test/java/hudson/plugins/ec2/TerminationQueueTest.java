@@ -0,0 +1,166 @@
+package hudson.plugins.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.AmazonClientException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class TerminationQueueTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private final FakeOperations operations = new FakeOperations();
+
+    private final TerminationQueue queue = new TerminationQueue(operations, executor, 50, 10);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static void await(CompletableFuture<Void> future) throws Exception {
+        future.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testInstancesQueuedTogetherAreTerminatedInOneRequest() throws Exception {
+        operations.alive.addAll(List.of("i-1", "i-2", "i-3"));
+        CompletableFuture<Void> first = queue.terminate("i-1", null);
+        CompletableFuture<Void> second = queue.terminate("i-2", null);
+        CompletableFuture<Void> third = queue.terminate("i-3", null);
+        assertEquals(3, queue.size());
+
+        await(CompletableFuture.allOf(first, second, third));
+        assertEquals(List.of("TERMINATE [i-1, i-2, i-3]"), operations.calls);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testInstancesAlreadyTerminatedAreNotSent() throws Exception {
+        operations.alive.add("i-1");
+        await(CompletableFuture.allOf(queue.terminate("i-1", null), queue.terminate("i-gone", null)));
+        assertEquals(List.of("TERMINATE [i-1]"), operations.calls);
+    }
+
+    @Test
+    public void testInstancesAlreadyTerminatedAreForgotten() throws Exception {
+        await(CompletableFuture.allOf(queue.terminate("i-gone", "sir-1"), queue.stop("i-stopped")));
+        assertEquals(List.of("i-gone", "i-stopped"), operations.gone);
+    }
+
+    @Test
+    public void testInstancesAreSentWhenTheyCannotBeLookedUp() throws Exception {
+        operations.lookupFails = true;
+        await(CompletableFuture.allOf(queue.terminate("i-1", null), queue.terminate("i-2", null)));
+        assertEquals(List.of("TERMINATE [i-1, i-2]"), operations.calls);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testStopsAndTerminationsAreSentApart() throws Exception {
+        operations.alive.addAll(List.of("i-1", "i-2"));
+        await(CompletableFuture.allOf(queue.terminate("i-1", null), queue.stop("i-2")));
+        assertEquals(List.of("TERMINATE [i-1]", "STOP [i-2]"), operations.calls);
+    }
+
+    @Test
+    public void testFailedBatchIsSentAgainOneInstanceAtATime() throws Exception {
+        operations.alive.addAll(List.of("i-1", "i-2"));
+        operations.failing.add("i-2");
+        CompletableFuture<Void> first = queue.terminate("i-1", null);
+        CompletableFuture<Void> second = queue.terminate("i-2", null);
+
+        await(first);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> await(second));
+        assertTrue(e.getCause() instanceof AmazonClientException);
+        assertEquals("TERMINATE [i-1, i-2]", operations.calls.get(0));
+        assertEquals("TERMINATE [i-1]", operations.calls.get(1));
+        // the instance that keeps failing is tried on its own until the last attempt
+        assertEquals(TerminationQueue.MAX_ATTEMPTS + 2, operations.calls.size());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testInstanceIsTerminatedOnceTheErrorGoesAway() throws Exception {
+        operations.alive.add("i-1");
+        operations.failing.add("i-1");
+        operations.failuresLeft = 1;
+        await(queue.terminate("i-1", null));
+        assertEquals(List.of("TERMINATE [i-1]", "TERMINATE [i-1]"), operations.calls);
+    }
+
+    @Test
+    public void testSpotRequestsAreCancelledEvenWithoutInstance() throws Exception {
+        operations.alive.add("i-1");
+        await(CompletableFuture.allOf(queue.terminate("i-1", "sir-1"), queue.terminate(null, "sir-2")));
+        assertEquals(List.of("CANCEL [sir-1, sir-2]", "TERMINATE [i-1]"), operations.calls);
+    }
+
+    @Test
+    public void testInvalidSpotRequestDoesNotPreventTheOthersFromBeingCancelled() throws Exception {
+        operations.failing.add("sir-1");
+        await(CompletableFuture.allOf(queue.terminate(null, "sir-1"), queue.terminate(null, "sir-2")));
+        assertEquals(List.of("CANCEL [sir-1, sir-2]", "CANCEL [sir-1]", "CANCEL [sir-2]"), operations.calls);
+    }
+
+    private static final class FakeOperations implements TerminationQueue.Operations {
+        private final Set<String> alive = new HashSet<>();
+
+        private final Set<String> failing = new HashSet<>();
+
+        private final List<String> calls = new ArrayList<>();
+
+        private final List<String> gone = new ArrayList<>();
+
+        private boolean lookupFails;
+
+        private int failuresLeft = Integer.MAX_VALUE;
+
+        @Override
+        public synchronized Set<String> alive(Collection<String> instanceIds) {
+            if (lookupFails) {
+                throw new AmazonClientException("too many filter values");
+            }
+            Set<String> result = new HashSet<>(instanceIds);
+            result.retainAll(alive);
+            return result;
+        }
+
+        @Override
+        public synchronized void cancelSpotRequests(List<String> spotRequestIds) {
+            calls.add("CANCEL " + spotRequestIds);
+            fail(spotRequestIds);
+        }
+
+        @Override
+        public synchronized void apply(TerminationQueue.Action action, List<String> instanceIds) {
+            calls.add(action + " " + instanceIds);
+            fail(instanceIds);
+        }
+
+        @Override
+        public synchronized void gone(List<String> instanceIds) {
+            gone.addAll(instanceIds);
+        }
+
+        private void fail(List<String> ids) {
+            if (failuresLeft > 0 && ids.stream().anyMatch(failing::contains)) {
+                failuresLeft--;
+                throw new AmazonClientException("failed: " + ids);
+            }
+        }
+    }
+}
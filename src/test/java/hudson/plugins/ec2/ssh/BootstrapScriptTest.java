@@ -0,0 +1,89 @@
+package hudson.plugins.ec2.ssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import hudson.Functions;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BootstrapScriptTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    private BootstrapScript.Results run(BootstrapScript script) throws Exception {
+        // the login shell of the agent runs the command
+        Process process = new ProcessBuilder("sh", "-c", script.toCommand())
+                .redirectErrorStream(true)
+                .start();
+        BootstrapScript.Results results = new BootstrapScript.Results(log);
+        process.getInputStream().transferTo(results);
+        results.forceEol();
+        process.waitFor();
+        return results;
+    }
+
+    @Test
+    public void testReportsArePickedOutOfTheOutput() throws Exception {
+        BootstrapScript.Results results = new BootstrapScript.Results(log);
+        results.write(("installing\r\n" + BootstrapScript.REPORT + "java installed\r\n"
+                        + "no newline" + BootstrapScript.REPORT + "scp 127\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Map.of("java", "installed", "scp", "127"), results.getSteps());
+        assertFalse(results.failed("java"));
+        assertTrue(results.failed("scp"));
+        assertTrue("did not run", results.failed("init"));
+        assertEquals("installing\r\nno newline\n", log.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testInitScriptOnlyRunsOnce() throws Exception {
+        assumeFalse(Functions.isWindows());
+        File tmpDir = new File(folder.getRoot(), "tmp");
+        File marker = new File(folder.getRoot(), "marker");
+        // quotes and the end of a heredoc within the init script are kept as is
+        String initScript = "echo \"it's the init script\"\necho EOF\n";
+        BootstrapScript script = new BootstrapScript(tmpDir.getPath(), marker.getPath())
+                .init(initScript, tmpDir + "/init.sh", "sh " + tmpDir + "/init.sh", "touch " + marker)
+                .ensure("tool", "false", "true");
+
+        BootstrapScript.Results results = run(script);
+        assertEquals(
+                Map.of("mkdir", BootstrapScript.OK, "init", BootstrapScript.OK, "tool", BootstrapScript.INSTALLED),
+                results.getSteps());
+        assertTrue(log.toString(StandardCharsets.UTF_8).contains("it's the init script\nEOF\n"));
+        assertTrue(marker.exists());
+
+        log.reset();
+        results = run(script);
+        assertEquals(BootstrapScript.SKIPPED, results.getSteps().get("init"));
+        assertFalse(results.failed("init"));
+        assertEquals("", log.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFailingInitScriptStopsTheBootstrap() throws Exception {
+        assumeFalse(Functions.isWindows());
+        File tmpDir = new File(folder.getRoot(), "tmp");
+        File marker = new File(folder.getRoot(), "marker");
+        BootstrapScript script = new BootstrapScript(tmpDir.getPath(), marker.getPath())
+                .init("exit 3", tmpDir + "/init.sh", "sh " + tmpDir + "/init.sh", "touch " + marker)
+                .ensure("tool", "true", "true");
+
+        BootstrapScript.Results results = run(script);
+        assertEquals(Map.of("mkdir", BootstrapScript.OK, "init", "3"), results.getSteps());
+        assertTrue(results.failed("init"));
+        assertFalse(marker.exists());
+    }
+}
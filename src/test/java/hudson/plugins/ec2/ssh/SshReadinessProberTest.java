@@ -0,0 +1,115 @@
+package hudson.plugins.ec2.ssh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Test;
+
+public class SshReadinessProberTest {
+
+    private final SshReadinessProber prober = new SshReadinessProber(10, 50);
+
+    private ServerSocket server;
+
+    @After
+    public void closeServer() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Accepts connections and sends them the given text, or nothing if null.
+     */
+    private int serve(String greeting) throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    if (greeting != null) {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(greeting.getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    private static ByteBuffer received(String text) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(text.getBytes(StandardCharsets.US_ASCII));
+        return buffer;
+    }
+
+    @Test
+    public void testBannerIsNoticed() throws Exception {
+        int port = serve("SSH-2.0-OpenSSH_9.6\r\n");
+        assertTrue(prober.awaitBanner("127.0.0.1", port, 1000, 5000));
+    }
+
+    @Test
+    public void testLinesBeforeTheBannerAreSkipped() throws Exception {
+        int port = serve("Welcome\r\nSSH-2.0-OpenSSH_9.6\r\n");
+        assertTrue(prober.awaitBanner("127.0.0.1", port, 1000, 5000));
+    }
+
+    @Test
+    public void testRefusedConnectionsAreRetriedUntilTheWindowEnds() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = closed.getLocalPort();
+        }
+        long start = System.currentTimeMillis();
+        assertFalse(prober.awaitBanner("127.0.0.1", port, 1000, 300));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + "ms", elapsed >= 250 && elapsed < 3000);
+    }
+
+    @Test
+    public void testSilentServerIsNotReady() throws Exception {
+        int port = serve(null);
+        assertFalse(prober.awaitBanner("127.0.0.1", port, 100, 300));
+    }
+
+    @Test
+    public void testOtherServicesAreNotSsh() throws Exception {
+        int port = serve("220 smtp ready\r\n");
+        assertFalse(prober.awaitBanner("127.0.0.1", port, 100, 300));
+    }
+
+    @Test
+    public void testIdentificationIsLookedForAtTheStartOfEachLine() {
+        assertTrue(SshReadinessProber.hasIdentification(received("SSH-2.0-x")));
+        assertTrue(SshReadinessProber.hasIdentification(received("hello\nSSH-2.0-x")));
+        assertFalse(SshReadinessProber.hasIdentification(received("SS")));
+        assertFalse(SshReadinessProber.hasIdentification(received("hello SSH-2.0-x")));
+        assertFalse(SshReadinessProber.hasIdentification(received("")));
+    }
+
+    @Test
+    public void testBackoffDoublesUpToTheMaximumWithJitter() {
+        SshReadinessProber.Backoff backoff = new SshReadinessProber.Backoff(100, 500);
+        long[] ceilings = {100, 200, 400, 500, 500};
+        for (long ceiling : ceilings) {
+            long wait = backoff.next();
+            assertTrue(wait + " for " + ceiling, wait >= ceiling / 2 && wait <= ceiling);
+        }
+        assertEquals(1, new SshReadinessProber.Backoff(0, 0).next());
+    }
+}
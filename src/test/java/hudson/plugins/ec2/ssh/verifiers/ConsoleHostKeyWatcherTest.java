@@ -0,0 +1,155 @@
+package hudson.plugins.ec2.ssh.verifiers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class ConsoleHostKeyWatcherTest {
+
+    private static final String INSTANCE_ID = "i-0123456789abcdef0";
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void stop() {
+        ConsoleHostKeyWatcher.stop(INSTANCE_ID);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A public key in the SSH wire format, as printed in Base64 on the console.
+     */
+    private static String key(String algorithm, int seed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] name = algorithm.getBytes(StandardCharsets.US_ASCII);
+        out.writeInt(name.length);
+        out.write(name);
+        out.writeInt(32);
+        for (int i = 0; i < 32; i++) {
+            out.write(seed + i);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    private ConsoleHostKeyWatcher watcher(ConsoleHostKeyWatcher.Console console) {
+        return new ConsoleHostKeyWatcher(INSTANCE_ID, console, executor, 10);
+    }
+
+    @Test
+    public void testKeysArePickedOutOfTheConsole() throws Exception {
+        String ed25519 = key("ssh-ed25519", 1);
+        String ecdsa = key("ecdsa-sha2-nistp256", 2);
+        ConsoleHostKeyWatcher watcher = watcher(() -> null);
+
+        assertFalse(watcher.consume(null));
+        assertFalse(watcher.consume("[    1.2] booting\r\n"));
+        assertTrue(watcher.consume("[    1.2] booting\r\n"
+                + "-----BEGIN SSH HOST KEY KEYS-----\r\n"
+                + "ssh-ed25519 " + ed25519 + " root@ip-10-0-0-1\r\n"
+                + "[   12.3] ci-info: ecdsa-sha2-nistp256 " + ecdsa + "\r\n"
+                + "ssh-rsa " + key("ssh-dss", 3) + " announces another algorithm\r\n"));
+
+        assertEquals("ssh-ed25519", watcher.getHostKey("ssh-ed25519").getAlgorithm());
+        assertArrayEquals(
+                Base64.getDecoder().decode(ed25519),
+                watcher.getHostKey("ssh-ed25519").getKey());
+        assertArrayEquals(
+                Base64.getDecoder().decode(ecdsa),
+                watcher.getHostKey("ecdsa-sha2-nistp256").getKey());
+        assertNull(watcher.getHostKey("ssh-rsa"));
+    }
+
+    @Test
+    public void testOnlyTheNewCompleteLinesAreParsed() throws Exception {
+        String first = key("ssh-ed25519", 1);
+        ConsoleHostKeyWatcher watcher = watcher(() -> null);
+
+        // the line is not complete yet
+        assertFalse(watcher.consume("ssh-rsa " + key("ssh-rsa", 5)));
+        assertNull(watcher.getHostKey("ssh-rsa"));
+        assertTrue(watcher.consume("ssh-rsa " + key("ssh-rsa", 5) + "\nssh-ed25519 " + first + "\n"));
+        assertArrayEquals(
+                Base64.getDecoder().decode(key("ssh-rsa", 5)),
+                watcher.getHostKey("ssh-rsa").getKey());
+
+        // the first key printed wins, whether or not the console still starts with what was parsed
+        assertFalse(watcher.consume("ssh-ed25519 " + key("ssh-ed25519", 9) + "\n"));
+        assertArrayEquals(
+                Base64.getDecoder().decode(first),
+                watcher.getHostKey("ssh-ed25519").getKey());
+    }
+
+    @Test
+    public void testWordsThatAreNotKeysOfTheAlgorithmAreIgnored() throws Exception {
+        assertNull(ConsoleHostKeyWatcher.decode("ssh-ed25519", "not-base64!"));
+        assertNull(ConsoleHostKeyWatcher.decode("ssh-ed25519", "AAAA"));
+        assertNull(ConsoleHostKeyWatcher.decode("ssh-ed25519", key("ssh-ed2551", 1)));
+        assertNull(ConsoleHostKeyWatcher.decode("ssh-ed25519", key("ssh-ed255199", 1)));
+        assertArrayEquals(
+                Base64.getDecoder().decode(key("ssh-ed25519", 1)),
+                ConsoleHostKeyWatcher.decode("ssh-ed25519", key("ssh-ed25519", 1)));
+    }
+
+    @Test
+    public void testConsoleIsPolledUntilTheKeysArePrinted() throws Exception {
+        String printed = "booting\nssh-ed25519 " + key("ssh-ed25519", 1) + "\n";
+        Deque<String> outputs = new ArrayDeque<>();
+        outputs.add("");
+        outputs.add("booting\n");
+        outputs.add(printed);
+        AtomicInteger fetches = new AtomicInteger();
+        ConsoleHostKeyWatcher watcher = ConsoleHostKeyWatcher.watch(
+                watcher(() -> {
+                    fetches.incrementAndGet();
+                    String output = outputs.poll();
+                    return output != null ? output : printed + "login:\n";
+                }),
+                TimeUnit.MINUTES.toMillis(1));
+        assertSame(watcher, ConsoleHostKeyWatcher.get(INSTANCE_ID));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (watcher.getHostKey("ssh-ed25519") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("ssh-ed25519", watcher.getHostKey("ssh-ed25519").getAlgorithm());
+
+        // one more poll finds no new key, then the watcher stops polling
+        Thread.sleep(200);
+        assertEquals(4, fetches.get());
+        assertSame(watcher, ConsoleHostKeyWatcher.get(INSTANCE_ID));
+
+        ConsoleHostKeyWatcher.stop(INSTANCE_ID);
+        assertNull(ConsoleHostKeyWatcher.get(INSTANCE_ID));
+    }
+
+    @Test
+    public void testKeysAreForgottenOnceTheWindowEnds() throws Exception {
+        ConsoleHostKeyWatcher.watch(watcher(() -> null), 50);
+        assertNotNull(ConsoleHostKeyWatcher.get(INSTANCE_ID));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ConsoleHostKeyWatcher.get(INSTANCE_ID) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(ConsoleHostKeyWatcher.get(INSTANCE_ID));
+    }
+}
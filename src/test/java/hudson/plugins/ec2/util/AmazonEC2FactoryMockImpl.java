@@ -164,6 +164,9 @@ public class AmazonEC2FactoryMockImpl implements AmazonEC2Factory {
                 })
                 .when(mock)
                 .describeKeyPairs();
+        Mockito.doAnswer(invocationOnMock -> mock.describeKeyPairs())
+                .when(mock)
+                .describeKeyPairs(Mockito.any(DescribeKeyPairsRequest.class));
     }
 
     private static void mockDescribeSecurityGroups(AmazonEC2Client mock) {
@@ -0,0 +1,62 @@
+package hudson.plugins.ec2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class DemandForecastTest {
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toMillis(1000));
+
+    private final DemandForecast forecast = new DemandForecast(now::get);
+
+    private void arrive(int... perMinute) {
+        for (int count : perMinute) {
+            for (int i = 0; i < count; i++) {
+                forecast.recordArrival();
+            }
+            now.addAndGet(DemandForecast.MINUTE_MS);
+        }
+    }
+
+    @Test
+    public void testSteadyDemand() {
+        arrive(6, 6, 6, 6, 6, 6, 6, 6, 6, 6);
+        assertEquals(60, forecast.getArrivals(10));
+        assertEquals(6.0, forecast.forecastRate(5), 0.001);
+
+        // no build finished yet, so nothing to tell how long agents stay busy
+        assertEquals(0, forecast.forecastAgents(5, 2));
+
+        // 6 builds a minute running 5 minutes keep 30 executors busy
+        forecast.recordDuration(TimeUnit.MINUTES.toMillis(5));
+        assertEquals(15, forecast.forecastAgents(5, 2));
+    }
+
+    @Test
+    public void testRampUpIsExtrapolated() {
+        arrive(1, 2, 3, 4, 5, 6, 7, 8);
+        double current = forecast.forecastRate(0);
+        assertTrue(current > 0);
+        assertTrue(forecast.forecastRate(5) > current);
+    }
+
+    @Test
+    public void testDecliningDemandDoesNotGoNegative() {
+        arrive(10, 8, 6, 4, 2, 0, 0, 0);
+        forecast.recordDuration(TimeUnit.MINUTES.toMillis(5));
+        assertEquals(0.0, forecast.forecastRate(60), 0.001);
+        assertEquals(0, forecast.forecastAgents(60, 1));
+    }
+
+    @Test
+    public void testStaleHistoryIsForgotten() {
+        arrive(6, 6, 6);
+        now.addAndGet(TimeUnit.DAYS.toMillis(2));
+        assertEquals(0.0, forecast.forecastRate(0), 0.001);
+        assertEquals(0, forecast.getArrivals(60));
+    }
+}
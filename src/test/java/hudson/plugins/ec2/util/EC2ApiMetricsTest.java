@@ -0,0 +1,97 @@
+package hudson.plugins.ec2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class EC2ApiMetricsTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final EC2ApiMetrics metrics = new EC2ApiMetrics();
+
+    private final InstrumentedAmazonEC2Factory.MetricsHandler handler =
+            new InstrumentedAmazonEC2Factory.MetricsHandler(metrics, null, now::get);
+
+    private static AmazonEC2Exception error(String errorCode) {
+        AmazonEC2Exception e = new AmazonEC2Exception(errorCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+
+    private void call(DefaultRequest<?> request, long millis, AmazonEC2Exception... attemptErrors) {
+        handler.beforeRequest(request);
+        for (AmazonEC2Exception e : attemptErrors) {
+            handler.afterAttempt(HandlerAfterAttemptContext.builder()
+                    .withRequest(request)
+                    .withException(e)
+                    .build());
+        }
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        handler.afterResponse(request, null);
+    }
+
+    @Test
+    public void testCallsAreRecordedPerOperationAndCaller() {
+        try (EC2ApiCaller.Scope scope = EC2ApiCaller.PROVISION.enter()) {
+            call(new DefaultRequest<>(new RunInstancesRequest(), "AmazonEC2"), 800);
+            call(new DefaultRequest<>(new DescribeInstancesRequest(), "AmazonEC2"), 100);
+        }
+        try (EC2ApiCaller.Scope scope = EC2ApiCaller.MONITOR.enter()) {
+            call(new DefaultRequest<>(new DescribeInstancesRequest(), "AmazonEC2"), 300);
+        }
+        assertEquals(EC2ApiCaller.OTHER, EC2ApiCaller.current());
+
+        List<EC2ApiMetrics.Operation> operations = metrics.getOperations();
+        assertEquals(2, operations.size());
+        EC2ApiMetrics.Operation describe = operations.get(0);
+        assertEquals("DescribeInstances", describe.getName());
+        assertEquals(2, describe.getCalls());
+        assertEquals(300, describe.getLatency().getPercentile(100));
+        assertEquals(Map.of(EC2ApiCaller.PROVISION, 1L, EC2ApiCaller.MONITOR, 1L), describe.getCallers());
+        EC2ApiMetrics.Operation run = operations.get(1);
+        assertEquals("RunInstances", run.getName());
+        assertEquals(800, run.getLatency().getLast());
+    }
+
+    @Test
+    public void testThrottledAttemptsAndErrorsAreCounted() {
+        DefaultRequest<RunInstancesRequest> request = new DefaultRequest<>(new RunInstancesRequest(), "AmazonEC2");
+        call(request, 2000, error("RequestLimitExceeded"), error("RequestLimitExceeded"));
+
+        DefaultRequest<RunInstancesRequest> failing = new DefaultRequest<>(new RunInstancesRequest(), "AmazonEC2");
+        handler.beforeRequest(failing);
+        handler.afterError(failing, null, error("InsufficientInstanceCapacity"));
+
+        EC2ApiMetrics.Operation run = metrics.getOperations().get(0);
+        assertEquals(2, run.getCalls());
+        assertEquals(1, run.getErrors());
+        assertEquals(2, run.getThrottles());
+        assertEquals(Map.of(EC2ApiCaller.OTHER, 2L), run.getCallers());
+    }
+
+    @Test
+    public void testFormValidationIsRecordedAgainstTheUi() {
+        EC2ApiMetrics ui = new EC2ApiMetrics();
+        InstrumentedAmazonEC2Factory.MetricsHandler uiHandler =
+                new InstrumentedAmazonEC2Factory.MetricsHandler(ui, EC2ApiCaller.UI, now::get);
+        DefaultRequest<DescribeInstancesRequest> request =
+                new DefaultRequest<>(new DescribeInstancesRequest(), "AmazonEC2");
+        try (EC2ApiCaller.Scope scope = EC2ApiCaller.PROVISION.enter()) {
+            uiHandler.beforeRequest(request);
+            uiHandler.afterResponse(request, null);
+        }
+        assertEquals(Map.of(EC2ApiCaller.UI, 1L), ui.getOperations().get(0).getCallers());
+        assertTrue(metrics.getOperations().isEmpty());
+    }
+}
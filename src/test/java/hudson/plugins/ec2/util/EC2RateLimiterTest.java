@@ -0,0 +1,99 @@
+package hudson.plugins.ec2.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class EC2RateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private final EC2RateLimiter limiter = new EC2RateLimiter(now::get, 10, 4, 2, 2);
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testBudgetOfOperations() {
+        assertEquals(EC2RateLimiter.Budget.DESCRIBE, EC2RateLimiter.budgetOf("DescribeInstances"));
+        assertEquals(EC2RateLimiter.Budget.DESCRIBE, EC2RateLimiter.budgetOf("GetConsoleOutput"));
+        assertEquals(EC2RateLimiter.Budget.MUTATING, EC2RateLimiter.budgetOf("RunInstances"));
+        assertEquals(EC2RateLimiter.Budget.MUTATING, EC2RateLimiter.budgetOf("CreateTags"));
+    }
+
+    @Test
+    public void testBurstThenRefillRate() {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, false));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, false));
+        advanceMillis(100);
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, false));
+    }
+
+    @Test
+    public void testBudgetsAreSeparate() {
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.MUTATING, false));
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.MUTATING, false));
+        assertTrue(limiter.tryAcquire(EC2RateLimiter.Budget.MUTATING, false) > 0);
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, false));
+    }
+
+    @Test
+    public void testBackgroundCallsLeaveHalfTheBurst() {
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, true));
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, true));
+        assertTrue(limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, true) > 0);
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, false));
+        assertEquals(0, limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, false));
+    }
+
+    @Test
+    public void testThrottlingSlowsDownThenRecovers() {
+        limiter.throttled("DescribeInstances");
+        assertEquals(5, limiter.getRate(EC2RateLimiter.Budget.DESCRIBE), 0.001);
+        // the calls in flight when EC2 started throttling do not slow down further
+        limiter.throttled("DescribeInstances");
+        assertEquals(5, limiter.getRate(EC2RateLimiter.Budget.DESCRIBE), 0.001);
+        assertEquals(2, limiter.getRate(EC2RateLimiter.Budget.MUTATING), 0.001);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), limiter.tryAcquire(EC2RateLimiter.Budget.DESCRIBE, false));
+
+        advanceMillis(1000);
+        limiter.throttled("DescribeInstances");
+        assertEquals(2.5, limiter.getRate(EC2RateLimiter.Budget.DESCRIBE), 0.001);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.succeeded("DescribeInstances");
+        }
+        assertEquals(10, limiter.getRate(EC2RateLimiter.Budget.DESCRIBE), 0.001);
+    }
+
+    @Test
+    public void testHandlerReportsThrottledAttempts() {
+        RateLimitedAmazonEC2Factory.RateLimitingHandler handler =
+                new RateLimitedAmazonEC2Factory.RateLimitingHandler(limiter);
+        DefaultRequest<RunInstancesRequest> request = new DefaultRequest<>(new RunInstancesRequest(), "AmazonEC2");
+        assertEquals("RunInstances", RateLimitedAmazonEC2Factory.operationOf(request));
+        DefaultRequest<DescribeInstancesRequest> describe =
+                new DefaultRequest<>(new DescribeInstancesRequest(), "AmazonEC2");
+        assertEquals("DescribeInstances", RateLimitedAmazonEC2Factory.operationOf(describe));
+
+        AmazonEC2Exception throttled = new AmazonEC2Exception("Request limit exceeded.");
+        throttled.setErrorCode("RequestLimitExceeded");
+        handler.afterAttempt(HandlerAfterAttemptContext.builder()
+                .withRequest(request)
+                .withException(throttled)
+                .build());
+        assertEquals(1, limiter.getRate(EC2RateLimiter.Budget.MUTATING), 0.001);
+        assertEquals(10, limiter.getRate(EC2RateLimiter.Budget.DESCRIBE), 0.001);
+    }
+}